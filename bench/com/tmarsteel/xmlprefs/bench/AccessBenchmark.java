@@ -0,0 +1,120 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 tobse-local.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.tmarsteel.xmlprefs.bench;
+
+import com.tmarsteel.xmlprefs.XMLFilePreferences;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.prefs.BackingStoreException;
+import java.util.prefs.Preferences;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures in-memory access: get and put on a wide node, resolving a deep
+ * path and listing keys and children.
+ * @author Tobias Marstaller (<a href="//github.com/tmarsteel">github.com/tmarsteel</a>)
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class AccessBenchmark
+{
+    /**
+     * The number of properties and child nodes of the wide node.
+     */
+    @Param({ "10", "1000", "100000" })
+    public int width;
+    
+    @Param({ "false", "true" })
+    public boolean readOptimized;
+    
+    private XMLFilePreferences prefs;
+    private Preferences wide;
+    private String deepestPath;
+    private String[] values;
+    
+    @Setup
+    public void setUp(GeneratedTree tree)
+        throws Exception
+    {
+        prefs = new XMLFilePreferences(tree.file);
+        prefs.setReadOptimized(readOptimized);
+        deepestPath = tree.generator.deepestPath();
+        
+        wide = prefs.node("wide");
+        for (int i = 0;i < width;i++)
+        {
+            wide.put(TreeGenerator.key(i), tree.generator.randomValue());
+            wide.node(TreeGenerator.nodeName(i));
+        }
+        
+        values = new String[] { tree.generator.randomValue(), tree.generator.randomValue() };
+    }
+    
+    @Benchmark
+    public String get()
+    {
+        return wide.get(TreeGenerator.key(ThreadLocalRandom.current().nextInt(width)), null);
+    }
+    
+    @Benchmark
+    public void put()
+    {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        wide.put(TreeGenerator.key(random.nextInt(width)), values[random.nextInt(2)]);
+    }
+    
+    @Benchmark
+    public Preferences nodeByPath()
+    {
+        return prefs.node(deepestPath);
+    }
+    
+    @Benchmark
+    public String[] keys()
+        throws BackingStoreException
+    {
+        return wide.keys();
+    }
+    
+    @Benchmark
+    public String[] childrenNames()
+        throws BackingStoreException
+    {
+        return wide.childrenNames();
+    }
+}
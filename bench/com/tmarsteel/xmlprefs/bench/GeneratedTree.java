@@ -0,0 +1,86 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 tobse-local.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.tmarsteel.xmlprefs.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * A generated preferences file in a temporary directory, shared by all
+ * threads of a benchmark. The shape of the tree is set through the
+ * parameters; see {@link TreeGenerator}.
+ * @author Tobias Marstaller (<a href="//github.com/tmarsteel">github.com/tmarsteel</a>)
+ */
+@State(Scope.Benchmark)
+public class GeneratedTree
+{
+    @Param({ "3" })
+    public int depth;
+    
+    @Param({ "10" })
+    public int fanOut;
+    
+    @Param({ "20" })
+    public int keysPerNode;
+    
+    @Param({ "32" })
+    public int valueSize;
+    
+    public File directory;
+    public File file;
+    public TreeGenerator generator;
+    
+    @Setup
+    public void generate()
+        throws Exception
+    {
+        directory = Files.createTempDirectory("xmlprefs-bench").toFile();
+        file = new File(directory, "prefs.xml");
+        generator = new TreeGenerator(depth, fanOut, keysPerNode, valueSize);
+        generator.generate(file);
+    }
+    
+    @TearDown
+    public void delete()
+        throws IOException
+    {
+        File[] files = directory.listFiles();
+        
+        if (files != null)
+        {
+            for (File f : files)
+            {
+                Files.deleteIfExists(f.toPath());
+            }
+        }
+        
+        Files.deleteIfExists(directory.toPath());
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 tobse-local.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.tmarsteel.xmlprefs.bench;
+
+import com.tmarsteel.xmlprefs.LoadMode;
+import com.tmarsteel.xmlprefs.XMLFilePreferences;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures opening a preferences file in every {@link LoadMode}, alone and
+ * followed by reading a property at the bottom of the tree.
+ * @author Tobias Marstaller (<a href="//github.com/tmarsteel">github.com/tmarsteel</a>)
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class LoadBenchmark
+{
+    @Param({ "EAGER", "BINARY_SNAPSHOT", "LAZY" })
+    public LoadMode loadMode;
+    
+    private String deepestPath;
+    
+    @Setup
+    public void setUp(GeneratedTree tree)
+        throws Exception
+    {
+        deepestPath = tree.generator.deepestPath();
+        
+        // leaves the binary snapshot behind if enabled
+        new XMLFilePreferences(tree.file, loadMode);
+    }
+    
+    @Benchmark
+    public XMLFilePreferences load(GeneratedTree tree)
+        throws Exception
+    {
+        return new XMLFilePreferences(tree.file, loadMode);
+    }
+    
+    @Benchmark
+    public String loadAndGet(GeneratedTree tree)
+        throws Exception
+    {
+        return new XMLFilePreferences(tree.file, loadMode).node(deepestPath).get(TreeGenerator.key(0), null);
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 tobse-local.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.tmarsteel.xmlprefs.bench;
+
+import com.tmarsteel.xmlprefs.FsyncPolicy;
+import com.tmarsteel.xmlprefs.XMLFilePreferences;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+import java.util.prefs.BackingStoreException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures writing: flushing a single modification of the tree, with and
+ * without journaling, and exporting the tree.
+ * @author Tobias Marstaller (<a href="//github.com/tmarsteel">github.com/tmarsteel</a>)
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PersistenceBenchmark
+{
+    @Param({ "NEVER", "ALWAYS" })
+    public FsyncPolicy fsyncPolicy;
+    
+    @Param({ "false", "true" })
+    public boolean journaling;
+    
+    private XMLFilePreferences prefs;
+    private String deepestPath;
+    private long counter = 0;
+    
+    @Setup
+    public void setUp(GeneratedTree tree)
+        throws Exception
+    {
+        prefs = new XMLFilePreferences(tree.file);
+        prefs.setFsyncPolicy(fsyncPolicy);
+        deepestPath = tree.generator.deepestPath();
+        
+        if (journaling)
+        {
+            prefs.setJournaling(1024 * 1024);
+        }
+    }
+    
+    @TearDown
+    public void tearDown()
+        throws BackingStoreException
+    {
+        prefs.close();
+    }
+    
+    @Benchmark
+    public void flush()
+        throws BackingStoreException
+    {
+        prefs.node(deepestPath).putLong("counter", counter++);
+        prefs.flush();
+    }
+    
+    @Benchmark
+    public void exportSubtree()
+        throws IOException, BackingStoreException
+    {
+        prefs.exportSubtree(NullOutputStream.INSTANCE);
+    }
+    
+    private static final class NullOutputStream extends OutputStream
+    {
+        static final NullOutputStream INSTANCE = new NullOutputStream();
+        
+        @Override
+        public void write(int b)
+        {
+        }
+        
+        @Override
+        public void write(byte[] b, int off, int len)
+        {
+        }
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 tobse-local.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.tmarsteel.xmlprefs.bench;
+
+import com.tmarsteel.xmlprefs.XMLFilePreferences;
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.prefs.BackingStoreException;
+import java.util.prefs.Preferences;
+import org.xml.sax.SAXException;
+
+/**
+ * Generates synthetic preferences files for the benchmarks: a complete tree of
+ * the given depth in which every node has <code>fanOut</code> children called
+ * <code>n0</code>, <code>n1</code>, ... and <code>keysPerNode</code> properties
+ * called <code>k0</code>, <code>k1</code>, ... with random values of
+ * <code>valueSize</code> characters. The values are derived from a fixed seed,
+ * so the same parameters always yield the same file.
+ * <br />
+ * Can be run on its own to generate a file:
+ * <code>TreeGenerator &lt;file&gt; &lt;depth&gt; &lt;fanOut&gt; &lt;keysPerNode&gt; &lt;valueSize&gt;</code>
+ * @author Tobias Marstaller (<a href="//github.com/tmarsteel">github.com/tmarsteel</a>)
+ */
+public final class TreeGenerator
+{
+    private static final String VALUE_CHARACTERS = "abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789 &<>\"";
+    
+    private final int depth;
+    private final int fanOut;
+    private final int keysPerNode;
+    private final int valueSize;
+    private final Random random = new Random(42);
+    
+    public TreeGenerator(int depth, int fanOut, int keysPerNode, int valueSize)
+    {
+        if (depth < 0 || fanOut < 0 || keysPerNode < 0 || valueSize < 0)
+        {
+            throw new IllegalArgumentException("All parameters must be non-negative.");
+        }
+        
+        this.depth = depth;
+        this.fanOut = fanOut;
+        this.keysPerNode = keysPerNode;
+        this.valueSize = valueSize;
+    }
+    
+    /**
+     * Replaces <code>file</code> with a generated preferences file.
+     */
+    public void generate(File file)
+        throws IOException, SAXException, BackingStoreException
+    {
+        file.delete();
+        
+        try (XMLFilePreferences prefs = new XMLFilePreferences(file))
+        {
+            fill(prefs, depth);
+        }
+    }
+    
+    private void fill(Preferences node, int remainingDepth)
+    {
+        for (int i = 0;i < keysPerNode;i++)
+        {
+            node.put(key(i), randomValue());
+        }
+        
+        if (remainingDepth > 0)
+        {
+            for (int i = 0;i < fanOut;i++)
+            {
+                fill(node.node(nodeName(i)), remainingDepth - 1);
+            }
+        }
+    }
+    
+    /**
+     * @return A value of <code>valueSize</code> random characters.
+     */
+    public String randomValue()
+    {
+        char[] value = new char[valueSize];
+        
+        for (int i = 0;i < valueSize;i++)
+        {
+            value[i] = VALUE_CHARACTERS.charAt(random.nextInt(VALUE_CHARACTERS.length()));
+        }
+        
+        return new String(value);
+    }
+    
+    /**
+     * @return The absolute path of the last node at the bottom of the tree.
+     */
+    public String deepestPath()
+    {
+        if (depth == 0 || fanOut == 0)
+        {
+            return "/";
+        }
+        
+        StringBuilder path = new StringBuilder();
+        for (int i = 0;i < depth;i++)
+        {
+            path.append('/').append(nodeName(fanOut - 1));
+        }
+        
+        return path.toString();
+    }
+    
+    public static String key(int index)
+    {
+        return "k" + index;
+    }
+    
+    public static String nodeName(int index)
+    {
+        return "n" + index;
+    }
+    
+    public static void main(String[] args)
+        throws Exception
+    {
+        if (args.length != 5)
+        {
+            System.err.println("Usage: TreeGenerator <file> <depth> <fanOut> <keysPerNode> <valueSize>");
+            System.exit(1);
+        }
+        
+        new TreeGenerator(Integer.parseInt(args[1]), Integer.parseInt(args[2]), Integer.parseInt(args[3]), Integer.parseInt(args[4]))
+            .generate(new File(args[0]));
+    }
+}
@@ -0,0 +1,591 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 tobse-local.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.tmarsteel.xmlprefs;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * A map keyed by strings that keeps its entries in insertion order in a
+ * single array of alternating keys and values, without an object per entry.
+ * Small maps are searched linearly; once they hold more than
+ * {@value #INDEX_THRESHOLD} entries, an open addressing hash index of entry
+ * positions is kept in addition. Removing from a small map shifts the
+ * following entries; removing from an indexed map leaves a hole in the array,
+ * and the holes are squeezed out once they outnumber the entries, so that
+ * removal takes amortized constant time.
+ * <br />
+ * Neither keys nor values may be null. Like {@link java.util.LinkedHashMap},
+ * this map is not synchronized; its entries are immutable.
+ * @author Tobias Marstaller (<a href="//github.com/tmarsteel">github.com/tmarsteel</a>)
+ */
+final class CompactMap<V> extends AbstractMap<String, V>
+{
+    static final int INDEX_THRESHOLD = 8;
+    
+    private static final Object[] EMPTY = {};
+    
+    /**
+     * The key of the entry at position <code>i</code> at <code>2i</code>, its
+     * value at <code>2i + 1</code>; both are null for holes left by removed
+     * entries. Holes only exist while there is an index.
+     */
+    private Object[] table = EMPTY;
+    private int size = 0;
+    
+    /**
+     * The number of positions in use, including holes.
+     */
+    private int end = 0;
+    
+    /**
+     * Slots holding the position of an entry plus one, 0 for empty slots;
+     * null while the map holds no more than {@value #INDEX_THRESHOLD} entries.
+     */
+    private int[] index = null;
+    
+    private int modCount = 0;
+    private Set<Map.Entry<String, V>> entrySet = null;
+    
+    CompactMap()
+    {
+    }
+    
+    /**
+     * Creates a map holding the entries of <code>map</code> in its iteration
+     * order, without spare capacity.
+     */
+    CompactMap(Map<String, ? extends V> map)
+    {
+        if (!map.isEmpty())
+        {
+            table = new Object[map.size() * 2];
+            putAll(map);
+        }
+    }
+    
+    @Override
+    public int size()
+    {
+        return size;
+    }
+    
+    @Override
+    public boolean containsKey(Object key)
+    {
+        return indexOf(key) >= 0;
+    }
+    
+    @Override
+    @SuppressWarnings("unchecked")
+    public V get(Object key)
+    {
+        int i = indexOf(key);
+        
+        return i < 0? null : (V) table[2 * i + 1];
+    }
+    
+    /**
+     * Looks up the key <code>str.substring(from, to)</code> without creating
+     * that string.
+     * @return The value for the key or null if there is none.
+     */
+    @SuppressWarnings("unchecked")
+    V get(String str, int from, int to)
+    {
+        Object[] table = this.table;
+        int[] index = this.index;
+        int length = to - from;
+        
+        if (index == null)
+        {
+            for (int i = 0;i < size;i++)
+            {
+                if (regionEquals(table[2 * i], str, from, length))
+                {
+                    return (V) table[2 * i + 1];
+                }
+            }
+            
+            return null;
+        }
+        
+        int h = 0;
+        for (int i = from;i < to;i++)
+        {
+            h = 31 * h + str.charAt(i);
+        }
+        
+        int mask = index.length - 1;
+        for (int slot = (h ^ (h >>> 16)) & mask;index[slot] != 0;slot = (slot + 1) & mask)
+        {
+            int i = index[slot] - 1;
+            
+            if (regionEquals(table[2 * i], str, from, length))
+            {
+                return (V) table[2 * i + 1];
+            }
+        }
+        
+        return null;
+    }
+    
+    private static boolean regionEquals(Object key, String str, int from, int length)
+    {
+        String keyString = (String) key;
+        
+        return keyString.length() == length && keyString.regionMatches(0, str, from, length);
+    }
+    
+    /**
+     * @return The number of positions in use, see {@link #keyAt(int)}; not
+     * less than {@link #size()}.
+     */
+    int positions()
+    {
+        return end;
+    }
+    
+    /**
+     * @return The key of the entry at position <code>i</code> in insertion
+     * order; null if it has been removed.
+     */
+    String keyAt(int i)
+    {
+        return (String) table[2 * i];
+    }
+    
+    /**
+     * @return The value of the entry at position <code>i</code> in insertion
+     * order; null if it has been removed.
+     */
+    @SuppressWarnings("unchecked")
+    V valueAt(int i)
+    {
+        return (V) table[2 * i + 1];
+    }
+    
+    @Override
+    @SuppressWarnings("unchecked")
+    public V put(String key, V value)
+    {
+        if (key == null || value == null)
+        {
+            throw new NullPointerException();
+        }
+        
+        int i = indexOf(key);
+        
+        if (i >= 0)
+        {
+            V previous = (V) table[2 * i + 1];
+            table[2 * i + 1] = value;
+            
+            return previous;
+        }
+        
+        if (2 * end == table.length)
+        {
+            if (end > size)
+            {
+                compact();
+            }
+            else
+            {
+                table = Arrays.copyOf(table, 2 * Math.max(2, size + (size >> 1)));
+            }
+        }
+        
+        table[2 * end] = key;
+        table[2 * end + 1] = value;
+        size++;
+        end++;
+        modCount++;
+        
+        if (index != null && 2 * size <= index.length)
+        {
+            addToIndex(index, key, end - 1);
+        }
+        else if (size > INDEX_THRESHOLD)
+        {
+            rebuildIndex();
+        }
+        
+        return null;
+    }
+    
+    @Override
+    @SuppressWarnings("unchecked")
+    public V remove(Object key)
+    {
+        int i = indexOf(key);
+        
+        if (i < 0)
+        {
+            return null;
+        }
+        
+        V previous = (V) table[2 * i + 1];
+        removeAt(i);
+        
+        return previous;
+    }
+    
+    @Override
+    public boolean remove(Object key, Object value)
+    {
+        int i = indexOf(key);
+        
+        if (i < 0 || !table[2 * i + 1].equals(value))
+        {
+            return false;
+        }
+        
+        removeAt(i);
+        
+        return true;
+    }
+    
+    @Override
+    public void clear()
+    {
+        if (size > 0)
+        {
+            table = EMPTY;
+            size = 0;
+            end = 0;
+            index = null;
+            modCount++;
+        }
+    }
+    
+    /**
+     * Replaces the keys and the values that are strings with the equal
+     * strings from <code>pool</code>; the order and mapping are unaffected.
+     */
+    void intern(StringPool pool)
+    {
+        for (int i = 0;i < 2 * end;i++)
+        {
+            if (table[i] instanceof String)
+            {
+                table[i] = pool.intern((String) table[i]);
+            }
+        }
+    }
+    
+    @Override
+    public Set<Map.Entry<String, V>> entrySet()
+    {
+        if (entrySet == null)
+        {
+            entrySet = new EntrySet();
+        }
+        
+        return entrySet;
+    }
+    
+    /**
+     * @return The position of the entry for <code>key</code> or -1 if there is none.
+     */
+    private int indexOf(Object key)
+    {
+        if (key == null)
+        {
+            return -1;
+        }
+        
+        Object[] table = this.table;
+        int[] index = this.index;
+        
+        if (index == null)
+        {
+            for (int i = 0;i < size;i++)
+            {
+                if (key.equals(table[2 * i]))
+                {
+                    return i;
+                }
+            }
+            
+            return -1;
+        }
+        
+        int mask = index.length - 1;
+        for (int slot = hash(key) & mask;index[slot] != 0;slot = (slot + 1) & mask)
+        {
+            int i = index[slot] - 1;
+            
+            if (key.equals(table[2 * i]))
+            {
+                return i;
+            }
+        }
+        
+        return -1;
+    }
+    
+    /**
+     * Removes the entry at position <code>i</code>.
+     * @return Whether the positions of other entries changed.
+     */
+    private boolean removeAt(int i)
+    {
+        modCount++;
+        
+        if (index == null)
+        {
+            System.arraycopy(table, 2 * i + 2, table, 2 * i, 2 * (size - i - 1));
+            size--;
+            end--;
+            table[2 * size] = null;
+            table[2 * size + 1] = null;
+            
+            return true;
+        }
+        
+        removeFromIndex(i);
+        table[2 * i] = null;
+        table[2 * i + 1] = null;
+        size--;
+        
+        while (end > 0 && table[2 * end - 2] == null)
+        {
+            end--;
+        }
+        
+        if (size <= INDEX_THRESHOLD || end - size > size)
+        {
+            compact();
+            return true;
+        }
+        
+        return false;
+    }
+    
+    /**
+     * Moves the entries to the front of the array, closing the holes, and
+     * rebuilds the index or drops it if the map has become small enough.
+     */
+    private void compact()
+    {
+        int live = 0;
+        
+        for (int i = 0;i < end;i++)
+        {
+            if (table[2 * i] != null)
+            {
+                table[2 * live] = table[2 * i];
+                table[2 * live + 1] = table[2 * i + 1];
+                live++;
+            }
+        }
+        
+        Arrays.fill(table, 2 * live, 2 * end, null);
+        end = live;
+        
+        if (size > INDEX_THRESHOLD)
+        {
+            rebuildIndex();
+        }
+        else
+        {
+            index = null;
+        }
+    }
+    
+    /**
+     * Builds an index with room for at least twice the number of entries;
+     * {@link #put(String, Object)} rebuilds it once it would be more than
+     * half full.
+     */
+    private void rebuildIndex()
+    {
+        int[] index = new int[Integer.highestOneBit(size * 2 - 1) << 1];
+        
+        for (int i = 0;i < end;i++)
+        {
+            if (table[2 * i] != null)
+            {
+                addToIndex(index, table[2 * i], i);
+            }
+        }
+        
+        this.index = index;
+    }
+    
+    /**
+     * Removes the slot of the entry at position <code>i</code> from the index
+     * and moves later slots of its probe sequence back into the gap, so that
+     * lookups need no markers for removed slots.
+     */
+    private void removeFromIndex(int i)
+    {
+        int[] index = this.index;
+        int mask = index.length - 1;
+        int gap = hash(table[2 * i]) & mask;
+        
+        while (index[gap] != i + 1)
+        {
+            gap = (gap + 1) & mask;
+        }
+        
+        for (int slot = (gap + 1) & mask;index[slot] != 0;slot = (slot + 1) & mask)
+        {
+            int home = hash(table[2 * (index[slot] - 1)]) & mask;
+            
+            // the slot may move into the gap unless its home lies after the gap
+            if (((slot - home) & mask) >= ((slot - gap) & mask))
+            {
+                index[gap] = index[slot];
+                gap = slot;
+            }
+        }
+        
+        index[gap] = 0;
+    }
+    
+    private static void addToIndex(int[] index, Object key, int i)
+    {
+        int mask = index.length - 1;
+        int slot = hash(key) & mask;
+        
+        while (index[slot] != 0)
+        {
+            slot = (slot + 1) & mask;
+        }
+        
+        index[slot] = i + 1;
+    }
+    
+    /**
+     * @return The first position from <code>i</code> on that holds an entry;
+     * {@link #end} if there is none.
+     */
+    private int skipHoles(int i)
+    {
+        while (i < end && table[2 * i] == null)
+        {
+            i++;
+        }
+        
+        return i;
+    }
+    
+    private static int hash(Object key)
+    {
+        int h = key.hashCode();
+        
+        return h ^ (h >>> 16);
+    }
+    
+    private final class EntrySet extends AbstractSet<Map.Entry<String, V>>
+    {
+        @Override
+        public int size()
+        {
+            return size;
+        }
+        
+        @Override
+        public void clear()
+        {
+            CompactMap.this.clear();
+        }
+        
+        @Override
+        public Iterator<Map.Entry<String, V>> iterator()
+        {
+            return new Iterator<Map.Entry<String, V>>()
+            {
+                private int next = skipHoles(0);
+                private int last = -1;
+                
+                /**
+                 * The number of entries returned and not removed.
+                 */
+                private int returned = 0;
+                private int expectedModCount = modCount;
+                
+                @Override
+                public boolean hasNext()
+                {
+                    return next < end;
+                }
+                
+                @Override
+                @SuppressWarnings("unchecked")
+                public Map.Entry<String, V> next()
+                {
+                    if (modCount != expectedModCount)
+                    {
+                        throw new ConcurrentModificationException();
+                    }
+                    
+                    if (next >= end)
+                    {
+                        throw new NoSuchElementException();
+                    }
+                    
+                    last = next;
+                    next = skipHoles(next + 1);
+                    returned++;
+                    
+                    return new AbstractMap.SimpleImmutableEntry<>((String) table[2 * last], (V) table[2 * last + 1]);
+                }
+                
+                @Override
+                public void remove()
+                {
+                    if (last < 0)
+                    {
+                        throw new IllegalStateException();
+                    }
+                    
+                    if (modCount != expectedModCount)
+                    {
+                        throw new ConcurrentModificationException();
+                    }
+                    
+                    returned--;
+                    
+                    if (removeAt(last))
+                    {
+                        // there are no holes anymore
+                        next = returned;
+                    }
+                    
+                    last = -1;
+                    expectedModCount = modCount;
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,48 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 tobse-local.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.tmarsteel.xmlprefs;
+
+/**
+ * Determines how {@link XMLFilePreferences} write the backing file. When
+ * reading, the format is detected from the contents of the file, so changing
+ * it needs no conversion.
+ * @author Tobias Marstaller (<a href="//github.com/tmarsteel">github.com/tmarsteel</a>)
+ */
+public enum FileFormat
+{
+    /**
+     * A plain UTF-8 encoded XML document.
+     */
+    XML,
+    
+    /**
+     * The XML document compressed with gzip, readable with the usual tools.
+     * The CRC-32 and length of the document in the gzip trailer are verified
+     * before the document is parsed, so a corrupt file is reported as a
+     * {@link java.util.zip.ZipException} rather than a parse error. Worthwhile
+     * for large files, especially with Base64 encoded byte arrays; in
+     * {@link LoadMode#LAZY}, the document is decompressed into memory first.
+     */
+    GZIP
+}
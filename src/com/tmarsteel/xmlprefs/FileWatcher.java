@@ -0,0 +1,205 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 tobse-local.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.tmarsteel.xmlprefs;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.prefs.BackingStoreException;
+
+/**
+ * Watches the directory of the backing file of a {@link XMLFilePreferences}
+ * and reloads the preferences on a background thread whenever the file is
+ * modified. Modifications are debounced: the reload happens once no further
+ * modification has been seen for the debounce period. Besides the file
+ * itself, its journal and the temporary files that replace it, e.g. when the
+ * journal is compacted, are watched.
+ * @author Tobias Marstaller (<a href="//github.com/tmarsteel">github.com/tmarsteel</a>)
+ */
+final class FileWatcher
+{
+    private static final Logger LOGGER = Logger.getLogger(FileWatcher.class.getName());
+    
+    private final XMLFilePreferences preferences;
+    private final Path fileName;
+    private final Path journalName;
+    private final long debounceNanos;
+    private final WatchService watchService;
+    private final Thread thread;
+    
+    FileWatcher(XMLFilePreferences preferences, long debounce, TimeUnit unit)
+        throws IOException
+    {
+        Path file = preferences.getBackingFile().toPath().toAbsolutePath();
+        
+        this.preferences = preferences;
+        this.fileName = file.getFileName();
+        this.journalName = file.resolveSibling(fileName + ".journal").getFileName();
+        this.debounceNanos = unit.toNanos(debounce);
+        this.watchService = FileSystems.getDefault().newWatchService();
+        
+        try
+        {
+            file.getParent().register(watchService,
+                StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_MODIFY,
+                StandardWatchEventKinds.ENTRY_DELETE);
+        }
+        catch (IOException ex)
+        {
+            watchService.close();
+            throw ex;
+        }
+        
+        thread = new Thread(this::run, "xmlprefs-watch-" + fileName);
+        thread.setDaemon(true);
+        thread.start();
+    }
+    
+    /**
+     * Stops watching; returns once the watching thread has terminated unless
+     * called from that thread.
+     */
+    void stop()
+    {
+        try
+        {
+            watchService.close();
+        }
+        catch (IOException ex)
+        {
+            LOGGER.log(Level.WARNING, "Could not close the watch service for " + preferences.getBackingFile(), ex);
+        }
+        
+        if (Thread.currentThread() != thread)
+        {
+            try
+            {
+                thread.join();
+            }
+            catch (InterruptedException ex)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+    
+    private void run()
+    {
+        try
+        {
+            while (true)
+            {
+                if (!isBackingFileAffected(watchService.take()))
+                {
+                    continue;
+                }
+                
+                // wait for the modifications to settle
+                WatchKey key;
+                while ((key = watchService.poll(debounceNanos, TimeUnit.NANOSECONDS)) != null)
+                {
+                    isBackingFileAffected(key);
+                }
+                
+                try
+                {
+                    preferences.reload();
+                }
+                catch (BackingStoreException | RuntimeException ex)
+                {
+                    LOGGER.log(Level.WARNING, "Could not reload " + preferences.getBackingFile(), ex);
+                }
+            }
+        }
+        catch (ClosedWatchServiceException | InterruptedException ex)
+        {
+            // stopped
+        }
+    }
+    
+    /**
+     * Consumes the events of <code>key</code> and re-arms it.
+     * @return Whether any of the events may concern the backing file.
+     */
+    private boolean isBackingFileAffected(WatchKey key)
+    {
+        boolean affected = false;
+        
+        for (WatchEvent<?> event : key.pollEvents())
+        {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW || concernsBackingFile((Path) event.context()))
+            {
+                affected = true;
+            }
+        }
+        
+        if (!key.reset())
+        {
+            LOGGER.warning("The directory of " + preferences.getBackingFile() + " is no longer accessible, stopped watching it.");
+            throw new ClosedWatchServiceException();
+        }
+        
+        return affected;
+    }
+    
+    /**
+     * @return Whether <code>name</code> is the name of the backing file, its
+     * journal or a temporary file that replaces the backing file.
+     */
+    private boolean concernsBackingFile(Path name)
+    {
+        if (fileName.equals(name) || journalName.equals(name))
+        {
+            return true;
+        }
+        
+        // <file>.<hex>.tmp, see PreferencesFile#createTempFile(Path)
+        String prefix = fileName + ".";
+        String nameString = name.toString();
+        
+        if (!nameString.startsWith(prefix) || !nameString.endsWith(".tmp"))
+        {
+            return false;
+        }
+        
+        for (int i = prefix.length();i < nameString.length() - 4;i++)
+        {
+            if (Character.digit(nameString.charAt(i), 16) < 0)
+            {
+                return false;
+            }
+        }
+        
+        return nameString.length() > prefix.length() + 4;
+    }
+}
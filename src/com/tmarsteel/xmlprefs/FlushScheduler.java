@@ -0,0 +1,315 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 tobse-local.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.tmarsteel.xmlprefs;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.prefs.BackingStoreException;
+
+/**
+ * Flushes a {@link XMLFilePreferences} on a background thread once its tree
+ * has not been modified for a quiet period, or at the latest a maximum delay
+ * after the first unflushed modification. A burst of modifications is thus
+ * written with a single flush. Failed flushes are retried a few times with
+ * increasing delays; after that, the next modification schedules a flush
+ * again.
+ * <br />
+ * Pending modifications are flushed when the JVM exits through a single
+ * shutdown hook shared by all schedulers, which refers to them weakly. A
+ * scheduler with a pending flush is reachable through its executor anyway.
+ * @author Tobias Marstaller (<a href="//github.com/tmarsteel">github.com/tmarsteel</a>)
+ */
+final class FlushScheduler
+{
+    private static final Logger LOGGER = Logger.getLogger(FlushScheduler.class.getName());
+    
+    /**
+     * The number of times a failed flush is retried before the scheduler
+     * waits for the next modification.
+     */
+    static final int MAX_RETRIES = 5;
+    
+    private static final long MIN_RETRY_DELAY_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final long MAX_RETRY_DELAY_NANOS = TimeUnit.MINUTES.toNanos(5);
+    
+    /**
+     * The running schedulers, flushed by {@link #SHUTDOWN_HOOK}; guarded by
+     * the class.
+     */
+    private static final Set<FlushScheduler> RUNNING = Collections.newSetFromMap(new WeakHashMap<>());
+    private static final Thread SHUTDOWN_HOOK = new Thread(FlushScheduler::flushAll, "xmlprefs-flush-shutdown");
+    private static boolean hookRegistered = false;
+    
+    private final XMLFilePreferences preferences;
+    private final long quietNanos;
+    private final long maxDelayNanos;
+    private final ScheduledThreadPoolExecutor executor;
+    
+    /**
+     * The number of consecutive failed flushes.
+     */
+    private int failures = 0;
+    
+    /**
+     * {@link System#nanoTime()} of the first and the last modification that
+     * has not been flushed yet; <code>firstModification</code> is -1 if there
+     * is none.
+     */
+    private long firstModification = -1;
+    private long lastModification;
+    
+    private ScheduledFuture<?> pendingFlush = null;
+    private boolean shutdown = false;
+    
+    FlushScheduler(XMLFilePreferences preferences, long quietPeriod, long maxDelay, TimeUnit unit)
+    {
+        this.preferences = preferences;
+        this.quietNanos = unit.toNanos(quietPeriod);
+        this.maxDelayNanos = unit.toNanos(maxDelay);
+        
+        final String threadName = "xmlprefs-flush-" + preferences.getBackingFile().getName();
+        executor = new ScheduledThreadPoolExecutor(1, (Runnable r) -> {
+            Thread thread = new Thread(r, threadName);
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.setRemoveOnCancelPolicy(true);
+        // do not keep an idle thread around for preferences that are no longer used
+        executor.setKeepAliveTime(10, TimeUnit.SECONDS);
+        executor.allowCoreThreadTimeOut(true);
+        
+        register(this);
+    }
+    
+    private static synchronized void register(FlushScheduler scheduler)
+    {
+        RUNNING.add(scheduler);
+        
+        if (!hookRegistered)
+        {
+            Runtime.getRuntime().addShutdownHook(SHUTDOWN_HOOK);
+            hookRegistered = true;
+        }
+    }
+    
+    /**
+     * Removes <code>scheduler</code> from the schedulers flushed on exit and
+     * removes the shutdown hook if none remain.
+     * @throws IllegalStateException If the JVM is shutting down already.
+     */
+    private static synchronized void unregister(FlushScheduler scheduler)
+    {
+        if (hookRegistered && RUNNING.size() == 1 && RUNNING.contains(scheduler))
+        {
+            // throws before the scheduler is removed, so that the hook still flushes it
+            Runtime.getRuntime().removeShutdownHook(SHUTDOWN_HOOK);
+            hookRegistered = false;
+        }
+        
+        RUNNING.remove(scheduler);
+    }
+    
+    private static void flushAll()
+    {
+        List<FlushScheduler> schedulers;
+        
+        synchronized (FlushScheduler.class)
+        {
+            schedulers = new ArrayList<>(RUNNING);
+        }
+        
+        for (FlushScheduler scheduler : schedulers)
+        {
+            scheduler.flushQuietly();
+        }
+    }
+    
+    /**
+     * Notes a modification of the tree and schedules a flush for it if none
+     * is pending.
+     */
+    synchronized void modified()
+    {
+        if (shutdown)
+        {
+            return;
+        }
+        
+        long now = System.nanoTime();
+        
+        if (firstModification < 0)
+        {
+            firstModification = now;
+        }
+        lastModification = now;
+        
+        if (pendingFlush == null)
+        {
+            pendingFlush = executor.schedule(this::run, quietNanos, TimeUnit.NANOSECONDS);
+        }
+    }
+    
+    /**
+     * Stops scheduling flushes and writes what is still pending.
+     */
+    void shutdown()
+        throws BackingStoreException
+    {
+        synchronized (this)
+        {
+            if (shutdown)
+            {
+                return;
+            }
+            
+            shutdown = true;
+            
+            if (pendingFlush != null)
+            {
+                pendingFlush.cancel(false);
+                pendingFlush = null;
+            }
+        }
+        
+        executor.shutdown();
+        
+        try
+        {
+            unregister(this);
+        }
+        catch (IllegalStateException ex)
+        {
+            // the JVM is shutting down already, the hook takes care of flushing
+            return;
+        }
+        
+        preferences.flush();
+    }
+    
+    /**
+     * Flushes if the quiet period or the maximum delay has elapsed; reschedules
+     * itself for the earlier of the two otherwise.
+     */
+    private void run()
+    {
+        synchronized (this)
+        {
+            pendingFlush = null;
+            
+            if (shutdown || firstModification < 0)
+            {
+                return;
+            }
+            
+            long now = System.nanoTime();
+            long due = Math.min(lastModification + quietNanos, firstModification + maxDelayNanos);
+            
+            if (now - due < 0)
+            {
+                pendingFlush = executor.schedule(this::run, due - now, TimeUnit.NANOSECONDS);
+                return;
+            }
+            
+            firstModification = -1;
+        }
+        
+        try
+        {
+            preferences.flush();
+            
+            synchronized (this)
+            {
+                failures = 0;
+            }
+        }
+        catch (BackingStoreException | RuntimeException ex)
+        {
+            retry(ex);
+        }
+    }
+    
+    /**
+     * Schedules another attempt after a failed flush, waiting twice as long
+     * as before, unless {@value #MAX_RETRIES} attempts have failed in a row.
+     */
+    private synchronized void retry(Exception cause)
+    {
+        if (shutdown)
+        {
+            return;
+        }
+        
+        failures++;
+        
+        if (failures > MAX_RETRIES)
+        {
+            LOGGER.log(Level.SEVERE, "Could not flush " + preferences.getBackingFile() + " after " + MAX_RETRIES
+                + " retries; waiting for the next modification", cause);
+            failures = 0;
+            return;
+        }
+        
+        long delay = Math.max(quietNanos, MIN_RETRY_DELAY_NANOS);
+        for (int i = 1;i < failures;i++)
+        {
+            delay = Math.min(2 * delay, MAX_RETRY_DELAY_NANOS);
+        }
+        
+        LOGGER.log(Level.WARNING, "Could not flush " + preferences.getBackingFile() + ", retry " + failures + " of "
+            + MAX_RETRIES + " in " + TimeUnit.NANOSECONDS.toMillis(delay) + "ms", cause);
+        
+        // due as soon as run() is called again, unless modifications are pending anyway
+        long now = System.nanoTime();
+        if (firstModification < 0)
+        {
+            firstModification = now - maxDelayNanos;
+            lastModification = now - quietNanos;
+        }
+        
+        if (pendingFlush == null)
+        {
+            pendingFlush = executor.schedule(this::run, delay, TimeUnit.NANOSECONDS);
+        }
+    }
+    
+    private void flushQuietly()
+    {
+        try
+        {
+            preferences.flush();
+        }
+        catch (BackingStoreException | RuntimeException ex)
+        {
+            LOGGER.log(Level.WARNING, "Could not flush " + preferences.getBackingFile(), ex);
+        }
+    }
+}
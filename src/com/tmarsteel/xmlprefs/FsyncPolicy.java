@@ -0,0 +1,54 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 tobse-local.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.tmarsteel.xmlprefs;
+
+/**
+ * Determines when {@link XMLFilePreferences#flush()} forces the written data
+ * to the storage device before replacing the backing file.
+ * @author Tobias Marstaller (<a href="//github.com/tmarsteel">github.com/tmarsteel</a>)
+ */
+public enum FsyncPolicy
+{
+    /**
+     * Every flush is forced to the storage device; a flush that returned
+     * survives a crash of the operating system.
+     */
+    ALWAYS,
+    
+    /**
+     * Flushes are never forced; the operating system writes the data back
+     * whenever it sees fit. The backing file is still replaced atomically, so
+     * other processes never see it partially written.
+     */
+    NEVER,
+    
+    /**
+     * A flush is forced only if the last forced flush is longer ago than the
+     * fsync interval. Otherwise, it is forced once the interval has passed, by
+     * {@link XMLFilePreferences#close()} or when the JVM exits, whichever
+     * comes first.
+     * @see XMLFilePreferences#setFsyncInterval(long, java.util.concurrent.TimeUnit)
+     */
+    INTERVAL;
+}
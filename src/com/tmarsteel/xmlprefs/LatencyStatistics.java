@@ -0,0 +1,128 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 tobse-local.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.tmarsteel.xmlprefs;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A snapshot of the durations of one kind of operation.
+ * @see PreferencesStatistics
+ * @author Tobias Marstaller (<a href="//github.com/tmarsteel">github.com/tmarsteel</a>)
+ */
+public final class LatencyStatistics
+{
+    private final long[] buckets;
+    private final long count;
+    private final long totalNanos;
+    private final long maxNanos;
+    
+    LatencyStatistics(long[] buckets, long totalNanos, long maxNanos)
+    {
+        long count = 0;
+        for (long bucket : buckets)
+        {
+            count += bucket;
+        }
+        
+        this.buckets = buckets;
+        this.count = count;
+        this.totalNanos = totalNanos;
+        this.maxNanos = maxNanos;
+    }
+    
+    /**
+     * @return The number of operations.
+     */
+    public long getCount()
+    {
+        return count;
+    }
+    
+    /**
+     * @return The total duration of all operations.
+     */
+    public long getTotalTime(TimeUnit unit)
+    {
+        return unit.convert(totalNanos, TimeUnit.NANOSECONDS);
+    }
+    
+    /**
+     * @return The average duration of an operation; 0 if there were none.
+     */
+    public long getMeanTime(TimeUnit unit)
+    {
+        return count == 0? 0 : unit.convert(totalNanos / count, TimeUnit.NANOSECONDS);
+    }
+    
+    /**
+     * @return The longest duration of an operation.
+     */
+    public long getMaxTime(TimeUnit unit)
+    {
+        return unit.convert(maxNanos, TimeUnit.NANOSECONDS);
+    }
+    
+    /**
+     * Returns an upper bound of the duration below which the given share of
+     * the operations completed. The bound is at most twice the actual
+     * percentile.
+     * @param percentile The share of operations, between 0 and 100.
+     * @return The upper bound of the percentile; 0 if there were no operations.
+     */
+    public long getPercentile(double percentile, TimeUnit unit)
+    {
+        if (percentile < 0 || percentile > 100)
+        {
+            throw new IllegalArgumentException("The percentile must be between 0 and 100.");
+        }
+        
+        if (count == 0)
+        {
+            return 0;
+        }
+        
+        long threshold = (long) Math.ceil(count * percentile / 100);
+        long cumulative = 0;
+        
+        for (int i = 0;i < buckets.length;i++)
+        {
+            cumulative += buckets[i];
+            
+            if (cumulative >= threshold && cumulative > 0)
+            {
+                long upperBound = i == 0? 0 : (1L << i) - 1;
+                return unit.convert(Math.min(upperBound, maxNanos), TimeUnit.NANOSECONDS);
+            }
+        }
+        
+        return unit.convert(maxNanos, TimeUnit.NANOSECONDS);
+    }
+    
+    @Override
+    public String toString()
+    {
+        return "LatencyStatistics[count=" + count + ", mean=" + getMeanTime(TimeUnit.MICROSECONDS) +
+            "us, p99=" + getPercentile(99, TimeUnit.MICROSECONDS) + "us, max=" + getMaxTime(TimeUnit.MICROSECONDS) + "us]";
+    }
+}
@@ -0,0 +1,479 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 tobse-local.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.tmarsteel.xmlprefs;
+
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import javax.xml.stream.XMLStreamException;
+
+/**
+ * Reads a preferences document without parsing the subtrees of the top-level
+ * nodes. A scan of the raw bytes locates the <code>&lt;node&gt;</code>
+ * elements directly below the document element; only the rest of the
+ * document is parsed. The nodes are added to the root unparsed, see
+ * {@link PreferencesNode#addUnparsedChild(String, ByteBuffer)}.
+ * <br />
+ * The scan understands comments, CDATA sections, processing instructions and
+ * quoted attribute values. Documents it cannot handle safely (those with a
+ * document type declaration, an encoding other than UTF-8 or duplicate
+ * top-level node names) are left to {@link PreferencesReader}.
+ * @author Tobias Marstaller (<a href="//github.com/tmarsteel">github.com/tmarsteel</a>)
+ */
+final class LazyPreferencesReader
+{
+    private static final byte[] COMMENT_START = ascii("<!--");
+    private static final byte[] COMMENT_END = ascii("-->");
+    private static final byte[] CDATA_START = ascii("<![CDATA[");
+    private static final byte[] CDATA_END = ascii("]]>");
+    private static final byte[] PI_START = ascii("<?");
+    private static final byte[] PI_END = ascii("?>");
+    private static final byte[] XML_DECLARATION_START = ascii("<?xml");
+    private static final byte[] NODE_TAG = ascii("<" + XMLNodePreferences.NODE_NODENAME);
+    
+    private final ByteBuffer document;
+    
+    /**
+     * Start and end of the top-level <code>&lt;node&gt;</code> elements and
+     * their names, in document order.
+     */
+    private final List<int[]> nodeElements = new ArrayList<>();
+    private final List<String> nodeNames = new ArrayList<>();
+    
+    private LazyPreferencesReader(ByteBuffer document)
+    {
+        this.document = document;
+    }
+    
+    /**
+     * Reads the preferences document in <code>document</code>, which must not
+     * be modified as long as the returned tree is in use.
+     * @return The root of the preferences tree in the document or null if the
+     * document cannot be read lazily.
+     * @throws XMLStreamException If the document is not well-formed XML.
+     */
+    static PreferencesNode read(ByteBuffer document)
+        throws XMLStreamException
+    {
+        LazyPreferencesReader reader = new LazyPreferencesReader(document);
+        
+        if (!reader.scan())
+        {
+            return null;
+        }
+        
+        // parse the document without the top-level nodes
+        List<InputStream> segments = new ArrayList<>();
+        int position = 0;
+        
+        for (int[] element : reader.nodeElements)
+        {
+            if (!reader.isWhitespace(position, element[0]))
+            {
+                segments.add(new ByteBufferInputStream(slice(document, position, element[0])));
+            }
+            
+            position = element[1];
+        }
+        
+        segments.add(new ByteBufferInputStream(slice(document, position, document.limit())));
+        
+        PreferencesNode root = PreferencesReader.read(new SequenceInputStream(Collections.enumeration(segments)));
+        
+        if (!root.getChildNames().isEmpty())
+        {
+            // nodes the scan did not recognize
+            return null;
+        }
+        
+        for (int i = 0;i < reader.nodeElements.size();i++)
+        {
+            int[] element = reader.nodeElements.get(i);
+            root.addUnparsedChild(reader.nodeNames.get(i), slice(document, element[0], element[1]));
+        }
+        
+        return root;
+    }
+    
+    /**
+     * Collects the top-level <code>&lt;node&gt;</code> elements.
+     * @return Whether the document can be read lazily.
+     */
+    private boolean scan()
+    {
+        int end = document.limit();
+        int position = 0;
+        int depth = 0;
+        int nodeStart = -1;
+        Set<String> names = new HashSet<>();
+        
+        if (startsWith(0, new byte[] { (byte) 0xEF, (byte) 0xBB, (byte) 0xBF }))
+        {
+            position = 3;
+        }
+        
+        while (position < end)
+        {
+            if (document.get(position) != '<')
+            {
+                position++;
+                continue;
+            }
+            
+            int next;
+            
+            if (startsWith(position, COMMENT_START))
+            {
+                next = skipPast(position + COMMENT_START.length, COMMENT_END);
+            }
+            else if (startsWith(position, CDATA_START))
+            {
+                next = skipPast(position + CDATA_START.length, CDATA_END);
+            }
+            else if (startsWith(position, PI_START))
+            {
+                next = skipPast(position + PI_START.length, PI_END);
+                
+                if (startsWith(position, XML_DECLARATION_START) && next > 0 && !isUtf8Declaration(position, next))
+                {
+                    return false;
+                }
+            }
+            else if (position + 1 < end && document.get(position + 1) == '!')
+            {
+                // a document type declaration
+                return false;
+            }
+            else if (position + 1 < end && document.get(position + 1) == '/')
+            {
+                next = skipTag(position);
+                depth--;
+                
+                if (depth == 1 && nodeStart >= 0 && next > 0)
+                {
+                    nodeElements.add(new int[] { nodeStart, next });
+                    nodeStart = -1;
+                }
+            }
+            else
+            {
+                next = skipTag(position);
+                
+                if (next < 0)
+                {
+                    return false;
+                }
+                
+                boolean empty = document.get(next - 2) == '/';
+                
+                if (depth == 1 && isNodeTag(position))
+                {
+                    String name = getNameAttribute(position, next);
+                    
+                    if (name == null || !names.add(name))
+                    {
+                        return false;
+                    }
+                    
+                    nodeNames.add(name);
+                    
+                    if (empty)
+                    {
+                        nodeElements.add(new int[] { position, next });
+                    }
+                    else
+                    {
+                        nodeStart = position;
+                    }
+                }
+                
+                if (!empty)
+                {
+                    depth++;
+                }
+            }
+            
+            if (next < 0 || depth < 0)
+            {
+                return false;
+            }
+            
+            position = next;
+        }
+        
+        return depth == 0 && nodeStart < 0;
+    }
+    
+    private boolean startsWith(int position, byte[] prefix)
+    {
+        if (position + prefix.length > document.limit())
+        {
+            return false;
+        }
+        
+        for (int i = 0;i < prefix.length;i++)
+        {
+            if (document.get(position + i) != prefix[i])
+            {
+                return false;
+            }
+        }
+        
+        return true;
+    }
+    
+    /**
+     * @return The position after the next occurrence of <code>terminator</code>
+     * at or after <code>position</code>; -1 if there is none.
+     */
+    private int skipPast(int position, byte[] terminator)
+    {
+        for (int end = document.limit() - terminator.length;position <= end;position++)
+        {
+            if (startsWith(position, terminator))
+            {
+                return position + terminator.length;
+            }
+        }
+        
+        return -1;
+    }
+    
+    /**
+     * @return The position after the tag starting at <code>position</code>;
+     * -1 if it is not terminated.
+     */
+    private int skipTag(int position)
+    {
+        byte quote = 0;
+        
+        for (int end = document.limit();position < end;position++)
+        {
+            byte b = document.get(position);
+            
+            if (quote != 0)
+            {
+                if (b == quote)
+                {
+                    quote = 0;
+                }
+            }
+            else if (b == '"' || b == '\'')
+            {
+                quote = b;
+            }
+            else if (b == '>')
+            {
+                return position + 1;
+            }
+        }
+        
+        return -1;
+    }
+    
+    private boolean isNodeTag(int position)
+    {
+        if (!startsWith(position, NODE_TAG))
+        {
+            return false;
+        }
+        
+        byte next = document.get(position + NODE_TAG.length);
+        
+        return next == '>' || next == '/' || isWhitespace(next);
+    }
+    
+    private boolean isWhitespace(int start, int end)
+    {
+        for (int i = start;i < end;i++)
+        {
+            if (!isWhitespace(document.get(i)))
+            {
+                return false;
+            }
+        }
+        
+        return true;
+    }
+    
+    private static boolean isWhitespace(byte b)
+    {
+        return b == ' ' || b == '\t' || b == '\n' || b == '\r';
+    }
+    
+    /**
+     * @return Whether the XML declaration between <code>start</code> and
+     * <code>end</code> declares UTF-8 or no encoding at all.
+     */
+    private boolean isUtf8Declaration(int start, int end)
+    {
+        String declaration = new String(bytes(start, end), StandardCharsets.US_ASCII);
+        int encoding = declaration.indexOf("encoding");
+        
+        if (encoding < 0)
+        {
+            return true;
+        }
+        
+        String value = declaration.substring(encoding + "encoding".length()).replaceAll("^\\s*=\\s*['\"]([^'\"]*)['\"][\\s\\S]*$", "$1");
+        
+        return value.equalsIgnoreCase("UTF-8") || value.equalsIgnoreCase("UTF8");
+    }
+    
+    /**
+     * @return The value of the name attribute of the start tag between
+     * <code>start</code> and <code>end</code>; the empty string if it has
+     * none, null if it is malformed.
+     */
+    private String getNameAttribute(int start, int end)
+    {
+        String tag = new String(bytes(start, end), StandardCharsets.UTF_8);
+        int position = NODE_TAG.length;
+        
+        while (position < tag.length())
+        {
+            while (position < tag.length() && " \t\n\r".indexOf(tag.charAt(position)) >= 0)
+            {
+                position++;
+            }
+            
+            int equals = tag.indexOf('=', position);
+            
+            if (equals < 0)
+            {
+                break;
+            }
+            
+            String attribute = tag.substring(position, equals).trim();
+            
+            int quoteStart = equals + 1;
+            while (quoteStart < tag.length() && tag.charAt(quoteStart) != '"' && tag.charAt(quoteStart) != '\'')
+            {
+                quoteStart++;
+            }
+            
+            int quoteEnd = quoteStart < tag.length()? tag.indexOf(tag.charAt(quoteStart), quoteStart + 1) : -1;
+            
+            if (quoteEnd < 0)
+            {
+                break;
+            }
+            
+            if (attribute.equals("name"))
+            {
+                try
+                {
+                    return decodeAttributeValue(tag.substring(quoteStart + 1, quoteEnd));
+                }
+                catch (IndexOutOfBoundsException | IllegalArgumentException ex)
+                {
+                    return null;
+                }
+            }
+            
+            position = quoteEnd + 1;
+        }
+        
+        return "";
+    }
+    
+    /**
+     * Normalizes whitespace and resolves the predefined entities and
+     * character references in an attribute value.
+     */
+    private static String decodeAttributeValue(String value)
+    {
+        StringBuilder decoded = new StringBuilder(value.length());
+        
+        for (int i = 0;i < value.length();i++)
+        {
+            char c = value.charAt(i);
+            
+            if (c == '\t' || c == '\n' || c == '\r')
+            {
+                decoded.append(' ');
+            }
+            else if (c == '&')
+            {
+                int semicolon = value.indexOf(';', i);
+                String entity = value.substring(i + 1, semicolon);
+                
+                switch (entity)
+                {
+                    case "amp":  decoded.append('&'); break;
+                    case "lt":   decoded.append('<'); break;
+                    case "gt":   decoded.append('>'); break;
+                    case "quot": decoded.append('"'); break;
+                    case "apos": decoded.append('\''); break;
+                    default:
+                        decoded.appendCodePoint(entity.startsWith("#x")?
+                            Integer.parseInt(entity.substring(2), 16) : Integer.parseInt(entity.substring(1)));
+                }
+                
+                i = semicolon;
+            }
+            else
+            {
+                decoded.append(c);
+            }
+        }
+        
+        return decoded.toString();
+    }
+    
+    private byte[] bytes(int start, int end)
+    {
+        byte[] bytes = new byte[end - start];
+        
+        for (int i = 0;i < bytes.length;i++)
+        {
+            bytes[i] = document.get(start + i);
+        }
+        
+        return bytes;
+    }
+    
+    /**
+     * @return A buffer of the bytes between <code>start</code> and
+     * <code>end</code> of <code>buffer</code>, sharing its content.
+     */
+    private static ByteBuffer slice(ByteBuffer buffer, int start, int end)
+    {
+        ByteBuffer slice = buffer.duplicate();
+        slice.limit(end).position(start);
+        
+        return slice.slice();
+    }
+    
+    private static byte[] ascii(String str)
+    {
+        return str.getBytes(StandardCharsets.US_ASCII);
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 tobse-local.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.tmarsteel.xmlprefs;
+
+/**
+ * Determines how {@link XMLFilePreferences} read the backing file.
+ * @author Tobias Marstaller (<a href="//github.com/tmarsteel">github.com/tmarsteel</a>)
+ */
+public enum LoadMode
+{
+    /**
+     * Parse the entire file whenever it is read.
+     */
+    EAGER,
+    
+    /**
+     * Keep a binary snapshot of the file next to it (named like it with the
+     * suffix <code>.bin</code>) and read the snapshot instead of the file
+     * while the file has the size, modification time and checksum the
+     * snapshot was made from. The snapshot is made whenever the file is
+     * written or parsed and loads considerably faster than the XML; the file
+     * remains the authoritative copy.
+     */
+    BINARY_SNAPSHOT,
+    
+    /**
+     * Read the raw bytes of the file and parse only the properties of the
+     * root node right away. The subtrees of the top-level nodes are located by
+     * a quick scan of the raw bytes and parsed when they are first accessed;
+     * those never accessed are copied verbatim when the file is written.
+     * Startup time and the heap used beyond the raw bytes thus depend on the
+     * parts of the file actually used. The file is not kept open or mapped,
+     * so it can be replaced or truncated at any time.
+     * Errors in a subtree only surface when it is accessed, as an
+     * {@link IllegalStateException}. Files the scan cannot handle (e.g. with a
+     * document type declaration or an encoding other than UTF-8) are parsed
+     * entirely.
+     */
+    LAZY
+}
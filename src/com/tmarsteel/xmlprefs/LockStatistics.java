@@ -0,0 +1,100 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 tobse-local.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.tmarsteel.xmlprefs;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A snapshot of the statistics about the locks taken on a backing file.
+ * @see XMLFilePreferences#getLockStatistics()
+ * @author Tobias Marstaller (<a href="//github.com/tmarsteel">github.com/tmarsteel</a>)
+ */
+public final class LockStatistics
+{
+    private final long acquisitions;
+    private final long contendedAcquisitions;
+    private final long timeouts;
+    private final long totalWaitNanos;
+    private final long maxWaitNanos;
+    
+    LockStatistics(long acquisitions, long contendedAcquisitions, long timeouts, long totalWaitNanos, long maxWaitNanos)
+    {
+        this.acquisitions = acquisitions;
+        this.contendedAcquisitions = contendedAcquisitions;
+        this.timeouts = timeouts;
+        this.totalWaitNanos = totalWaitNanos;
+        this.maxWaitNanos = maxWaitNanos;
+    }
+    
+    /**
+     * @return The number of times the lock was acquired.
+     */
+    public long getAcquisitions()
+    {
+        return acquisitions;
+    }
+    
+    /**
+     * @return The number of acquisitions that had to wait for another thread
+     * or process to release the lock.
+     */
+    public long getContendedAcquisitions()
+    {
+        return contendedAcquisitions;
+    }
+    
+    /**
+     * @return The number of times the lock could not be acquired within the
+     * lock timeout.
+     */
+    public long getTimeouts()
+    {
+        return timeouts;
+    }
+    
+    /**
+     * @return The total time spent waiting for the lock, including the waits
+     * that timed out.
+     */
+    public long getTotalWaitTime(TimeUnit unit)
+    {
+        return unit.convert(totalWaitNanos, TimeUnit.NANOSECONDS);
+    }
+    
+    /**
+     * @return The longest time spent waiting for the lock.
+     */
+    public long getMaxWaitTime(TimeUnit unit)
+    {
+        return unit.convert(maxWaitNanos, TimeUnit.NANOSECONDS);
+    }
+    
+    @Override
+    public String toString()
+    {
+        return "LockStatistics[acquisitions=" + acquisitions + ", contended=" + contendedAcquisitions +
+            ", timeouts=" + timeouts + ", totalWait=" + TimeUnit.NANOSECONDS.toMillis(totalWaitNanos) +
+            "ms, maxWait=" + TimeUnit.NANOSECONDS.toMillis(maxWaitNanos) + "ms]";
+    }
+}
@@ -0,0 +1,203 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 tobse-local.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.tmarsteel.xmlprefs;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Keeps track of the {@link XMLNodePreferences} objects of one
+ * {@link XMLFilePreferences}, so that a node has at most one preferences
+ * object at any time. Objects are referenced weakly, so that they can be
+ * collected and created anew once nothing else refers to them; with a limit
+ * set, the most recently used ones are also kept strongly, as are those with
+ * listeners. Without a limit, {@link java.util.prefs.AbstractPreferences}
+ * keeps every object anyway.
+ * @author Tobias Marstaller (<a href="//github.com/tmarsteel">github.com/tmarsteel</a>)
+ */
+final class NodePreferencesCache
+{
+    private final Map<PreferencesNode, Entry> entries = new HashMap<>();
+    private final ReferenceQueue<XMLNodePreferences> collected = new ReferenceQueue<>();
+    
+    /**
+     * The most recently used objects, eldest first; null without a limit.
+     */
+    private LinkedHashMap<XMLNodePreferences, Boolean> recent = null;
+    private int limit = -1;
+    
+    /**
+     * The objects that have listeners.
+     */
+    private final Set<XMLNodePreferences> pinned = Collections.newSetFromMap(new IdentityHashMap<>());
+    
+    /**
+     * @return The preferences object of <code>node</code> or null if it has
+     * none.
+     */
+    synchronized XMLNodePreferences get(PreferencesNode node)
+    {
+        expunge();
+        
+        Entry entry = entries.get(node);
+        XMLNodePreferences prefs = entry == null? null : entry.get();
+        
+        if (prefs != null)
+        {
+            used(prefs);
+        }
+        
+        return prefs;
+    }
+    
+    /**
+     * Registers <code>prefs</code> as the preferences object of its node.
+     */
+    synchronized void add(XMLNodePreferences prefs)
+    {
+        expunge();
+        
+        entries.put(prefs.getNode(), new Entry(prefs, collected));
+        used(prefs);
+    }
+    
+    /**
+     * Forgets the preferences object of <code>node</code>; for removed nodes.
+     */
+    synchronized void remove(PreferencesNode node)
+    {
+        Entry entry = entries.remove(node);
+        XMLNodePreferences prefs = entry == null? null : entry.get();
+        
+        if (prefs != null)
+        {
+            pinned.remove(prefs);
+            
+            if (recent != null)
+            {
+                recent.remove(prefs);
+            }
+        }
+    }
+    
+    /**
+     * Keeps <code>prefs</code> while <code>pinned</code> is set, regardless of
+     * the limit; for objects with listeners.
+     */
+    synchronized void setPinned(XMLNodePreferences prefs, boolean pinned)
+    {
+        if (pinned)
+        {
+            this.pinned.add(prefs);
+        }
+        else
+        {
+            this.pinned.remove(prefs);
+        }
+    }
+    
+    /**
+     * @param limit The number of recently used objects to keep; -1 for no
+     * limit.
+     */
+    synchronized void setLimit(int limit)
+    {
+        this.limit = limit;
+        
+        if (limit < 0)
+        {
+            recent = null;
+            return;
+        }
+        
+        LinkedHashMap<XMLNodePreferences, Boolean> previous = recent;
+        recent = new LinkedHashMap<XMLNodePreferences, Boolean>(16, 0.75f, true)
+        {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<XMLNodePreferences, Boolean> eldest)
+            {
+                return size() > NodePreferencesCache.this.limit;
+            }
+        };
+        
+        if (previous != null)
+        {
+            recent.putAll(previous);
+        }
+    }
+    
+    synchronized int getLimit()
+    {
+        return limit;
+    }
+    
+    /**
+     * @return The number of preferences objects that have not been collected.
+     */
+    synchronized int size()
+    {
+        expunge();
+        return entries.size();
+    }
+    
+    private void used(XMLNodePreferences prefs)
+    {
+        if (recent != null)
+        {
+            recent.put(prefs, Boolean.TRUE);
+        }
+    }
+    
+    /**
+     * Removes the entries of collected objects.
+     */
+    private void expunge()
+    {
+        Reference<? extends XMLNodePreferences> reference;
+        
+        while ((reference = collected.poll()) != null)
+        {
+            Entry entry = (Entry) reference;
+            entries.remove(entry.node, entry);
+        }
+    }
+    
+    private static final class Entry extends WeakReference<XMLNodePreferences>
+    {
+        final PreferencesNode node;
+        
+        Entry(XMLNodePreferences prefs, ReferenceQueue<XMLNodePreferences> queue)
+        {
+            super(prefs, queue);
+            this.node = prefs.getNode();
+        }
+    }
+}
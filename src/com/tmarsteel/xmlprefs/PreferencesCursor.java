@@ -0,0 +1,124 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 tobse-local.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.tmarsteel.xmlprefs;
+
+/**
+ * The position of a walk through a preferences tree, see
+ * {@link PreferencesVisitor}. One cursor is moved through the entire walk;
+ * accessors other than {@link #getPath()} do not allocate. They read the
+ * live tree under its lock, so they reflect modifications made since the
+ * walk entered the current node.
+ * @author Tobias Marstaller (<a href="//github.com/tmarsteel">github.com/tmarsteel</a>)
+ */
+public final class PreferencesCursor
+{
+    private final Object treeLock;
+    
+    private PreferencesNode node;
+    private int depth;
+    
+    /**
+     * @param treeLock The lock guarding the tree walked.
+     */
+    PreferencesCursor(Object treeLock)
+    {
+        this.treeLock = treeLock;
+    }
+    
+    void moveTo(PreferencesNode node, int depth)
+    {
+        this.node = node;
+        this.depth = depth;
+    }
+    
+    /**
+     * @return The name of the current node; the empty string for the root of
+     * the backing file.
+     */
+    public String getName()
+    {
+        synchronized (treeLock)
+        {
+            return node.getName();
+        }
+    }
+    
+    /**
+     * @return The path of the current node from the root of the backing
+     * file, built on every call.
+     */
+    public String getPath()
+    {
+        synchronized (treeLock)
+        {
+            return node.getPath();
+        }
+    }
+    
+    /**
+     * @return The depth of the current node below the node the walk started
+     * on, which has depth 0.
+     */
+    public int getDepth()
+    {
+        return depth;
+    }
+    
+    /**
+     * @return The value of the property <code>key</code> of the current node
+     * or <code>def</code> if it is not set.
+     */
+    public String get(String key, String def)
+    {
+        String value;
+        synchronized (treeLock)
+        {
+            value = node.getProperty(key);
+        }
+        
+        return value == null? def : value;
+    }
+    
+    /**
+     * @return The number of properties of the current node.
+     */
+    public int getPropertyCount()
+    {
+        synchronized (treeLock)
+        {
+            return node.getPropertyCount();
+        }
+    }
+    
+    /**
+     * @return The number of child nodes of the current node.
+     */
+    public int getChildCount()
+    {
+        synchronized (treeLock)
+        {
+            return node.getChildCount();
+        }
+    }
+}
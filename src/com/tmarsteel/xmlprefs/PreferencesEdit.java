@@ -0,0 +1,227 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 tobse-local.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.tmarsteel.xmlprefs;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.prefs.BackingStoreException;
+import java.util.prefs.Preferences;
+
+/**
+ * A set of modifications to the properties of any number of nodes that is
+ * applied at once: the changes are applied in one go under the lock of the
+ * tree and listeners receive one
+ * {@link java.util.prefs.PreferenceChangeEvent} per property that actually
+ * changed, carrying its final value. The properties and child nodes of each
+ * affected node are replaced with updated copies, so readers of a node see
+ * either none or all of the changes to it. Obtained through {@link XMLFilePreferences#edit(String)}:
+ * <pre>
+ * prefs.edit("/app/window")
+ *     .put("width", "800")
+ *     .put("height", "600")
+ *     .node("/app/recent").remove("file0")
+ *     .commit();
+ * </pre>
+ * Arguments are checked as they are passed, and a commit either applies all
+ * changes or, if a node cannot be created, none. Missing nodes are created
+ * together with applying the changes.
+ * <br />
+ * The property change events are delivered by a thread of the
+ * {@link XMLFilePreferences} rather than the event thread of
+ * {@link java.util.prefs.AbstractPreferences}, so they are not ordered
+ * relative to the events of individual calls like
+ * {@link Preferences#put(String, String)}. Instances are not thread-safe and
+ * can be committed once.
+ * @author Tobias Marstaller (<a href="//github.com/tmarsteel">github.com/tmarsteel</a>)
+ */
+public final class PreferencesEdit
+{
+    private final XMLFilePreferences preferences;
+    private final String basePath;
+    
+    /**
+     * The changes by absolute node path and key; a null value removes the
+     * property.
+     */
+    private final Map<String, Map<String, String>> changes = new LinkedHashMap<>();
+    private Map<String, String> currentChanges;
+    private String currentPath;
+    private boolean committed = false;
+    
+    /**
+     * @param basePath The absolute path of the node the edit starts on.
+     */
+    PreferencesEdit(XMLFilePreferences preferences, String basePath)
+    {
+        this.preferences = preferences;
+        this.basePath = basePath;
+        this.currentPath = basePath;
+    }
+    
+    /**
+     * Makes the node at <code>path</code> the one subsequent calls to
+     * {@link #put(String, String)} and {@link #remove(String)} apply to.
+     * @param path An absolute path or a path relative to the node the edit
+     * was started on.
+     * @return This edit.
+     */
+    public PreferencesEdit node(String path)
+    {
+        checkNotCommitted();
+        currentPath = resolve(basePath, path);
+        currentChanges = null;
+        
+        return this;
+    }
+    
+    /**
+     * Sets the property <code>key</code> of the current node to
+     * <code>value</code>, replacing changes to it made earlier in this edit.
+     * @return This edit.
+     * @see Preferences#put(String, String)
+     */
+    public PreferencesEdit put(String key, String value)
+    {
+        checkNotCommitted();
+        
+        if (key == null || value == null)
+        {
+            throw new NullPointerException();
+        }
+        
+        if (key.length() > Preferences.MAX_KEY_LENGTH)
+        {
+            throw new IllegalArgumentException("Key too long: " + key);
+        }
+        
+        if (value.length() > Preferences.MAX_VALUE_LENGTH)
+        {
+            throw new IllegalArgumentException("Value too long: " + value);
+        }
+        
+        getCurrentChanges().put(key, value);
+        return this;
+    }
+    
+    /**
+     * Removes the property <code>key</code> of the current node, replacing
+     * changes to it made earlier in this edit.
+     * @return This edit.
+     * @see Preferences#remove(String)
+     */
+    public PreferencesEdit remove(String key)
+    {
+        checkNotCommitted();
+        
+        if (key == null)
+        {
+            throw new NullPointerException();
+        }
+        
+        getCurrentChanges().put(key, null);
+        return this;
+    }
+    
+    /**
+     * Applies the changes. Does not flush.
+     * @throws IllegalStateException If a node to create is the name of a
+     * property or the preferences have been removed; no changes are applied
+     * then.
+     */
+    public void commit()
+    {
+        checkNotCommitted();
+        committed = true;
+        
+        preferences.commit(changes);
+    }
+    
+    /**
+     * Applies the changes and flushes the preferences.
+     * @see #commit()
+     * @see XMLFilePreferences#flush()
+     */
+    public void commitAndFlush()
+        throws BackingStoreException
+    {
+        commit();
+        preferences.flush();
+    }
+    
+    private Map<String, String> getCurrentChanges()
+    {
+        if (currentChanges == null)
+        {
+            currentChanges = changes.computeIfAbsent(currentPath, path -> new LinkedHashMap<>());
+        }
+        
+        return currentChanges;
+    }
+    
+    private void checkNotCommitted()
+    {
+        if (committed)
+        {
+            throw new IllegalStateException("The edit has been committed.");
+        }
+    }
+    
+    /**
+     * Resolves <code>path</code> against the absolute path <code>base</code>.
+     * @throws IllegalArgumentException If <code>path</code> is not a valid path
+     * as defined by {@link Preferences#node(String)}.
+     */
+    static String resolve(String base, String path)
+    {
+        if (path.isEmpty())
+        {
+            return base;
+        }
+        
+        if (path.equals("/"))
+        {
+            return "/";
+        }
+        
+        if (path.endsWith("/") || path.contains("//"))
+        {
+            throw new IllegalArgumentException("Invalid path: " + path);
+        }
+        
+        for (String name : path.split("/"))
+        {
+            if (name.length() > Preferences.MAX_NAME_LENGTH)
+            {
+                throw new IllegalArgumentException("Node name " + name + " too long");
+            }
+        }
+        
+        if (path.startsWith("/"))
+        {
+            return path;
+        }
+        
+        return base.equals("/")? "/" + path : base + "/" + path;
+    }
+}
@@ -0,0 +1,993 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 tobse-local.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.tmarsteel.xmlprefs;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipException;
+import javax.xml.stream.XMLStreamException;
+
+/**
+ * Reads and writes a preferences tree from and to a file. The file is never
+ * written in place: a new version is written to a temporary sibling file
+ * which then replaces the file with an atomic rename, so readers and crashes
+ * only ever see a complete document. Coordinating with other processes is up
+ * to the caller, see {@link #lockShared()} and {@link #lockExclusive()}.
+ * <p>
+ * Modifications can alternatively be appended to a journal next to the file,
+ * see {@link #appendJournal(PreferencesJournal.Entry)}. The journal is
+ * replayed on every read and deleted once the whole tree is written again.
+ * <p>
+ * Optionally, a binary snapshot of the tree is kept next to the file, see
+ * {@link PreferencesSnapshot}; while it is valid, it is read instead of the
+ * file. Alternatively, the file can be read lazily, see
+ * {@link LazyPreferencesReader}.
+ * <p>
+ * The file is written in the {@link FileFormat} set through
+ * {@link #setFormat(FileFormat)}; compressed files are recognized by the gzip
+ * magic number when reading, and are decompressed and verified entirely before
+ * they are parsed.
+ * <p>
+ * With {@link FsyncPolicy#INTERVAL}, a write that was not forced is forced by
+ * a trailing fsync once the interval has passed, or when the JVM exits,
+ * whichever comes first.
+ * @author Tobias Marstaller (<a href="//github.com/tmarsteel">github.com/tmarsteel</a>)
+ */
+final class PreferencesFile
+{
+    private static final Logger LOGGER = Logger.getLogger(PreferencesFile.class.getName());
+    
+    /**
+     * Runs the trailing fsyncs of all files; created on first use. Trailing
+     * fsyncs still pending when the JVM exits are run by a shutdown hook.
+     */
+    private static ScheduledThreadPoolExecutor fsyncExecutor = null;
+    
+    private final Path path;
+    private final PreferencesFileLock lock;
+    private final PreferencesJournal journal;
+    
+    /**
+     * The binary snapshot of the file; null if disabled.
+     */
+    private final PreferencesSnapshot snapshot;
+    
+    private final boolean lazy;
+    
+    /**
+     * Reused for every write so that its encoder and buffers are allocated
+     * only once.
+     */
+    private final PreferencesWriter writer = new PreferencesWriter();
+    
+    private FileFormat format = FileFormat.XML;
+    private FsyncPolicy fsyncPolicy = FsyncPolicy.ALWAYS;
+    private long fsyncIntervalNanos = TimeUnit.SECONDS.toNanos(1);
+    
+    /**
+     * {@link System#nanoTime()} of the last forced write.
+     */
+    private long lastFsync;
+    
+    /**
+     * Whether the file or the journal were written without being forced
+     * since the last forced write.
+     */
+    private boolean unforced = false;
+    private ScheduledFuture<?> trailingFsync = null;
+    
+    /**
+     * The state of the file when it was last read or written through this
+     * object; null if unknown.
+     */
+    private FileState knownState = null;
+    
+    PreferencesFile(Path path, LoadMode loadMode)
+    {
+        this.path = path.toAbsolutePath();
+        this.lock = new PreferencesFileLock(this.path);
+        this.journal = new PreferencesJournal(this.path.resolveSibling(this.path.getFileName() + ".journal"));
+        this.snapshot = loadMode == LoadMode.BINARY_SNAPSHOT? new PreferencesSnapshot(this.path.resolveSibling(this.path.getFileName() + ".bin")) : null;
+        this.lazy = loadMode == LoadMode.LAZY;
+        this.lastFsync = System.nanoTime() - fsyncIntervalNanos;
+    }
+    
+    Path getPath()
+    {
+        return path;
+    }
+    
+    LoadMode getLoadMode()
+    {
+        return lazy? LoadMode.LAZY : snapshot != null? LoadMode.BINARY_SNAPSHOT : LoadMode.EAGER;
+    }
+    
+    /**
+     * Acquires a shared lock on the file for reading it.
+     * @see PreferencesFileLock#acquire(boolean)
+     */
+    PreferencesFileLock.Held lockShared()
+        throws IOException
+    {
+        return lock.acquire(true);
+    }
+    
+    /**
+     * Acquires an exclusive lock on the file for writing it.
+     * @see PreferencesFileLock#acquire(boolean)
+     */
+    PreferencesFileLock.Held lockExclusive()
+        throws IOException
+    {
+        return lock.acquire(false);
+    }
+    
+    void setLockTimeout(long timeout, TimeUnit unit)
+    {
+        lock.setTimeout(timeout, unit);
+    }
+    
+    LockStatistics getLockStatistics()
+    {
+        return lock.getStatistics();
+    }
+    
+    synchronized FileFormat getFormat()
+    {
+        return format;
+    }
+    
+    synchronized void setFormat(FileFormat format)
+    {
+        if (format == null)
+        {
+            throw new NullPointerException();
+        }
+        
+        this.format = format;
+    }
+    
+    synchronized void setFsyncPolicy(FsyncPolicy fsyncPolicy)
+    {
+        if (fsyncPolicy == null)
+        {
+            throw new NullPointerException();
+        }
+        
+        this.fsyncPolicy = fsyncPolicy;
+    }
+    
+    synchronized void setFsyncInterval(long interval, TimeUnit unit)
+    {
+        if (interval < 0)
+        {
+            throw new IllegalArgumentException("The fsync interval must not be negative.");
+        }
+        
+        this.fsyncIntervalNanos = unit.toNanos(interval);
+    }
+    
+    /**
+     * Reads the tree stored in the file and applies the journal to it. If the
+     * binary snapshot is enabled and valid, it is read instead of the file;
+     * if it is enabled but not valid, it is made anew from the file. In lazy
+     * mode, the subtrees of the top-level nodes are not parsed.
+     * @return The root of the tree in the file; an empty root if the file does
+     * not exist.
+     */
+    synchronized PreferencesNode read()
+        throws IOException, XMLStreamException
+    {
+        for (int attempt = 0;;attempt++)
+        {
+            FileState before = FileState.of(path, 0);
+            
+            if (before.isMissing())
+            {
+                knownState = before;
+                
+                PreferencesNode root = new PreferencesNode("");
+                journal.replay(root, before.size, before.checksum);
+                return root;
+            }
+            
+            if (snapshot != null)
+            {
+                PreferencesNode root = readSnapshot(before);
+                
+                if (root != null)
+                {
+                    journal.replay(root, knownState.size, knownState.checksum);
+                    return root;
+                }
+            }
+            
+            if (lazy)
+            {
+                PreferencesNode root = readLazily(before);
+                
+                if (root != null)
+                {
+                    journal.replay(root, knownState.size, knownState.checksum);
+                    return root;
+                }
+            }
+            
+            CRC32 checksum = new CRC32();
+            PreferencesNode root;
+            
+            try (InputStream in = new BufferedInputStream(new CheckedInputStream(Files.newInputStream(path), checksum), 64 * 1024))
+            {
+                root = PreferencesReader.read(isCompressed(in)? new ByteBufferInputStream(inflate(in)) : in);
+                
+                // have the trailing bytes checksummed, too
+                while (in.skip(Long.MAX_VALUE) > 0 || in.read() >= 0);
+            }
+            catch (NoSuchFileException ex)
+            {
+                // replaced while opening it
+                continue;
+            }
+            
+            FileState after = FileState.of(path, checksum.getValue());
+            
+            if (after.isSameFile(before))
+            {
+                knownState = after;
+                
+                if (snapshot != null)
+                {
+                    writeSnapshot(root);
+                }
+                
+                journal.replay(root, after.size, after.checksum);
+                return root;
+            }
+            else if (attempt >= 2)
+            {
+                // keeps changing; make sure it is read again on the next check
+                knownState = null;
+                return root;
+            }
+        }
+    }
+    
+    /**
+     * Reads the binary snapshot if it was made from the version of the file
+     * with the state <code>current</code>; sets {@link #knownState} if so.
+     * A snapshot made while the modification time of the file was racy is
+     * verified against the checksum of the file; once the modification time
+     * is no longer racy, the snapshot is made anew so that later reads can
+     * skip the checksum.
+     * @return The root of the tree in the snapshot or null if it is not valid.
+     */
+    private PreferencesNode readSnapshot(FileState current)
+    {
+        try
+        {
+            PreferencesNode root = snapshot.read(current.size, current.modified);
+            
+            if (root == null || (snapshot.isRacy() && checksum() != snapshot.getFileChecksum()))
+            {
+                return null;
+            }
+            
+            knownState = new FileState(current.size, current.modified, snapshot.getFileChecksum());
+            
+            if (snapshot.isRacy() && !knownState.isRacy())
+            {
+                writeSnapshot(root);
+            }
+            
+            return root;
+        }
+        catch (IOException ex)
+        {
+            LOGGER.log(Level.FINE, "Could not read " + snapshot.getPath(), ex);
+            return null;
+        }
+    }
+    
+    /**
+     * Reads the file into a heap buffer and parses it through
+     * {@link LazyPreferencesReader}, whose unparsed subtrees refer to that
+     * buffer. A memory mapping would tie them to the file, which could then
+     * neither be truncated safely nor be replaced on all platforms. Sets
+     * {@link #knownState} if successful.
+     * @param before The state of the file before reading it.
+     * @return The root of the tree in the file or null if the file was
+     * replaced while reading it or cannot be read lazily.
+     */
+    private PreferencesNode readLazily(FileState before)
+        throws IOException, XMLStreamException
+    {
+        if (before.size > Integer.MAX_VALUE)
+        {
+            return null;
+        }
+        
+        ByteBuffer document = ByteBuffer.allocate((int) before.size);
+        
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ))
+        {
+            while (document.hasRemaining() && channel.read(document) >= 0);
+            
+            if (channel.size() != before.size)
+            {
+                return null;
+            }
+            
+            document.flip();
+        }
+        catch (NoSuchFileException ex)
+        {
+            return null;
+        }
+        
+        CRC32 checksum = new CRC32();
+        checksum.update(document.duplicate());
+        
+        FileState after = FileState.of(path, checksum.getValue());
+        
+        if (!after.isSameFile(before) || after.size != document.limit())
+        {
+            return null;
+        }
+        
+        if (isCompressed(document))
+        {
+            document = inflate(new ByteBufferInputStream(document.duplicate()));
+        }
+        
+        PreferencesNode root = LazyPreferencesReader.read(document);
+        
+        if (root != null)
+        {
+            knownState = after;
+        }
+        
+        return root;
+    }
+    
+    /**
+     * Makes the binary snapshot from the tree rooted at <code>root</code>,
+     * which must equal the contents of the file in the state {@link #knownState}.
+     * Failures are logged only since the file itself is intact.
+     */
+    private void writeSnapshot(PreferencesNode root)
+    {
+        Path tempFile = null;
+        
+        try
+        {
+            tempFile = createTempFile(snapshot.getPath());
+            PreferencesSnapshot.write(tempFile, root, knownState.size, knownState.modified, knownState.checksum, knownState.isRacy());
+            move(tempFile, snapshot.getPath());
+        }
+        catch (IOException | RuntimeException ex)
+        {
+            LOGGER.log(Level.WARNING, "Could not write " + snapshot.getPath(), ex);
+            
+            try
+            {
+                if (tempFile != null)
+                {
+                    Files.deleteIfExists(tempFile);
+                }
+                
+                snapshot.delete();
+            }
+            catch (IOException ex2)
+            {
+                // a stale snapshot is ignored anyway
+            }
+        }
+    }
+    
+    /**
+     * Reads the tree stored in the file if the file was changed since it was
+     * last read or written through this object.
+     * @return The root of the tree in the file or null if the file is unchanged.
+     * @see #hasChanged()
+     */
+    synchronized PreferencesNode readIfChanged()
+        throws IOException, XMLStreamException
+    {
+        return hasChanged()? read() : null;
+    }
+    
+    /**
+     * Returns whether the file or its journal was changed since they were last
+     * read or written through this object. Size and modification time are
+     * checked first; the
+     * contents are checksummed only if the size is the same but the
+     * modification time is not or if the modification time is too close to
+     * when the file was last seen for a change within the same timestamp to
+     * be ruled out.
+     * @return Whether the file was changed since it was last read or written.
+     */
+    synchronized boolean hasChanged()
+        throws IOException
+    {
+        return journal.hasChanged() || hasFileChanged();
+    }
+    
+    private boolean hasFileChanged()
+        throws IOException
+    {
+        FileState current = FileState.of(path, 0);
+        
+        if (knownState == null || current.isMissing() || knownState.isMissing())
+        {
+            return knownState == null || current.isMissing() != knownState.isMissing();
+        }
+        
+        if (current.size != knownState.size)
+        {
+            return true;
+        }
+        
+        if (current.modified == knownState.modified && !knownState.isRacy())
+        {
+            return false;
+        }
+        
+        long checksum = checksum();
+        
+        if (checksum != knownState.checksum)
+        {
+            return true;
+        }
+        
+        knownState = new FileState(current.size, current.modified, checksum);
+        return false;
+    }
+    
+    /**
+     * @return The CRC-32 of the contents of the file.
+     */
+    private long checksum()
+        throws IOException
+    {
+        CRC32 checksum = new CRC32();
+        ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ))
+        {
+            while (channel.read(buffer) >= 0)
+            {
+                buffer.flip();
+                checksum.update(buffer);
+                buffer.clear();
+            }
+        }
+        
+        return checksum.getValue();
+    }
+    
+    /**
+     * Replaces the contents of the file with the tree rooted at <code>root</code>
+     * and deletes the journal, which the new contents include.
+     * @return The number of bytes written.
+     */
+    synchronized long write(PreferencesNode root)
+        throws IOException
+    {
+        Path tempFile = createTempFile(path);
+        boolean forced = false;
+        long size;
+        long checksum;
+        
+        try
+        {
+            try (FileChannel channel = FileChannel.open(tempFile, StandardOpenOption.WRITE))
+            {
+                if (format == FileFormat.GZIP)
+                {
+                    CRC32 fileChecksum = new CRC32();
+                    GZIPOutputStream out = new GZIPOutputStream(new CheckedOutputStream(Channels.newOutputStream(channel), fileChecksum), 64 * 1024)
+                    {
+                        {
+                            // files are written on every flush; higher levels take about three
+                            // times as long for a few percent less
+                            def.setLevel(Deflater.BEST_SPEED);
+                        }
+                    };
+                    
+                    writer.write(root, Channels.newChannel(out));
+                    out.finish();
+                    
+                    size = channel.size();
+                    checksum = fileChecksum.getValue();
+                }
+                else
+                {
+                    size = writer.write(root, channel);
+                    checksum = writer.getChecksum();
+                }
+                
+                if (isFsyncDue())
+                {
+                    channel.force(true);
+                    forced = true;
+                }
+            }
+            
+            copyPermissions(tempFile);
+            move(tempFile, path);
+        }
+        catch (IOException | RuntimeException ex)
+        {
+            Files.deleteIfExists(tempFile);
+            throw ex;
+        }
+        
+        if (forced)
+        {
+            forceDirectory();
+            fsynced();
+        }
+        else
+        {
+            unforced();
+        }
+        
+        knownState = FileState.of(path, checksum);
+        journal.delete();
+        
+        if (snapshot != null)
+        {
+            writeSnapshot(root);
+        }
+        
+        return size;
+    }
+    
+    /**
+     * Deletes the file together with its journal and binary snapshot.
+     */
+    synchronized void delete()
+        throws IOException
+    {
+        Files.deleteIfExists(path);
+        journal.delete();
+        
+        if (snapshot != null)
+        {
+            snapshot.delete();
+        }
+        
+        knownState = null;
+    }
+    
+    /**
+     * @return The size of the file when it was last read or written through
+     * this object; -1 if it did not exist or is unknown.
+     */
+    synchronized long getSize()
+    {
+        return knownState == null? -1 : knownState.size;
+    }
+    
+    /**
+     * @return Whether modifications can be appended to the journal, which
+     * requires the state of the file to be known.
+     */
+    synchronized boolean canAppendJournal()
+    {
+        return knownState != null;
+    }
+    
+    /**
+     * Appends <code>entry</code> to the journal. The journal is started anew
+     * if it does not belong to the current contents of the file.
+     * @return The size of the journal after appending.
+     */
+    synchronized long appendJournal(PreferencesJournal.Entry entry)
+        throws IOException
+    {
+        if (knownState == null)
+        {
+            throw new IllegalStateException("The state of the file is unknown.");
+        }
+        
+        boolean force = isFsyncDue();
+        
+        if (force && unforced)
+        {
+            // the journal is only durable along with the file it belongs to
+            forceFile();
+        }
+        
+        long size = journal.append(entry, knownState.size, knownState.checksum, force);
+        
+        if (force)
+        {
+            fsynced();
+        }
+        else
+        {
+            unforced();
+        }
+        
+        return size;
+    }
+    
+    /**
+     * Forces the file and the journal to the storage device if they were
+     * written without being forced according to {@link FsyncPolicy#INTERVAL}.
+     */
+    synchronized void force()
+        throws IOException
+    {
+        if (!unforced)
+        {
+            return;
+        }
+        
+        forceFile();
+        journal.force();
+        fsynced();
+    }
+    
+    private void forceQuietly()
+    {
+        try
+        {
+            force();
+        }
+        catch (IOException ex)
+        {
+            LOGGER.log(Level.WARNING, "Could not force " + path + " to the storage device", ex);
+        }
+    }
+    
+    private void forceFile()
+        throws IOException
+    {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ))
+        {
+            channel.force(true);
+        }
+        catch (NoSuchFileException ex)
+        {
+            // deleted in the meantime
+        }
+        
+        forceDirectory();
+    }
+    
+    private void fsynced()
+    {
+        lastFsync = System.nanoTime();
+        unforced = false;
+        
+        if (trailingFsync != null)
+        {
+            trailingFsync.cancel(false);
+            trailingFsync = null;
+        }
+    }
+    
+    /**
+     * Notes a write that was not forced and schedules the trailing fsync for
+     * it, if the policy asks for one.
+     */
+    private void unforced()
+    {
+        if (fsyncPolicy != FsyncPolicy.INTERVAL)
+        {
+            return;
+        }
+        
+        unforced = true;
+        
+        if (trailingFsync == null)
+        {
+            long delay = lastFsync + fsyncIntervalNanos - System.nanoTime();
+            
+            try
+            {
+                trailingFsync = getFsyncExecutor().schedule(this::forceQuietly, Math.max(delay, 0), TimeUnit.NANOSECONDS);
+            }
+            catch (RejectedExecutionException ex)
+            {
+                // the JVM is exiting
+                forceQuietly();
+            }
+        }
+    }
+    
+    private static synchronized ScheduledThreadPoolExecutor getFsyncExecutor()
+    {
+        if (fsyncExecutor == null)
+        {
+            ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, (Runnable r) -> {
+                Thread thread = new Thread(r, "xmlprefs-fsync");
+                thread.setDaemon(true);
+                return thread;
+            });
+            executor.setRemoveOnCancelPolicy(true);
+            executor.setKeepAliveTime(10, TimeUnit.SECONDS);
+            executor.allowCoreThreadTimeOut(true);
+            
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                for (Runnable pending : executor.shutdownNow())
+                {
+                    pending.run();
+                }
+            }, "xmlprefs-fsync-shutdown"));
+            
+            fsyncExecutor = executor;
+        }
+        
+        return fsyncExecutor;
+    }
+    
+    /**
+     * @return The size of the journal in bytes; 0 if there is none.
+     */
+    synchronized long getJournalSize()
+    {
+        return journal.getSize();
+    }
+    
+    private boolean isFsyncDue()
+    {
+        switch (fsyncPolicy)
+        {
+            case ALWAYS:   return true;
+            case INTERVAL: return System.nanoTime() - lastFsync >= fsyncIntervalNanos;
+            default:       return false;
+        }
+    }
+    
+    /**
+     * @return Whether the next bytes of <code>in</code> are the gzip magic
+     * number; <code>in</code> must support {@link InputStream#mark(int)}.
+     */
+    private static boolean isCompressed(InputStream in)
+        throws IOException
+    {
+        in.mark(2);
+        boolean compressed = in.read() == 0x1f && in.read() == 0x8b;
+        in.reset();
+        
+        return compressed;
+    }
+    
+    /**
+     * @return Whether <code>document</code> starts with the gzip magic number.
+     */
+    private static boolean isCompressed(ByteBuffer document)
+    {
+        return document.limit() >= 2 && document.get(0) == (byte) 0x1f && document.get(1) == (byte) 0x8b;
+    }
+    
+    /**
+     * Decompresses the gzip stream <code>in</code> entirely, which verifies
+     * the checksum and length of the contents.
+     * @throws ZipException If the stream is corrupt or truncated.
+     */
+    private ByteBuffer inflate(InputStream in)
+        throws IOException
+    {
+        byte[] buffer = new byte[64 * 1024];
+        int length = 0;
+        
+        try
+        {
+            InputStream gzip = new GZIPInputStream(in, 64 * 1024);
+            int read;
+            
+            while ((read = gzip.read(buffer, length, buffer.length - length)) >= 0)
+            {
+                length += read;
+                
+                if (length == buffer.length)
+                {
+                    if (length > Integer.MAX_VALUE / 2)
+                    {
+                        throw new IOException(path + " is too large to be decompressed.");
+                    }
+                    
+                    buffer = Arrays.copyOf(buffer, 2 * length);
+                }
+            }
+        }
+        catch (ZipException | EOFException ex)
+        {
+            ZipException corrupt = new ZipException(path + " is corrupt: " + ex.getMessage());
+            corrupt.initCause(ex);
+            throw corrupt;
+        }
+        
+        return ByteBuffer.wrap(buffer, 0, length);
+    }
+    
+    /**
+     * Creates a new, empty file next to <code>target</code>. Unlike
+     * {@link Files#createTempFile}, the file gets the default permissions.
+     */
+    private static Path createTempFile(Path target)
+        throws IOException
+    {
+        while (true)
+        {
+            Path tempFile = target.resolveSibling(target.getFileName() + "." +
+                Long.toHexString(ThreadLocalRandom.current().nextLong() & Long.MAX_VALUE) + ".tmp");
+            
+            try
+            {
+                return Files.createFile(tempFile);
+            }
+            catch (FileAlreadyExistsException ex)
+            {
+                // try another name
+            }
+        }
+    }
+    
+    /**
+     * Replaces <code>target</code> with <code>tempFile</code>, atomically
+     * where supported.
+     */
+    private static void move(Path tempFile, Path target)
+        throws IOException
+    {
+        try
+        {
+            Files.move(tempFile, target, StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (AtomicMoveNotSupportedException ex)
+        {
+            Files.move(tempFile, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+    
+    /**
+     * Gives <code>tempFile</code> the POSIX permissions of the current backing
+     * file, if there is one and the file system supports them.
+     */
+    private void copyPermissions(Path tempFile)
+    {
+        try
+        {
+            Files.setPosixFilePermissions(tempFile, Files.getPosixFilePermissions(path));
+        }
+        catch (IOException | UnsupportedOperationException ex)
+        {
+            // keep the default permissions
+        }
+    }
+    
+    /**
+     * Forces the directory entry of the renamed file to the storage device.
+     * Not all platforms support this; it is skipped where they don't.
+     */
+    private void forceDirectory()
+    {
+        try (FileChannel directory = FileChannel.open(path.getParent(), StandardOpenOption.READ))
+        {
+            directory.force(true);
+        }
+        catch (IOException ex)
+        {
+            // not supported on this platform
+        }
+    }
+    
+    /**
+     * Size, modification time and checksum of the file at some point in time.
+     */
+    private static final class FileState
+    {
+        /**
+         * Modification times closer than this to the time they were observed
+         * at may be shared by a later modification.
+         */
+        private static final long TIMESTAMP_GRANULARITY_MILLIS = 2000;
+        
+        /**
+         * The size of the file or -1 if it does not exist.
+         */
+        final long size;
+        final long modified;
+        final long checksum;
+        
+        /**
+         * {@link System#currentTimeMillis()} when this state was observed.
+         */
+        final long observed;
+        
+        FileState(long size, long modified, long checksum)
+        {
+            this.size = size;
+            this.modified = modified;
+            this.checksum = checksum;
+            this.observed = System.currentTimeMillis();
+        }
+        
+        static FileState of(Path path, long checksum)
+            throws IOException
+        {
+            try
+            {
+                BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+                
+                return new FileState(attributes.size(), attributes.lastModifiedTime().toMillis(), checksum);
+            }
+            catch (NoSuchFileException ex)
+            {
+                return new FileState(-1, 0, 0);
+            }
+        }
+        
+        boolean isMissing()
+        {
+            return size < 0;
+        }
+        
+        boolean isSameFile(FileState other)
+        {
+            return size == other.size && modified == other.modified;
+        }
+        
+        /**
+         * @return Whether the file could have been modified again after this
+         * state was observed without changing its modification time.
+         */
+        boolean isRacy()
+        {
+            return observed - modified < TIMESTAMP_GRANULARITY_MILLIS;
+        }
+    }
+}
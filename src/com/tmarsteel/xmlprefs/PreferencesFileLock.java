@@ -0,0 +1,333 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 tobse-local.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.tmarsteel.xmlprefs;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileSystemException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Coordinates access to a preferences file between processes through a
+ * {@link java.nio.channels.FileLock} on a sibling lock file; the preferences file itself cannot
+ * be locked as it is replaced on every write. As file locks are held on
+ * behalf of the whole JVM, the threads of this JVM are additionally
+ * serialized through a lock shared by all instances for the same file.
+ * @author Tobias Marstaller (<a href="//github.com/tmarsteel">github.com/tmarsteel</a>)
+ */
+final class PreferencesFileLock
+{
+    /**
+     * The JVM-wide locks by lock file, referred to weakly so that the locks of
+     * files no longer used are dropped; every instance refers to its lock
+     * strongly. Guarded by the class.
+     */
+    private static final Map<Path, ProcessLockReference> PROCESS_LOCKS = new HashMap<>();
+    private static final ReferenceQueue<ReentrantLock> CLEARED_PROCESS_LOCKS = new ReferenceQueue<>();
+    
+    private static final long MAX_POLL_INTERVAL_MILLIS = 50;
+    
+    private final Path lockFile;
+    private final ReentrantLock processLock;
+    private volatile long timeoutNanos = TimeUnit.SECONDS.toNanos(10);
+    
+    private final LongAdder acquisitions = new LongAdder();
+    private final LongAdder contendedAcquisitions = new LongAdder();
+    private final LongAdder timeouts = new LongAdder();
+    private final LongAdder totalWaitNanos = new LongAdder();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+    
+    /**
+     * @param file The file to coordinate access to.
+     */
+    PreferencesFileLock(Path file)
+    {
+        Path absoluteFile = file.toAbsolutePath().normalize();
+        
+        this.lockFile = absoluteFile.resolveSibling(absoluteFile.getFileName() + ".lock");
+        this.processLock = processLock(lockFile);
+    }
+    
+    /**
+     * @return The JVM-wide lock for <code>lockFile</code>.
+     */
+    private static synchronized ReentrantLock processLock(Path lockFile)
+    {
+        Reference<? extends ReentrantLock> cleared;
+        while ((cleared = CLEARED_PROCESS_LOCKS.poll()) != null)
+        {
+            ProcessLockReference reference = (ProcessLockReference) cleared;
+            PROCESS_LOCKS.remove(reference.lockFile, reference);
+        }
+        
+        ProcessLockReference reference = PROCESS_LOCKS.get(lockFile);
+        ReentrantLock lock = reference == null? null : reference.get();
+        
+        if (lock == null)
+        {
+            lock = new ReentrantLock();
+            PROCESS_LOCKS.put(lockFile, new ProcessLockReference(lockFile, lock));
+        }
+        
+        return lock;
+    }
+    
+    void setTimeout(long timeout, TimeUnit unit)
+    {
+        if (timeout < 0)
+        {
+            throw new IllegalArgumentException("The lock timeout must not be negative.");
+        }
+        
+        this.timeoutNanos = unit.toNanos(timeout);
+    }
+    
+    LockStatistics getStatistics()
+    {
+        return new LockStatistics(acquisitions.sum(), contendedAcquisitions.sum(), timeouts.sum(),
+            totalWaitNanos.sum(), maxWaitNanos.get());
+    }
+    
+    /**
+     * Acquires the lock, waiting at most for the lock timeout. A shared lock
+     * for reading is also granted if the lock file cannot be created, e.g.
+     * because the directory is read-only; it then only excludes the threads of
+     * this JVM.
+     * @param shared Whether to acquire a shared lock for reading rather than an
+     * exclusive one for writing.
+     * @return The held lock; closing it releases the lock.
+     * @throws IOException If the lock could not be acquired within the timeout
+     * or the lock file could not be opened.
+     */
+    Held acquire(boolean shared)
+        throws IOException
+    {
+        long start = System.nanoTime();
+        long deadline = start + timeoutNanos;
+        boolean contended = false;
+        
+        try
+        {
+            if (!processLock.tryLock())
+            {
+                contended = true;
+                
+                if (!processLock.tryLock(timeoutNanos, TimeUnit.NANOSECONDS))
+                {
+                    throw timedOut(start);
+                }
+            }
+        }
+        catch (InterruptedException ex)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the lock on " + lockFile);
+        }
+        
+        FileChannel channel = null;
+        
+        try
+        {
+            channel = openChannel(shared);
+            
+            if (channel != null)
+            {
+                long pollInterval = 1;
+                
+                while (channel.tryLock(0, Long.MAX_VALUE, shared) == null)
+                {
+                    contended = true;
+                    long remainingNanos = deadline - System.nanoTime();
+                    
+                    if (remainingNanos <= 0)
+                    {
+                        throw timedOut(start);
+                    }
+                    
+                    Thread.sleep(Math.min(pollInterval, TimeUnit.NANOSECONDS.toMillis(remainingNanos) + 1));
+                    pollInterval = Math.min(pollInterval * 2, MAX_POLL_INTERVAL_MILLIS);
+                }
+            }
+            
+            recordAcquisition(start, contended);
+            
+            return new Held(channel);
+        }
+        catch (InterruptedException ex)
+        {
+            release(channel);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the lock on " + lockFile);
+        }
+        catch (IOException | RuntimeException ex)
+        {
+            release(channel);
+            throw ex;
+        }
+    }
+    
+    /**
+     * Releases the locks taken by a failed {@link #acquire(boolean)}.
+     */
+    private void release(FileChannel channel)
+        throws IOException
+    {
+        try
+        {
+            if (channel != null)
+            {
+                channel.close();
+            }
+        }
+        finally
+        {
+            processLock.unlock();
+        }
+    }
+    
+    /**
+     * Opens the lock file, creating it if necessary.
+     * @return The channel to lock or null if a shared lock was requested but
+     * the lock file could neither be created nor opened.
+     */
+    private FileChannel openChannel(boolean shared)
+        throws IOException
+    {
+        try
+        {
+            return FileChannel.open(lockFile, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+        }
+        catch (FileSystemException ex)
+        {
+            if (!shared)
+            {
+                throw ex;
+            }
+        }
+        
+        try
+        {
+            return FileChannel.open(lockFile, StandardOpenOption.READ);
+        }
+        catch (FileSystemException ex)
+        {
+            return null;
+        }
+    }
+    
+    private void recordAcquisition(long start, boolean contended)
+    {
+        long waited = System.nanoTime() - start;
+        
+        acquisitions.increment();
+        totalWaitNanos.add(waited);
+        
+        if (contended)
+        {
+            contendedAcquisitions.increment();
+        }
+        
+        long max;
+        while (waited > (max = maxWaitNanos.get()) && !maxWaitNanos.compareAndSet(max, waited));
+    }
+    
+    private IOException timedOut(long start)
+    {
+        timeouts.increment();
+        totalWaitNanos.add(System.nanoTime() - start);
+        
+        return new IOException("Timed out after " + TimeUnit.NANOSECONDS.toMillis(timeoutNanos) +
+            "ms waiting for the lock on " + lockFile);
+    }
+    
+    private static final class ProcessLockReference extends WeakReference<ReentrantLock>
+    {
+        final Path lockFile;
+        
+        ProcessLockReference(Path lockFile, ReentrantLock lock)
+        {
+            super(lock, CLEARED_PROCESS_LOCKS);
+            this.lockFile = lockFile;
+        }
+    }
+    
+    /**
+     * A held lock. It is usually held by a try-with-resources statement that
+     * never references it, which its users suppress the <code>try</code> lint
+     * warning for.
+     */
+    final class Held implements Closeable
+    {
+        /**
+         * The channel holding the file lock; null if there is none.
+         */
+        private final FileChannel channel;
+        private boolean released = false;
+        
+        private Held(FileChannel channel)
+        {
+            this.channel = channel;
+        }
+        
+        /**
+         * Releases the lock.
+         */
+        @Override
+        public void close()
+            throws IOException
+        {
+            if (released)
+            {
+                return;
+            }
+            
+            released = true;
+            
+            try
+            {
+                if (channel != null)
+                {
+                    // closing the channel releases the file lock
+                    channel.close();
+                }
+            }
+            finally
+            {
+                processLock.unlock();
+            }
+        }
+    }
+}
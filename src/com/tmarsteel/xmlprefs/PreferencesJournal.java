@@ -0,0 +1,432 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 tobse-local.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.tmarsteel.xmlprefs;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only log of modifications to a preferences file. Each entry holds
+ * the modifications of one flush; it is checksummed so that an entry torn by
+ * a crash is recognized and ignored along with everything after it. The
+ * header of the journal identifies the version of the preferences file the
+ * entries apply to by its size and checksum; a journal that does not match
+ * the preferences file (because the file was rewritten since) is stale and
+ * ignored.
+ * @author Tobias Marstaller (<a href="//github.com/tmarsteel">github.com/tmarsteel</a>)
+ */
+final class PreferencesJournal
+{
+    private static final int MAGIC = 0x58504A31; // XPJ1
+    private static final int HEADER_LENGTH = 4 + 8 + 8;
+    private static final int ENTRY_HEADER_LENGTH = 4 + 4;
+    
+    private static final byte PUT = 1;
+    private static final byte REMOVE = 2;
+    private static final byte ADD_NODE = 3;
+    private static final byte REMOVE_NODE = 4;
+    
+    private final Path path;
+    
+    /**
+     * The length of the valid part of the journal as last read or written
+     * through this object; -1 if the journal did not exist or was stale.
+     */
+    private long validLength = -1;
+    
+    /**
+     * Size and modification time of the journal when it was last read or
+     * written through this object; the size is -1 if it did not exist.
+     */
+    private long knownSize = -1;
+    private long knownModified = 0;
+    
+    PreferencesJournal(Path path)
+    {
+        this.path = path;
+    }
+    
+    /**
+     * @return The size of the journal as last read or written through this
+     * object; 0 if it did not exist.
+     */
+    long getSize()
+    {
+        return Math.max(validLength, 0);
+    }
+    
+    /**
+     * @return Whether the journal was modified since it was last read or
+     * written through this object.
+     */
+    boolean hasChanged()
+        throws IOException
+    {
+        try
+        {
+            BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+            
+            return attributes.size() != knownSize || attributes.lastModifiedTime().toMillis() != knownModified;
+        }
+        catch (NoSuchFileException ex)
+        {
+            return knownSize >= 0;
+        }
+    }
+    
+    /**
+     * Applies the modifications in the journal to the tree rooted at
+     * <code>root</code> if the journal belongs to the version of the
+     * preferences file with the given size and checksum.
+     */
+    void replay(PreferencesNode root, long baseSize, long baseChecksum)
+        throws IOException
+    {
+        validLength = -1;
+        
+        byte[] bytes;
+        try
+        {
+            bytes = Files.readAllBytes(path);
+        }
+        catch (NoSuchFileException ex)
+        {
+            knownSize = -1;
+            return;
+        }
+        
+        rememberState();
+        
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        
+        if (buffer.remaining() < HEADER_LENGTH || buffer.getInt() != MAGIC
+            || buffer.getLong() != baseSize || buffer.getLong() != baseChecksum)
+        {
+            // stale
+            return;
+        }
+        
+        CRC32 checksum = new CRC32();
+        int valid = HEADER_LENGTH;
+        
+        while (buffer.remaining() >= ENTRY_HEADER_LENGTH)
+        {
+            int length = buffer.getInt();
+            int entryChecksum = buffer.getInt();
+            
+            if (length < 0 || length > buffer.remaining())
+            {
+                break;
+            }
+            
+            checksum.reset();
+            checksum.update(bytes, buffer.position(), length);
+            
+            if ((int) checksum.getValue() != entryChecksum)
+            {
+                break;
+            }
+            
+            ByteBuffer entry = buffer.slice();
+            entry.limit(length);
+            apply(root, entry);
+            
+            buffer.position(buffer.position() + length);
+            valid = buffer.position();
+        }
+        
+        validLength = valid;
+    }
+    
+    /**
+     * Appends <code>entry</code>. If the journal does not exist or is stale,
+     * it is started anew for the version of the preferences file with the
+     * given size and checksum; a torn entry at its end is cut off.
+     * @param force Whether to force the entry to the storage device.
+     * @return The size of the journal after appending.
+     */
+    long append(Entry entry, long baseSize, long baseChecksum, boolean force)
+        throws IOException
+    {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE))
+        {
+            long size = channel.size();
+            
+            if (validLength < 0 || size < validLength)
+            {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+                header.putInt(MAGIC).putLong(baseSize).putLong(baseChecksum).flip();
+                
+                channel.truncate(0);
+                writeFully(channel, header, 0);
+                validLength = HEADER_LENGTH;
+            }
+            else if (size > validLength)
+            {
+                channel.truncate(validLength);
+            }
+            
+            writeFully(channel, entry.toByteBuffer(), validLength);
+            
+            if (force)
+            {
+                channel.force(false);
+            }
+            
+            validLength = channel.size();
+        }
+        
+        rememberState();
+        
+        return validLength;
+    }
+    
+    /**
+     * Forces the journal to the storage device, if it exists.
+     */
+    void force()
+        throws IOException
+    {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ))
+        {
+            channel.force(false);
+        }
+        catch (NoSuchFileException ex)
+        {
+            // nothing to force
+        }
+    }
+    
+    /**
+     * Deletes the journal, if it exists.
+     */
+    void delete()
+        throws IOException
+    {
+        Files.deleteIfExists(path);
+        validLength = -1;
+        knownSize = -1;
+    }
+    
+    private void rememberState()
+        throws IOException
+    {
+        BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        knownSize = attributes.size();
+        knownModified = attributes.lastModifiedTime().toMillis();
+    }
+    
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position)
+        throws IOException
+    {
+        while (buffer.hasRemaining())
+        {
+            position += channel.write(buffer, position);
+        }
+    }
+    
+    /**
+     * Decodes the operations of one entry and applies them to the tree rooted
+     * at <code>root</code>.
+     */
+    private static void apply(PreferencesNode root, ByteBuffer entry)
+    {
+        int operations = entry.getInt();
+        
+        for (int i = 0;i < operations;i++)
+        {
+            byte type = entry.get();
+            String path = readString(entry);
+            
+            switch (type)
+            {
+                case PUT:
+                {
+                    String key = readString(entry);
+                    String value = readString(entry);
+                    resolve(root, path, true).setProperty(key, value);
+                    break;
+                }
+                case REMOVE:
+                {
+                    String key = readString(entry);
+                    PreferencesNode node = resolve(root, path, false);
+                    if (node != null)
+                    {
+                        node.removeProperty(key);
+                    }
+                    break;
+                }
+                case ADD_NODE:
+                    resolve(root, path, true);
+                    break;
+                case REMOVE_NODE:
+                {
+                    PreferencesNode node = resolve(root, path, false);
+                    if (node != null)
+                    {
+                        node.remove();
+                    }
+                    break;
+                }
+                default:
+                    throw new IllegalStateException("Unknown journal operation " + type);
+            }
+        }
+    }
+    
+    /**
+     * Returns the node at the absolute <code>path</code> below <code>root</code>.
+     * @param create Whether to create missing nodes along the path.
+     * @return The node or null if it does not exist and <code>create</code> is
+     * not set.
+     */
+    private static PreferencesNode resolve(PreferencesNode root, String path, boolean create)
+    {
+        PreferencesNode node = root;
+        
+        for (String name : path.split("/"))
+        {
+            if (name.isEmpty())
+            {
+                continue;
+            }
+            
+            PreferencesNode child = node.getChild(name);
+            
+            if (child == null)
+            {
+                if (!create)
+                {
+                    return null;
+                }
+                
+                child = node.getOrAddChild(name);
+            }
+            
+            node = child;
+        }
+        
+        return node;
+    }
+    
+    private static String readString(ByteBuffer buffer)
+    {
+        int length = buffer.getInt();
+        String str = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, StandardCharsets.UTF_8);
+        buffer.position(buffer.position() + length);
+        
+        return str;
+    }
+    
+    /**
+     * The modifications of one flush, in the order they are to be applied.
+     */
+    static final class Entry
+    {
+        private byte[] bytes = new byte[256];
+        private int length = ENTRY_HEADER_LENGTH + 4;
+        private int operations = 0;
+        
+        void put(String path, String key, String value)
+        {
+            add(PUT, path);
+            writeString(key);
+            writeString(value);
+        }
+        
+        void remove(String path, String key)
+        {
+            add(REMOVE, path);
+            writeString(key);
+        }
+        
+        void addNode(String path)
+        {
+            add(ADD_NODE, path);
+        }
+        
+        void removeNode(String path)
+        {
+            add(REMOVE_NODE, path);
+        }
+        
+        boolean isEmpty()
+        {
+            return operations == 0;
+        }
+        
+        private void add(byte type, String path)
+        {
+            ensureCapacity(1);
+            bytes[length++] = type;
+            writeString(path);
+            operations++;
+        }
+        
+        private void writeString(String str)
+        {
+            byte[] encoded = str.getBytes(StandardCharsets.UTF_8);
+            
+            ensureCapacity(4 + encoded.length);
+            ByteBuffer.wrap(bytes, length, 4).putInt(encoded.length);
+            System.arraycopy(encoded, 0, bytes, length + 4, encoded.length);
+            length += 4 + encoded.length;
+        }
+        
+        private void ensureCapacity(int additional)
+        {
+            if (length + additional > bytes.length)
+            {
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + additional));
+            }
+        }
+        
+        /**
+         * @return The encoded entry including its length and checksum.
+         */
+        ByteBuffer toByteBuffer()
+        {
+            int payloadLength = length - ENTRY_HEADER_LENGTH;
+            
+            ByteBuffer.wrap(bytes, ENTRY_HEADER_LENGTH, 4).putInt(operations);
+            
+            CRC32 checksum = new CRC32();
+            checksum.update(bytes, ENTRY_HEADER_LENGTH, payloadLength);
+            
+            ByteBuffer.wrap(bytes, 0, ENTRY_HEADER_LENGTH).putInt(payloadLength).putInt((int) checksum.getValue());
+            
+            return ByteBuffer.wrap(bytes, 0, length);
+        }
+    }
+}
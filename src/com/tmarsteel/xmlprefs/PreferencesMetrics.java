@@ -0,0 +1,356 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 tobse-local.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.tmarsteel.xmlprefs;
+
+import java.lang.management.ManagementFactory;
+import java.lang.ref.Cleaner;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+/**
+ * Collects the metrics of an {@link XMLFilePreferences} and exposes them
+ * through JMX. Recording is allocation-free; the callers skip it entirely
+ * while metrics are disabled.
+ * <br />
+ * The registered MBean refers to the preferences only weakly, so that it does
+ * not keep their tree reachable; it is unregistered once they are garbage
+ * collected.
+ * @author Tobias Marstaller (<a href="//github.com/tmarsteel">github.com/tmarsteel</a>)
+ */
+final class PreferencesMetrics implements PreferencesMetricsMXBean
+{
+    private static final Logger LOGGER = Logger.getLogger(PreferencesMetrics.class.getName());
+    
+    private final WeakReference<XMLFilePreferences> preferences;
+    
+    final LatencyHistogram gets = new LatencyHistogram();
+    final LatencyHistogram puts = new LatencyHistogram();
+    final LatencyHistogram removes = new LatencyHistogram();
+    final LatencyHistogram loads = new LatencyHistogram();
+    final LatencyHistogram flushes = new LatencyHistogram();
+    
+    private final LongAdder childCreations = new LongAdder();
+    private final LongAdder skippedFlushes = new LongAdder();
+    private final LongAdder bytesWritten = new LongAdder();
+    private volatile long lastLoadBytes = 0;
+    private volatile long lastLoadNodes = 0;
+    
+    /**
+     * The name this is registered under with the platform MBean server; null
+     * if not registered.
+     */
+    private ObjectName objectName = null;
+    
+    /**
+     * The absolute path of the backing file; set on the first registration.
+     */
+    private volatile String backingFile = null;
+    
+    /**
+     * Unregisters this once the preferences are garbage collected; null until
+     * the first registration.
+     */
+    private Cleaner.Cleanable cleanable = null;
+    
+    PreferencesMetrics(XMLFilePreferences preferences)
+    {
+        this.preferences = new WeakReference<>(preferences);
+    }
+    
+    void childCreated()
+    {
+        childCreations.increment();
+    }
+    
+    void loaded(long nanos, long bytes, long nodes)
+    {
+        loads.record(nanos);
+        lastLoadBytes = bytes;
+        lastLoadNodes = nodes;
+    }
+    
+    void flushed(long nanos, long bytes)
+    {
+        flushes.record(nanos);
+        bytesWritten.add(bytes);
+    }
+    
+    void flushSkipped()
+    {
+        skippedFlushes.increment();
+    }
+    
+    PreferencesStatistics getStatistics()
+    {
+        return new PreferencesStatistics(gets.getStatistics(), puts.getStatistics(), removes.getStatistics(),
+            childCreations.sum(), loads.getStatistics(), lastLoadBytes, lastLoadNodes,
+            flushes.getStatistics(), skippedFlushes.sum(), bytesWritten.sum(), getLockStatistics());
+    }
+    
+    /**
+     * @return The lock statistics of the preferences; all zero once they are
+     * garbage collected.
+     */
+    private LockStatistics getLockStatistics()
+    {
+        XMLFilePreferences preferences = this.preferences.get();
+        
+        return preferences == null? new LockStatistics(0, 0, 0, 0, 0) : preferences.getLockStatistics();
+    }
+    
+    /**
+     * Registers this with the platform MBean server unless it is registered
+     * already. If another instance for the same file is registered, an
+     * <code>instance</code> key is added to the name. Failures are logged.
+     */
+    synchronized void register()
+    {
+        XMLFilePreferences preferences = this.preferences.get();
+        
+        if (objectName != null || preferences == null)
+        {
+            return;
+        }
+        
+        if (cleanable == null)
+        {
+            backingFile = preferences.getBackingFile().getAbsolutePath();
+            cleanable = Cleanup.CLEANER.register(preferences, this::unregister);
+        }
+        
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        String baseName = "com.tmarsteel.xmlprefs:type=XMLFilePreferences,file=" + ObjectName.quote(getBackingFile());
+        
+        try
+        {
+            for (int instance = 1;objectName == null;instance++)
+            {
+                ObjectName name = new ObjectName(instance == 1? baseName : baseName + ",instance=" + instance);
+                
+                try
+                {
+                    server.registerMBean(new StandardMBean(this, PreferencesMetricsMXBean.class, true), name);
+                    objectName = name;
+                }
+                catch (InstanceAlreadyExistsException ex)
+                {
+                    // try the next instance number
+                }
+            }
+        }
+        catch (JMException ex)
+        {
+            LOGGER.log(Level.WARNING, "Could not register the metrics of " + getBackingFile() + " with JMX", ex);
+        }
+    }
+    
+    synchronized void unregister()
+    {
+        if (objectName == null)
+        {
+            return;
+        }
+        
+        try
+        {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+        }
+        catch (JMException ex)
+        {
+            LOGGER.log(Level.FINE, "Could not unregister " + objectName, ex);
+        }
+        
+        objectName = null;
+    }
+    
+    @Override
+    public String getBackingFile()
+    {
+        return backingFile;
+    }
+    
+    @Override
+    public long getGetCount()
+    {
+        return gets.getStatistics().getCount();
+    }
+    
+    @Override
+    public long getGetMeanMicros()
+    {
+        return gets.getStatistics().getMeanTime(TimeUnit.MICROSECONDS);
+    }
+    
+    @Override
+    public long getGet99thPercentileMicros()
+    {
+        return gets.getStatistics().getPercentile(99, TimeUnit.MICROSECONDS);
+    }
+    
+    @Override
+    public long getPutCount()
+    {
+        return puts.getStatistics().getCount();
+    }
+    
+    @Override
+    public long getPutMeanMicros()
+    {
+        return puts.getStatistics().getMeanTime(TimeUnit.MICROSECONDS);
+    }
+    
+    @Override
+    public long getPut99thPercentileMicros()
+    {
+        return puts.getStatistics().getPercentile(99, TimeUnit.MICROSECONDS);
+    }
+    
+    @Override
+    public long getRemoveCount()
+    {
+        return removes.getStatistics().getCount();
+    }
+    
+    @Override
+    public long getRemoveMeanMicros()
+    {
+        return removes.getStatistics().getMeanTime(TimeUnit.MICROSECONDS);
+    }
+    
+    @Override
+    public long getChildCreations()
+    {
+        return childCreations.sum();
+    }
+    
+    @Override
+    public long getLoadCount()
+    {
+        return loads.getStatistics().getCount();
+    }
+    
+    @Override
+    public long getLoadMeanMicros()
+    {
+        return loads.getStatistics().getMeanTime(TimeUnit.MICROSECONDS);
+    }
+    
+    @Override
+    public long getLoadMaxMicros()
+    {
+        return loads.getStatistics().getMaxTime(TimeUnit.MICROSECONDS);
+    }
+    
+    @Override
+    public long getLastLoadBytes()
+    {
+        return lastLoadBytes;
+    }
+    
+    @Override
+    public long getLastLoadNodes()
+    {
+        return lastLoadNodes;
+    }
+    
+    @Override
+    public long getFlushCount()
+    {
+        return flushes.getStatistics().getCount();
+    }
+    
+    @Override
+    public long getFlushMeanMicros()
+    {
+        return flushes.getStatistics().getMeanTime(TimeUnit.MICROSECONDS);
+    }
+    
+    @Override
+    public long getFlushMaxMicros()
+    {
+        return flushes.getStatistics().getMaxTime(TimeUnit.MICROSECONDS);
+    }
+    
+    @Override
+    public long getSkippedFlushes()
+    {
+        return skippedFlushes.sum();
+    }
+    
+    @Override
+    public long getBytesWritten()
+    {
+        return bytesWritten.sum();
+    }
+    
+    @Override
+    public long getLockAcquisitions()
+    {
+        return getLockStatistics().getAcquisitions();
+    }
+    
+    @Override
+    public long getContendedLockAcquisitions()
+    {
+        return getLockStatistics().getContendedAcquisitions();
+    }
+    
+    @Override
+    public long getLockTimeouts()
+    {
+        return getLockStatistics().getTimeouts();
+    }
+    
+    @Override
+    public void reset()
+    {
+        gets.reset();
+        puts.reset();
+        removes.reset();
+        loads.reset();
+        flushes.reset();
+        childCreations.reset();
+        skippedFlushes.reset();
+        bytesWritten.reset();
+        lastLoadBytes = 0;
+        lastLoadNodes = 0;
+    }
+    
+    /**
+     * Holds the cleaner, so that its thread is only started once metrics are
+     * registered.
+     */
+    private static final class Cleanup
+    {
+        static final Cleaner CLEANER = Cleaner.create();
+    }
+}
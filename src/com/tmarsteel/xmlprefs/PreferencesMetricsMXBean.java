@@ -0,0 +1,72 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 tobse-local.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.tmarsteel.xmlprefs;
+
+/**
+ * The management interface of the metrics of an {@link XMLFilePreferences},
+ * registered with the platform MBean server under
+ * <code>com.tmarsteel.xmlprefs:type=XMLFilePreferences,file=&lt;path&gt;</code>
+ * while metrics are enabled. Durations are in microseconds; percentiles are
+ * upper bounds at most twice the actual value.
+ * @see XMLFilePreferences#setMetricsEnabled(boolean)
+ * @author Tobias Marstaller (<a href="//github.com/tmarsteel">github.com/tmarsteel</a>)
+ */
+public interface PreferencesMetricsMXBean
+{
+    String getBackingFile();
+    
+    long getGetCount();
+    long getGetMeanMicros();
+    long getGet99thPercentileMicros();
+    
+    long getPutCount();
+    long getPutMeanMicros();
+    long getPut99thPercentileMicros();
+    
+    long getRemoveCount();
+    long getRemoveMeanMicros();
+    
+    long getChildCreations();
+    
+    long getLoadCount();
+    long getLoadMeanMicros();
+    long getLoadMaxMicros();
+    long getLastLoadBytes();
+    long getLastLoadNodes();
+    
+    long getFlushCount();
+    long getFlushMeanMicros();
+    long getFlushMaxMicros();
+    long getSkippedFlushes();
+    long getBytesWritten();
+    
+    long getLockAcquisitions();
+    long getContendedLockAcquisitions();
+    long getLockTimeouts();
+    
+    /**
+     * Resets all metrics except the lock statistics to zero.
+     */
+    void reset();
+}
@@ -0,0 +1,820 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 tobse-local.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.tmarsteel.xmlprefs;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import javax.xml.stream.XMLStreamException;
+
+/**
+ * A node of the in-memory preferences tree: the properties of one
+ * <code>&lt;node&gt;</code> (or the <code>&lt;prefs&gt;</code> root) element and
+ * its child nodes, both in document order.
+ * <br />
+ * A node can be created unparsed, holding the raw bytes of its element;
+ * these are parsed when the properties or child nodes are first accessed.
+ * @author Tobias Marstaller (<a href="//github.com/tmarsteel">github.com/tmarsteel</a>)
+ */
+final class PreferencesNode
+{
+    private String name;
+    private PreferencesNode parent;
+    
+    /**
+     * Modified in place except by {@link #replaceProperties(Map)}.
+     */
+    private volatile CompactMap<String> properties = new CompactMap<>();
+    
+    /**
+     * Modified in place except by {@link #addChildren(Collection)}.
+     */
+    private volatile CompactMap<PreferencesNode> children = new CompactMap<>();
+    
+    /**
+     * The pool the keys, values and names of this node are deduplicated
+     * through; null if they are not. Inherited by new child nodes. See
+     * {@link #intern(StringPool)}.
+     */
+    private StringPool pool;
+    
+    /**
+     * An immutable copy of <code>properties</code> for reading without locks;
+     * null unless created through {@link #createSnapshot()}. Once created, it
+     * is replaced with an updated copy on every modification of the
+     * properties.
+     */
+    private volatile Map<String, String> snapshot = null;
+    
+    private volatile boolean removed = false;
+    
+    /**
+     * The raw <code>&lt;node&gt;</code> element of this node while it has not
+     * been parsed; null once parsed. See {@link #addUnparsedChild(String, ByteBuffer)}.
+     */
+    private volatile ByteBuffer unparsed = null;
+    
+    /**
+     * The keys of the properties and the names of the child nodes that were
+     * set, added or removed since the tree was last written, each with the
+     * generation of its latest modification; null if there are none.
+     * Maintained by {@link XMLFilePreferences}.
+     */
+    private Map<String, Long> modifiedProperties = null;
+    private Map<String, Long> modifiedChildren = null;
+    
+    /**
+     * Creates a new node without a parent.
+     * @param name The name of the node.
+     */
+    PreferencesNode(String name)
+    {
+        this(name, null);
+    }
+    
+    /**
+     * Creates a new node without a parent.
+     * @param name The name of the node.
+     * @param pool The pool to deduplicate the keys, values and names of the
+     * subtree through; may be null.
+     */
+    PreferencesNode(String name, StringPool pool)
+    {
+        this.name = pool == null? name : pool.intern(name);
+        this.pool = pool;
+    }
+    
+    /**
+     * @return The name of this node; the empty string for the root.
+     */
+    String getName()
+    {
+        return name;
+    }
+    
+    /**
+     * @return The parent of this node or null if this node is the root or has
+     * been removed from its parent.
+     */
+    PreferencesNode getParent()
+    {
+        return parent;
+    }
+    
+    /**
+     * @return The path of this node from the root of its tree, e.g.
+     * <code>/a/b</code>; <code>/</code> for the root.
+     */
+    String getPath()
+    {
+        if (parent == null)
+        {
+            return "/";
+        }
+        
+        StringBuilder path = new StringBuilder();
+        for (PreferencesNode node = this;node.parent != null;node = node.parent)
+        {
+            path.insert(0, node.name).insert(0, '/');
+        }
+        
+        return path.toString();
+    }
+    
+    /**
+     * @return The number of ancestors of this node; 0 for the root.
+     */
+    int getDepth()
+    {
+        int depth = 0;
+        for (PreferencesNode node = parent;node != null;node = node.parent)
+        {
+            depth++;
+        }
+        
+        return depth;
+    }
+    
+    /**
+     * @return Whether <code>root</code> is reachable by following the parents
+     * of this node, i.e. whether this node has not been removed from that tree.
+     */
+    boolean isAttachedTo(PreferencesNode root)
+    {
+        PreferencesNode node = this;
+        while (node.parent != null)
+        {
+            node = node.parent;
+        }
+        
+        return node == root;
+    }
+    
+    /**
+     * @return Whether a property or child node of this node was modified
+     * since the tree was last written.
+     */
+    boolean isDirty()
+    {
+        return modifiedProperties != null || modifiedChildren != null;
+    }
+    
+    boolean isPropertyModified(String key)
+    {
+        return modifiedProperties != null && modifiedProperties.containsKey(key);
+    }
+    
+    boolean isChildModified(String name)
+    {
+        return modifiedChildren != null && modifiedChildren.containsKey(name);
+    }
+    
+    /**
+     * @return The keys of the properties modified since the tree was last
+     * written.
+     */
+    Set<String> getModifiedProperties()
+    {
+        return modifiedProperties == null? Collections.<String>emptySet() : modifiedProperties.keySet();
+    }
+    
+    /**
+     * @return The names of the child nodes added or removed since the tree was
+     * last written.
+     */
+    Set<String> getModifiedChildren()
+    {
+        return modifiedChildren == null? Collections.<String>emptySet() : modifiedChildren.keySet();
+    }
+    
+    /**
+     * Records that the property <code>key</code> was set or removed.
+     * @param generation The generation of the tree the modification made.
+     */
+    void propertyModified(String key, long generation)
+    {
+        if (modifiedProperties == null)
+        {
+            modifiedProperties = new HashMap<>();
+        }
+        
+        modifiedProperties.put(key, generation);
+    }
+    
+    /**
+     * Records that the child node <code>name</code> was added or removed.
+     * @param generation The generation of the tree the modification made.
+     */
+    void childModified(String name, long generation)
+    {
+        if (modifiedChildren == null)
+        {
+            modifiedChildren = new HashMap<>();
+        }
+        
+        modifiedChildren.put(name, generation);
+    }
+    
+    /**
+     * Forgets the modifications up to and including <code>generation</code>,
+     * which have been written; later ones are kept.
+     * @return Whether this node is clean now.
+     */
+    boolean clearModifications(long generation)
+    {
+        if (modifiedProperties != null)
+        {
+            modifiedProperties.values().removeIf(modified -> modified <= generation);
+            
+            if (modifiedProperties.isEmpty())
+            {
+                modifiedProperties = null;
+            }
+        }
+        
+        if (modifiedChildren != null)
+        {
+            modifiedChildren.values().removeIf(modified -> modified <= generation);
+            
+            if (modifiedChildren.isEmpty())
+            {
+                modifiedChildren = null;
+            }
+        }
+        
+        return !isDirty();
+    }
+    
+    /**
+     * @return The value of the property <code>key</code> or null if no such
+     * property is set.
+     */
+    String getProperty(String key)
+    {
+        parse();
+        return properties.get(key);
+    }
+    
+    /**
+     * Sets the property <code>key</code> to <code>value</code>.
+     * @return Whether the value of the property changed.
+     */
+    boolean setProperty(String key, String value)
+    {
+        parse();
+        
+        if (pool != null)
+        {
+            key = pool.intern(key);
+            value = pool.intern(value);
+        }
+        
+        if (value.equals(properties.put(key, value)))
+        {
+            return false;
+        }
+        
+        if (snapshot != null)
+        {
+            snapshot = copyProperties();
+        }
+        
+        return true;
+    }
+    
+    /**
+     * Removes the property <code>key</code>.
+     * @return Whether the property was set.
+     */
+    boolean removeProperty(String key)
+    {
+        parse();
+        
+        if (properties.remove(key) == null)
+        {
+            return false;
+        }
+        
+        if (snapshot != null)
+        {
+            snapshot = copyProperties();
+        }
+        
+        return true;
+    }
+    
+    /**
+     * Applies <code>changes</code> to a copy of the properties which then
+     * replaces them, so that code reading the properties without holding the
+     * lock of the modifying code sees either none or all changes.
+     * @param changes The new values by key; null values remove the property.
+     * @return The keys of the properties that changed.
+     */
+    List<String> replaceProperties(Map<String, String> changes)
+    {
+        parse();
+        
+        CompactMap<String> updated = new CompactMap<>(properties);
+        List<String> changed = new ArrayList<>();
+        
+        for (Map.Entry<String, String> change : changes.entrySet())
+        {
+            String key = change.getKey();
+            String value = change.getValue();
+            
+            if (value != null && pool != null)
+            {
+                key = pool.intern(key);
+                value = pool.intern(value);
+            }
+            
+            String previous = value == null? updated.remove(key) : updated.put(key, value);
+            
+            if (value == null? previous != null : !value.equals(previous))
+            {
+                changed.add(key);
+            }
+        }
+        
+        if (!changed.isEmpty())
+        {
+            properties = updated;
+            
+            if (snapshot != null)
+            {
+                snapshot = copyProperties();
+            }
+        }
+        
+        return changed;
+    }
+    
+    /**
+     * Returns the immutable copy of the properties that is kept up to date
+     * once created; reading it requires no locking.
+     * @return The snapshot of the properties or null if none was created.
+     * @see #createSnapshot()
+     */
+    Map<String, String> getSnapshot()
+    {
+        return snapshot;
+    }
+    
+    /**
+     * Creates the snapshot of the properties if it does not exist yet. From
+     * then on, every modification of the properties replaces the snapshot with
+     * an updated copy.
+     * @return The snapshot of the properties.
+     */
+    Map<String, String> createSnapshot()
+    {
+        if (snapshot == null)
+        {
+            snapshot = copyProperties();
+        }
+        
+        return snapshot;
+    }
+    
+    /**
+     * Discards the snapshot of the properties, if any.
+     */
+    void discardSnapshot()
+    {
+        snapshot = null;
+    }
+    
+    private Map<String, String> copyProperties()
+    {
+        parse();
+        return Collections.unmodifiableMap(new CompactMap<>(properties));
+    }
+    
+    /**
+     * @return A read-only view of the properties of this node in document order.
+     */
+    Map<String, String> getProperties()
+    {
+        parse();
+        return Collections.unmodifiableMap(properties);
+    }
+    
+    /**
+     * @return The child node called <code>name</code> or null if no such node
+     * exists.
+     */
+    PreferencesNode getChild(String name)
+    {
+        parse();
+        return children.get(name);
+    }
+    
+    /**
+     * @return The child node whose name is <code>path.substring(from, to)</code>
+     * or null if no such node exists.
+     */
+    PreferencesNode getChild(String path, int from, int to)
+    {
+        parse();
+        return children.get(path, from, to);
+    }
+    
+    /**
+     * Returns the child node called <code>name</code>, creating it if it does
+     * not exist yet.
+     */
+    PreferencesNode getOrAddChild(String name)
+    {
+        parse();
+        PreferencesNode child = children.get(name);
+        
+        if (child == null)
+        {
+            child = new PreferencesNode(name, pool);
+            child.parent = this;
+            children.put(name, child);
+        }
+        
+        return child;
+    }
+    
+    /**
+     * Creates a child node called <code>name</code> without adding it to this
+     * node; see {@link #addChildren(Collection)}.
+     */
+    PreferencesNode newChild(String name)
+    {
+        PreferencesNode child = new PreferencesNode(name, pool);
+        child.parent = this;
+        
+        return child;
+    }
+    
+    /**
+     * Adds <code>added</code> to a copy of the child nodes which then replaces
+     * them, so that code reading the child nodes without holding the lock of
+     * the modifying code sees either none or all of them.
+     * @param added Nodes created through {@link #newChild(String)} on this
+     * node whose names are not taken yet.
+     */
+    void addChildren(Collection<PreferencesNode> added)
+    {
+        parse();
+        
+        CompactMap<PreferencesNode> updated = new CompactMap<>(children);
+        
+        for (PreferencesNode child : added)
+        {
+            updated.put(child.name, child);
+        }
+        
+        children = updated;
+    }
+    
+    /**
+     * Adds the child node <code>name</code> without parsing it.
+     * @param element The raw <code>&lt;node&gt;</code> element of the child,
+     * UTF-8 encoded. It is parsed when the child is first accessed and must
+     * not change until then.
+     */
+    void addUnparsedChild(String name, ByteBuffer element)
+    {
+        PreferencesNode child = getOrAddChild(name);
+        child.unparsed = element;
+    }
+    
+    /**
+     * @return The raw element of this node if it has not been parsed yet
+     * (see {@link #addUnparsedChild(String, ByteBuffer)}); null otherwise.
+     */
+    ByteBuffer getUnparsed()
+    {
+        ByteBuffer element = unparsed;
+        
+        return element == null? null : element.duplicate();
+    }
+    
+    /**
+     * Parses the raw element of this node if that has not happened yet. As
+     * this may happen while only the lock of this node is held, it is
+     * synchronized on the node.
+     * @throws IllegalStateException If the element is not well-formed.
+     */
+    private void parse()
+    {
+        if (unparsed == null)
+        {
+            return;
+        }
+        
+        synchronized (this)
+        {
+            ByteBuffer element = unparsed;
+            
+            if (element == null)
+            {
+                return;
+            }
+            
+            PreferencesNode parsed;
+            try
+            {
+                parsed = PreferencesReader.read(new ByteBufferInputStream(element.duplicate()), pool);
+            }
+            catch (XMLStreamException ex)
+            {
+                throw new IllegalStateException("Could not parse node " + getPath(), ex);
+            }
+            
+            properties.putAll(parsed.properties);
+            
+            for (PreferencesNode child : parsed.children.values())
+            {
+                child.parent = this;
+                children.put(child.name, child);
+            }
+            
+            unparsed = null;
+        }
+    }
+    
+    /**
+     * Deduplicates the keys, values and names of the subtree rooted at this
+     * node through <code>pool</code> and makes new nodes and values of the
+     * subtree use it. Unparsed nodes are interned as they are parsed.
+     * @param pool The pool to use from now on; null to stop deduplicating.
+     */
+    void intern(StringPool pool)
+    {
+        this.pool = pool;
+        
+        if (pool == null)
+        {
+            for (PreferencesNode child : children.values())
+            {
+                child.intern(null);
+            }
+            
+            return;
+        }
+        
+        name = pool.intern(name);
+        
+        if (unparsed != null)
+        {
+            // the parsed content picks up the pool
+            return;
+        }
+        
+        properties.intern(pool);
+        children.intern(pool);
+        
+        if (snapshot != null)
+        {
+            snapshot = copyProperties();
+        }
+        
+        for (PreferencesNode child : children.values())
+        {
+            child.intern(pool);
+        }
+    }
+    
+    /**
+     * Detaches this node from its parent. Does nothing if this node has no
+     * parent.
+     */
+    void remove()
+    {
+        if (parent != null)
+        {
+            parent.children.remove(name, this);
+            parent = null;
+            removed = true;
+        }
+    }
+    
+    /**
+     * @return Whether this node was removed from its tree through {@link #remove()}.
+     */
+    boolean isRemoved()
+    {
+        return removed;
+    }
+    
+    /**
+     * @return A read-only view of the names of the child nodes in document order.
+     */
+    Set<String> getChildNames()
+    {
+        parse();
+        return Collections.unmodifiableSet(children.keySet());
+    }
+    
+    /**
+     * @return A read-only view of the child nodes in document order.
+     */
+    Collection<PreferencesNode> getChildren()
+    {
+        parse();
+        return Collections.unmodifiableCollection(children.values());
+    }
+    
+    /**
+     * @return The number of properties of this node.
+     */
+    int getPropertyCount()
+    {
+        parse();
+        return properties.size();
+    }
+    
+    /**
+     * @return The number of child nodes of this node.
+     */
+    int getChildCount()
+    {
+        parse();
+        return children.size();
+    }
+    
+    /**
+     * @return The number of nodes in the subtree rooted at this node, without
+     * parsing any; unparsed nodes count as one.
+     */
+    int countNodes()
+    {
+        int count = 1;
+        
+        for (PreferencesNode child : children.values())
+        {
+            count += child.countNodes();
+        }
+        
+        return count;
+    }
+    
+    /**
+     * Copies the properties of this node into <code>into</code> as
+     * alternating keys and values in document order.
+     * @param into Must have room for {@link #getPropertyCount()} pairs.
+     */
+    void copyProperties(String[] into)
+    {
+        parse();
+        
+        CompactMap<String> properties = this.properties;
+        int n = 0;
+        
+        for (int i = 0;i < properties.positions();i++)
+        {
+            String key = properties.keyAt(i);
+            
+            if (key != null)
+            {
+                into[n++] = key;
+                into[n++] = properties.valueAt(i);
+            }
+        }
+    }
+    
+    /**
+     * Copies the child nodes of this node into <code>into</code> in document
+     * order, starting at index <code>from</code>.
+     * @param into Must have room for {@link #getChildCount()} nodes from <code>from</code> on.
+     */
+    void copyChildren(PreferencesNode[] into, int from)
+    {
+        parse();
+        
+        CompactMap<PreferencesNode> children = this.children;
+        
+        for (int i = 0;i < children.positions();i++)
+        {
+            PreferencesNode child = children.valueAt(i);
+            
+            if (child != null)
+            {
+                into[from++] = child;
+            }
+        }
+    }
+    
+    /**
+     * Copies the subtree rooted at this node without parsing any of it;
+     * unparsed nodes share their raw element with the copy. The copy has no
+     * parent, no snapshot and no modifications and does not intern.
+     * Must be called with the tree guarded against modification.
+     */
+    PreferencesNode copy()
+    {
+        PreferencesNode copy = new PreferencesNode(name);
+        
+        synchronized (this)
+        {
+            if (unparsed != null)
+            {
+                copy.unparsed = unparsed;
+                return copy;
+            }
+            
+            copy.properties.putAll(properties);
+            
+            for (PreferencesNode child : children.values())
+            {
+                PreferencesNode childCopy = child.copy();
+                childCopy.parent = copy;
+                copy.children.put(childCopy.name, childCopy);
+            }
+        }
+        
+        return copy;
+    }
+    
+    /**
+     * @return Whether this node or any of its descendants is dirty.
+     * @see #isDirty()
+     */
+    boolean isSubtreeDirty()
+    {
+        if (isDirty())
+        {
+            return true;
+        }
+        
+        if (unparsed != null)
+        {
+            // nothing below can have been modified without parsing this node
+            return false;
+        }
+        
+        for (PreferencesNode child : children.values())
+        {
+            if (child.isSubtreeDirty())
+            {
+                return true;
+            }
+        }
+        
+        return false;
+    }
+    
+    /**
+     * @return Whether the subtree rooted at this node has the same properties
+     * and nodes as the one rooted at <code>other</code>, disregarding order.
+     */
+    boolean contentEquals(PreferencesNode other)
+    {
+        ByteBuffer element = unparsed;
+        ByteBuffer otherElement = other.unparsed;
+        
+        if (element != null && otherElement != null && element.equals(otherElement))
+        {
+            return true;
+        }
+        
+        parse();
+        other.parse();
+        
+        if (!properties.equals(other.properties) || !children.keySet().equals(other.children.keySet()))
+        {
+            return false;
+        }
+        
+        for (PreferencesNode child : children.values())
+        {
+            if (!child.contentEquals(other.children.get(child.name)))
+            {
+                return false;
+            }
+        }
+        
+        return true;
+    }
+}
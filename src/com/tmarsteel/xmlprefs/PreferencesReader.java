@@ -0,0 +1,156 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 tobse-local.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.tmarsteel.xmlprefs;
+
+import java.io.InputStream;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Reads a preferences file into a tree of {@link PreferencesNode}s using a
+ * StAX stream; no DOM is built in the process. Elements other than
+ * <code>&lt;node&gt;</code> and <code>&lt;property&gt;</code> below the
+ * document element are skipped, as are comments and whitespace.
+ * @author Tobias Marstaller (<a href="//github.com/tmarsteel">github.com/tmarsteel</a>)
+ */
+final class PreferencesReader
+{
+    private static final XMLInputFactory INPUT_FACTORY = createInputFactory();
+    
+    private PreferencesReader()
+    {
+    }
+    
+    private static XMLInputFactory createInputFactory()
+    {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, false);
+        factory.setProperty(XMLInputFactory.IS_COALESCING, true);
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        
+        return factory;
+    }
+    
+    /**
+     * Reads the preferences document from <code>in</code>.
+     * @return The root of the preferences tree in the document.
+     * @throws XMLStreamException If the document is not well-formed XML.
+     */
+    static PreferencesNode read(InputStream in)
+        throws XMLStreamException
+    {
+        return read(in, null);
+    }
+    
+    /**
+     * Reads the preferences document from <code>in</code>.
+     * @param pool The pool to deduplicate the keys, values and names of the
+     * tree through; may be null.
+     * @return The root of the preferences tree in the document.
+     * @throws XMLStreamException If the document is not well-formed XML.
+     */
+    static PreferencesNode read(InputStream in, StringPool pool)
+        throws XMLStreamException
+    {
+        XMLStreamReader reader = INPUT_FACTORY.createXMLStreamReader(in);
+        PreferencesNode root = new PreferencesNode("", pool);
+        
+        try
+        {
+            // move to the document element
+            while (reader.next() != XMLStreamConstants.START_ELEMENT);
+            
+            PreferencesNode current = root;
+            
+            while (current != null)
+            {
+                int event = reader.next();
+                
+                if (event == XMLStreamConstants.START_ELEMENT)
+                {
+                    String elementName = reader.getLocalName();
+                    
+                    if (elementName.equals(XMLNodePreferences.NODE_NODENAME))
+                    {
+                        current = current.getOrAddChild(getNameAttribute(reader));
+                    }
+                    else if (elementName.equals(XMLNodePreferences.PROPERTY_NODENAME))
+                    {
+                        String key = getNameAttribute(reader);
+                        current.setProperty(key, reader.getElementText());
+                    }
+                    else
+                    {
+                        skipElement(reader);
+                    }
+                }
+                else if (event == XMLStreamConstants.END_ELEMENT)
+                {
+                    // the end of a <node> or of the document element
+                    current = current.getParent();
+                }
+            }
+        }
+        finally
+        {
+            reader.close();
+        }
+        
+        return root;
+    }
+    
+    private static String getNameAttribute(XMLStreamReader reader)
+    {
+        String name = reader.getAttributeValue(null, "name");
+        
+        return name == null? "" : name;
+    }
+    
+    /**
+     * Skips the element the reader is positioned at including all its content.
+     * Returns with the reader positioned at the end tag of that element.
+     */
+    private static void skipElement(XMLStreamReader reader)
+        throws XMLStreamException
+    {
+        int depth = 1;
+        
+        while (depth > 0)
+        {
+            int event = reader.next();
+            
+            if (event == XMLStreamConstants.START_ELEMENT)
+            {
+                depth++;
+            }
+            else if (event == XMLStreamConstants.END_ELEMENT)
+            {
+                depth--;
+            }
+        }
+    }
+}
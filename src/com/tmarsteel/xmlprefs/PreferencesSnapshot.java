@@ -0,0 +1,301 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 tobse-local.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.tmarsteel.xmlprefs;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * A binary copy of the tree in a preferences file that loads much faster than
+ * the XML. The snapshot records size, modification time and checksum of the
+ * version of the preferences file it was made from; it is only used while the
+ * file still has that size and modification time. Its own contents are
+ * checksummed, too, so a damaged snapshot is never used. The preferences file
+ * always remains the authoritative copy.
+ * @author Tobias Marstaller (<a href="//github.com/tmarsteel">github.com/tmarsteel</a>)
+ */
+final class PreferencesSnapshot
+{
+    private static final int MAGIC = 0x58504231; // XPB1
+    
+    /**
+     * Magic, size, modification time and checksum of the preferences file,
+     * racy flag, length and checksum of the body.
+     */
+    private static final int HEADER_LENGTH = 4 + 8 + 8 + 8 + 1 + 8 + 4;
+    
+    private final Path path;
+    
+    private long fileChecksum;
+    private boolean racy;
+    
+    PreferencesSnapshot(Path path)
+    {
+        this.path = path;
+    }
+    
+    Path getPath()
+    {
+        return path;
+    }
+    
+    /**
+     * @return The checksum of the preferences file recorded in the snapshot
+     * last read.
+     */
+    long getFileChecksum()
+    {
+        return fileChecksum;
+    }
+    
+    /**
+     * @return Whether the modification time of the preferences file recorded
+     * in the snapshot last read was too recent, when the snapshot was made,
+     * to rule out further modifications with the same timestamp; if so, the
+     * checksum has to be compared as well.
+     */
+    boolean isRacy()
+    {
+        return racy;
+    }
+    
+    /**
+     * Reads the snapshot through a memory mapping.
+     * @param fileSize The current size of the preferences file.
+     * @param fileModified The current modification time of the preferences file.
+     * @return The root of the tree in the snapshot or null if there is no
+     * snapshot, it was made from a different version of the preferences file
+     * or it is damaged.
+     */
+    PreferencesNode read(long fileSize, long fileModified)
+        throws IOException
+    {
+        MappedByteBuffer buffer;
+        
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ))
+        {
+            long size = channel.size();
+            
+            if (size < HEADER_LENGTH || size > Integer.MAX_VALUE)
+            {
+                return null;
+            }
+            
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        }
+        catch (NoSuchFileException ex)
+        {
+            return null;
+        }
+        
+        if (buffer.getInt() != MAGIC || buffer.getLong() != fileSize || buffer.getLong() != fileModified)
+        {
+            return null;
+        }
+        
+        long checksum = buffer.getLong();
+        boolean racy = buffer.get() != 0;
+        long bodyLength = buffer.getLong();
+        int bodyChecksum = buffer.getInt();
+        
+        if (bodyLength != buffer.remaining())
+        {
+            return null;
+        }
+        
+        CRC32 crc = new CRC32();
+        crc.update(buffer.duplicate());
+        
+        if ((int) crc.getValue() != bodyChecksum)
+        {
+            return null;
+        }
+        
+        PreferencesNode root;
+        
+        try
+        {
+            root = readTree(buffer);
+        }
+        catch (BufferUnderflowException | IllegalArgumentException ex)
+        {
+            return null;
+        }
+        
+        this.fileChecksum = checksum;
+        this.racy = racy;
+        
+        return root;
+    }
+    
+    /**
+     * Decodes the tree; every node consists of its properties as key/value
+     * pairs followed by its children as name/node pairs, each preceded by
+     * their count.
+     */
+    private static PreferencesNode readTree(ByteBuffer buffer)
+    {
+        PreferencesNode root = new PreferencesNode("");
+        Deque<PreferencesNode> nodes = new ArrayDeque<>();
+        Deque<int[]> remainingChildren = new ArrayDeque<>();
+        
+        PreferencesNode node = root;
+        byte[] scratch = new byte[256];
+        
+        while (true)
+        {
+            int properties = readCount(buffer);
+            for (int i = 0;i < properties;i++)
+            {
+                String key = readString(buffer, scratch);
+                node.setProperty(key, readString(buffer, scratch));
+            }
+            
+            nodes.push(node);
+            remainingChildren.push(new int[] { readCount(buffer) });
+            
+            while (!nodes.isEmpty() && remainingChildren.peek()[0] == 0)
+            {
+                nodes.pop();
+                remainingChildren.pop();
+            }
+            
+            if (nodes.isEmpty())
+            {
+                return root;
+            }
+            
+            remainingChildren.peek()[0]--;
+            node = nodes.peek().getOrAddChild(readString(buffer, scratch));
+        }
+    }
+    
+    private static int readCount(ByteBuffer buffer)
+    {
+        int count = buffer.getInt();
+        
+        if (count < 0)
+        {
+            throw new IllegalArgumentException("Negative count");
+        }
+        
+        return count;
+    }
+    
+    private static String readString(ByteBuffer buffer, byte[] scratch)
+    {
+        int length = readCount(buffer);
+        byte[] bytes = length <= scratch.length? scratch : new byte[length];
+        buffer.get(bytes, 0, length);
+        
+        return new String(bytes, 0, length, StandardCharsets.UTF_8);
+    }
+    
+    /**
+     * Writes the tree rooted at <code>root</code> to the temporary file
+     * <code>tempFile</code> as a snapshot of the version of the preferences
+     * file with the given size, modification time and checksum. The caller
+     * moves it into place.
+     * @param racy Whether the modification time of the preferences file is too
+     * recent to rule out further modifications with the same timestamp.
+     */
+    static void write(Path tempFile, PreferencesNode root, long fileSize, long fileModified, long fileChecksum, boolean racy)
+        throws IOException
+    {
+        CRC32 crc = new CRC32();
+        
+        try (FileChannel channel = FileChannel.open(tempFile, StandardOpenOption.WRITE))
+        {
+            channel.position(HEADER_LENGTH);
+            
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new CheckedOutputStream(Channels.newOutputStream(channel), crc), 64 * 1024));
+            writeNode(out, root);
+            out.flush();
+            
+            ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+            header.putInt(MAGIC).putLong(fileSize).putLong(fileModified).putLong(fileChecksum)
+                .put((byte) (racy? 1 : 0)).putLong(channel.position() - HEADER_LENGTH).putInt((int) crc.getValue()).flip();
+            
+            long position = 0;
+            while (header.hasRemaining())
+            {
+                position += channel.write(header, position);
+            }
+        }
+    }
+    
+    private static void writeNode(DataOutputStream out, PreferencesNode node)
+        throws IOException
+    {
+        Map<String, String> properties = node.getProperties();
+        out.writeInt(properties.size());
+        for (Map.Entry<String, String> property : properties.entrySet())
+        {
+            writeString(out, property.getKey());
+            writeString(out, property.getValue());
+        }
+        
+        Collection<PreferencesNode> children = node.getChildren();
+        out.writeInt(children.size());
+        for (PreferencesNode child : children)
+        {
+            writeString(out, child.getName());
+            writeNode(out, child);
+        }
+    }
+    
+    private static void writeString(DataOutputStream out, String str)
+        throws IOException
+    {
+        byte[] bytes = str.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+    
+    /**
+     * Deletes the snapshot, if it exists.
+     */
+    void delete()
+        throws IOException
+    {
+        Files.deleteIfExists(path);
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 tobse-local.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.tmarsteel.xmlprefs;
+
+/**
+ * A snapshot of the metrics collected by {@link XMLFilePreferences}.
+ * @see XMLFilePreferences#getStatistics()
+ * @author Tobias Marstaller (<a href="//github.com/tmarsteel">github.com/tmarsteel</a>)
+ */
+public final class PreferencesStatistics
+{
+    private final LatencyStatistics gets;
+    private final LatencyStatistics puts;
+    private final LatencyStatistics removes;
+    private final long childCreations;
+    private final LatencyStatistics loads;
+    private final long lastLoadBytes;
+    private final long lastLoadNodes;
+    private final LatencyStatistics flushes;
+    private final long skippedFlushes;
+    private final long bytesWritten;
+    private final LockStatistics lockStatistics;
+    
+    PreferencesStatistics(LatencyStatistics gets, LatencyStatistics puts, LatencyStatistics removes, long childCreations,
+        LatencyStatistics loads, long lastLoadBytes, long lastLoadNodes,
+        LatencyStatistics flushes, long skippedFlushes, long bytesWritten, LockStatistics lockStatistics)
+    {
+        this.gets = gets;
+        this.puts = puts;
+        this.removes = removes;
+        this.childCreations = childCreations;
+        this.loads = loads;
+        this.lastLoadBytes = lastLoadBytes;
+        this.lastLoadNodes = lastLoadNodes;
+        this.flushes = flushes;
+        this.skippedFlushes = skippedFlushes;
+        this.bytesWritten = bytesWritten;
+        this.lockStatistics = lockStatistics;
+    }
+    
+    /**
+     * @return The calls to get() and the typed getters built on it, on any node.
+     */
+    public LatencyStatistics getGets()
+    {
+        return gets;
+    }
+    
+    /**
+     * @return The calls to put() and the typed setters built on it, on any node.
+     */
+    public LatencyStatistics getPuts()
+    {
+        return puts;
+    }
+    
+    /**
+     * @return The calls to remove() on any node.
+     */
+    public LatencyStatistics getRemoves()
+    {
+        return removes;
+    }
+    
+    /**
+     * @return The number of nodes created through node().
+     */
+    public long getChildCreations()
+    {
+        return childCreations;
+    }
+    
+    /**
+     * @return The reads of the backing file, initially and when merging
+     * modifications of other processes.
+     */
+    public LatencyStatistics getLoads()
+    {
+        return loads;
+    }
+    
+    /**
+     * @return The size of the backing file when it was last read.
+     */
+    public long getLastLoadBytes()
+    {
+        return lastLoadBytes;
+    }
+    
+    /**
+     * @return The number of nodes parsed when the backing file was last read.
+     */
+    public long getLastLoadNodes()
+    {
+        return lastLoadNodes;
+    }
+    
+    /**
+     * @return The flushes that wrote the backing file or its journal.
+     */
+    public LatencyStatistics getFlushes()
+    {
+        return flushes;
+    }
+    
+    /**
+     * @return The number of flushes that did nothing since the tree was not
+     * modified.
+     */
+    public long getSkippedFlushes()
+    {
+        return skippedFlushes;
+    }
+    
+    /**
+     * @return The number of bytes written to the backing file and its journal.
+     */
+    public long getBytesWritten()
+    {
+        return bytesWritten;
+    }
+    
+    /**
+     * @return The statistics about the lock on the backing file.
+     * @see XMLFilePreferences#getLockStatistics()
+     */
+    public LockStatistics getLockStatistics()
+    {
+        return lockStatistics;
+    }
+    
+    @Override
+    public String toString()
+    {
+        return "PreferencesStatistics[gets=" + gets + ", puts=" + puts + ", removes=" + removes +
+            ", childCreations=" + childCreations + ", loads=" + loads + ", lastLoadBytes=" + lastLoadBytes +
+            ", lastLoadNodes=" + lastLoadNodes + ", flushes=" + flushes + ", skippedFlushes=" + skippedFlushes +
+            ", bytesWritten=" + bytesWritten + ", lock=" + lockStatistics + "]";
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 tobse-local.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.tmarsteel.xmlprefs;
+
+/**
+ * Receives the nodes and properties of a subtree walked through
+ * {@link XMLFilePreferences#walk(String, PreferencesVisitor)}. Nodes are
+ * visited depth-first in document order; the properties of a node are visited
+ * after it was entered and before its children. The cursor passed to the
+ * methods is the same object throughout the walk and is only valid during the
+ * call.
+ * <br />
+ * The walk reads the live tree node by node and holds no lock while calling
+ * the visitor, so visitors may use and modify the preferences they walk. The
+ * properties and child nodes of a node are read when the walk enters it;
+ * those added later are not visited, and nodes removed before the walk
+ * enters them are skipped.
+ * @author Tobias Marstaller (<a href="//github.com/tmarsteel">github.com/tmarsteel</a>)
+ */
+public interface PreferencesVisitor
+{
+    /**
+     * Called when the walk reaches a node.
+     * @param node The cursor, positioned at the node.
+     * @return Whether to visit the properties and children of the node; if
+     * not, {@link #leaveNode(PreferencesCursor)} is not called for it either.
+     */
+    default boolean enterNode(PreferencesCursor node)
+    {
+        return true;
+    }
+    
+    /**
+     * Called for every property of an entered node.
+     * @param node The cursor, positioned at the node holding the property.
+     */
+    default void visitProperty(PreferencesCursor node, String key, String value)
+    {
+    }
+    
+    /**
+     * Called after the properties and children of an entered node have been
+     * visited.
+     * @param node The cursor, positioned at the node.
+     */
+    default void leaveNode(PreferencesCursor node)
+    {
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 tobse-local.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.tmarsteel.xmlprefs;
+
+import java.util.Arrays;
+
+/**
+ * Walks a subtree of the live preferences tree for
+ * {@link XMLFilePreferences#walk(String, PreferencesVisitor)}. The lock of the
+ * tree is taken for every node only while its properties and child nodes are
+ * copied into buffers that are reused throughout the walk, and released
+ * while the visitor is called. Besides the buffers, which grow with the
+ * widest node and the nodes pending on the current path rather than with
+ * the size of the subtree, nothing is allocated apart from parsing unparsed
+ * nodes.
+ * @author Tobias Marstaller (<a href="//github.com/tmarsteel">github.com/tmarsteel</a>)
+ */
+final class PreferencesWalker
+{
+    private final Object treeLock;
+    private final PreferencesNode root;
+    private final PreferencesVisitor visitor;
+    private final PreferencesCursor cursor;
+    
+    /**
+     * The keys and values of the node being visited.
+     */
+    private String[] properties = new String[16];
+    
+    /**
+     * The child nodes still to be walked of the nodes on the current path;
+     * those of a node follow those of its parent.
+     */
+    private PreferencesNode[] pending = new PreferencesNode[16];
+    private int pendingCount = 0;
+    
+    /**
+     * @param treeLock The lock guarding the tree.
+     * @param root The root of the tree; nodes no longer attached to it are
+     * skipped.
+     */
+    PreferencesWalker(Object treeLock, PreferencesNode root, PreferencesVisitor visitor)
+    {
+        this.treeLock = treeLock;
+        this.root = root;
+        this.visitor = visitor;
+        this.cursor = new PreferencesCursor(treeLock);
+    }
+    
+    /**
+     * Walks the subtree rooted at <code>node</code> depth-first in document
+     * order; properties are visited before child nodes. Properties and child
+     * nodes are read when the walk enters their node. Nodes removed before
+     * the walk enters them are skipped.
+     * @param depth The depth of <code>node</code> relative to the node the
+     * walk started on.
+     */
+    void walk(PreferencesNode node, int depth)
+    {
+        synchronized (treeLock)
+        {
+            if (!node.isAttachedTo(root))
+            {
+                return;
+            }
+        }
+        
+        cursor.moveTo(node, depth);
+        
+        if (!visitor.enterNode(cursor))
+        {
+            return;
+        }
+        
+        int propertyCount;
+        synchronized (treeLock)
+        {
+            propertyCount = node.getPropertyCount();
+            
+            if (properties.length < 2 * propertyCount)
+            {
+                properties = new String[Math.max(2 * propertyCount, 2 * properties.length)];
+            }
+            
+            node.copyProperties(properties);
+        }
+        
+        for (int i = 0;i < propertyCount;i++)
+        {
+            visitor.visitProperty(cursor, properties[2 * i], properties[2 * i + 1]);
+        }
+        
+        int from = pendingCount;
+        synchronized (treeLock)
+        {
+            int childCount = node.getChildCount();
+            
+            if (pending.length < from + childCount)
+            {
+                pending = Arrays.copyOf(pending, Math.max(from + childCount, 2 * pending.length));
+            }
+            
+            node.copyChildren(pending, from);
+            pendingCount = from + childCount;
+        }
+        
+        int to = pendingCount;
+        for (int i = from;i < to;i++)
+        {
+            walk(pending[i], depth + 1);
+        }
+        
+        Arrays.fill(pending, from, to, null);
+        pendingCount = from;
+        
+        cursor.moveTo(node, depth);
+        visitor.leaveNode(cursor);
+    }
+}
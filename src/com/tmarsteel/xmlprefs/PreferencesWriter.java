@@ -0,0 +1,306 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 tobse-local.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.tmarsteel.xmlprefs;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Serializes a tree of {@link PreferencesNode}s as a UTF-8 encoded preferences
+ * document directly to a channel. The encoder and the buffers are allocated
+ * once and reused for every document written, so instances are meant to be
+ * kept around; they are not thread-safe.
+ * @author Tobias Marstaller (<a href="//github.com/tmarsteel">github.com/tmarsteel</a>)
+ */
+final class PreferencesWriter
+{
+    private static final String XML_DECLARATION = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>";
+    
+    private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+        .onMalformedInput(CodingErrorAction.REPLACE)
+        .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    
+    private final CharBuffer chars = CharBuffer.allocate(8 * 1024);
+    private final ByteBuffer bytes = ByteBuffer.allocate(32 * 1024);
+    
+    private WritableByteChannel channel;
+    private long bytesWritten;
+    
+    /**
+     * The checksum of the bytes written so far for the current document.
+     */
+    private final CRC32 checksum = new CRC32();
+    
+    /**
+     * Writes the document for the tree rooted at <code>root</code> to
+     * <code>channel</code>. The channel is not closed.
+     * @return The number of bytes written.
+     */
+    long write(PreferencesNode root, WritableByteChannel channel)
+        throws IOException
+    {
+        this.channel = channel;
+        this.bytesWritten = 0;
+        this.checksum.reset();
+        
+        try
+        {
+            append(XML_DECLARATION);
+            writeElement(XMLNodePreferences.ROOT_NODENAME, null, root);
+            
+            drain(true);
+            while (encoder.flush(bytes).isOverflow())
+            {
+                writeBytes();
+            }
+            writeBytes();
+            
+            return bytesWritten;
+        }
+        finally
+        {
+            this.channel = null;
+            encoder.reset();
+            chars.clear();
+            bytes.clear();
+        }
+    }
+    
+    /**
+     * @return The CRC-32 of the last document written.
+     */
+    long getChecksum()
+    {
+        return checksum.getValue();
+    }
+    
+    /**
+     * Writes the element for <code>node</code>, including its properties and
+     * child nodes.
+     * @param name The value of the name attribute or null to omit it.
+     */
+    private void writeElement(String elementName, String name, PreferencesNode node)
+        throws IOException
+    {
+        append('<');
+        append(elementName);
+        
+        if (name != null)
+        {
+            writeNameAttribute(name);
+        }
+        
+        if (node.getProperties().isEmpty() && node.getChildren().isEmpty())
+        {
+            append("/>");
+            return;
+        }
+        
+        append('>');
+        
+        for (Map.Entry<String, String> property : node.getProperties().entrySet())
+        {
+            append('<');
+            append(XMLNodePreferences.PROPERTY_NODENAME);
+            writeNameAttribute(property.getKey());
+            
+            if (property.getValue().isEmpty())
+            {
+                append("/>");
+            }
+            else
+            {
+                append('>');
+                appendEscaped(property.getValue(), false);
+                append("</");
+                append(XMLNodePreferences.PROPERTY_NODENAME);
+                append('>');
+            }
+        }
+        
+        for (PreferencesNode child : node.getChildren())
+        {
+            ByteBuffer element = child.getUnparsed();
+            
+            if (element == null)
+            {
+                writeElement(XMLNodePreferences.NODE_NODENAME, child.getName(), child);
+            }
+            else
+            {
+                // never accessed since it was read; copy it through
+                writeRaw(element);
+            }
+        }
+        
+        append("</");
+        append(elementName);
+        append('>');
+    }
+    
+    private void writeNameAttribute(String name)
+        throws IOException
+    {
+        append(" name=\"");
+        appendEscaped(name, true);
+        append('"');
+    }
+    
+    /**
+     * Appends <code>str</code>, replacing the characters that cannot appear
+     * literally in character data or, if <code>attribute</code> is set, in a
+     * double-quoted attribute value.
+     */
+    private void appendEscaped(String str, boolean attribute)
+        throws IOException
+    {
+        int length = str.length();
+        int unescapedFrom = 0;
+        
+        for (int i = 0;i < length;i++)
+        {
+            String replacement;
+            
+            switch (str.charAt(i))
+            {
+                case '&':  replacement = "&amp;"; break;
+                case '<':  replacement = "&lt;"; break;
+                case '>':  replacement = "&gt;"; break;
+                case '\r': replacement = "&#13;"; break;
+                case '"':  replacement = attribute? "&quot;" : null; break;
+                case '\n': replacement = attribute? "&#10;" : null; break;
+                case '\t': replacement = attribute? "&#9;" : null; break;
+                default:   replacement = null;
+            }
+            
+            if (replacement != null)
+            {
+                append(str, unescapedFrom, i);
+                append(replacement);
+                unescapedFrom = i + 1;
+            }
+        }
+        
+        append(str, unescapedFrom, length);
+    }
+    
+    private void append(char c)
+        throws IOException
+    {
+        if (!chars.hasRemaining())
+        {
+            drain(false);
+        }
+        
+        chars.put(c);
+    }
+    
+    private void append(String str)
+        throws IOException
+    {
+        append(str, 0, str.length());
+    }
+    
+    private void append(String str, int from, int to)
+        throws IOException
+    {
+        while (from < to)
+        {
+            if (!chars.hasRemaining())
+            {
+                drain(false);
+            }
+            
+            int n = Math.min(chars.remaining(), to - from);
+            chars.put(str, from, from + n);
+            from += n;
+        }
+    }
+    
+    /**
+     * Encodes the buffered characters, writing the encoded bytes to the channel
+     * as the byte buffer fills up. Unless <code>endOfInput</code> is set, a
+     * trailing high surrogate stays in the character buffer until its pair
+     * arrives.
+     */
+    private void drain(boolean endOfInput)
+        throws IOException
+    {
+        chars.flip();
+        
+        CoderResult result;
+        while ((result = encoder.encode(chars, bytes, endOfInput)).isOverflow())
+        {
+            writeBytes();
+        }
+        
+        chars.compact();
+        
+        if (result.isError())
+        {
+            // cannot happen with CodingErrorAction.REPLACE
+            result.throwException();
+        }
+    }
+    
+    /**
+     * Writes the encoded bytes in <code>raw</code> after the buffered
+     * characters.
+     */
+    private void writeRaw(ByteBuffer raw)
+        throws IOException
+    {
+        drain(false);
+        writeBytes();
+        
+        checksum.update(raw.duplicate());
+        
+        while (raw.hasRemaining())
+        {
+            bytesWritten += channel.write(raw);
+        }
+    }
+    
+    private void writeBytes()
+        throws IOException
+    {
+        bytes.flip();
+        checksum.update(bytes.array(), bytes.arrayOffset(), bytes.limit());
+        
+        while (bytes.hasRemaining())
+        {
+            bytesWritten += channel.write(bytes);
+        }
+        
+        bytes.clear();
+    }
+}
@@ -0,0 +1,393 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 tobse-local.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.tmarsteel.xmlprefs;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.prefs.InvalidPreferencesFormatException;
+import java.util.prefs.Preferences;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Exports and imports preferences in the format of
+ * {@link Preferences#exportSubtree(OutputStream)} without building a DOM:
+ * exports are written straight from a copy of the tree, imports are parsed
+ * as a stream and applied one node at a time through a
+ * {@link PreferencesEdit}.
+ * @author Tobias Marstaller (<a href="//github.com/tmarsteel">github.com/tmarsteel</a>)
+ */
+final class PreferencesXmlSupport
+{
+    private static final String HEADER = "<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"no\"?>\n"
+        + "<!DOCTYPE preferences SYSTEM \"http://java.sun.com/dtd/preferences.dtd\">\n"
+        + "<preferences EXTERNAL_XML_VERSION=\"1.0\">\n";
+    
+    private static final String EXTERNAL_XML_VERSION = "1.0";
+    
+    private static final XMLInputFactory INPUT_FACTORY = createInputFactory();
+    
+    private PreferencesXmlSupport()
+    {
+    }
+    
+    private static XMLInputFactory createInputFactory()
+    {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, false);
+        factory.setProperty(XMLInputFactory.IS_COALESCING, true);
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        
+        return factory;
+    }
+    
+    /**
+     * Writes the document for a single node to <code>out</code>.
+     * @param path The absolute path of the node.
+     * @param user Whether the node belongs to the user tree.
+     * @param properties The properties of the node.
+     */
+    static void exportNode(OutputStream out, String path, boolean user, Map<String, String> properties)
+        throws IOException
+    {
+        Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+        int depth = writeStart(writer, path, user);
+        writeMap(writer, properties, depth);
+        writeEnd(writer, depth);
+    }
+    
+    /**
+     * Writes the document for the subtree rooted at <code>node</code> to
+     * <code>out</code>. Unparsed nodes of the subtree are parsed as they are
+     * written, so <code>node</code> must not be shared with a live tree.
+     * @param path The absolute path of the node.
+     * @param user Whether the node belongs to the user tree.
+     */
+    static void exportSubtree(OutputStream out, String path, boolean user, PreferencesNode node)
+        throws IOException
+    {
+        Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+        int depth = writeStart(writer, path, user);
+        writeContent(writer, node, depth);
+        writeEnd(writer, depth);
+    }
+    
+    /**
+     * Writes the header, the root element and the elements of the ancestors
+     * of the node at <code>path</code>, each with an empty map, up to the
+     * opening tag of that node.
+     * @return The depth of the content of the node in the document.
+     */
+    private static int writeStart(Writer writer, String path, boolean user)
+        throws IOException
+    {
+        writer.write(HEADER);
+        writer.write("  <root type=\"");
+        writer.write(user? "user" : "system");
+        writer.write("\">\n");
+        
+        int depth = 2;
+        
+        for (String name : path.split("/"))
+        {
+            if (name.isEmpty())
+            {
+                continue;
+            }
+            
+            indent(writer, depth);
+            writer.write("<map/>\n");
+            indent(writer, depth);
+            writer.write("<node name=\"");
+            writeEscaped(writer, name);
+            writer.write("\">\n");
+            depth++;
+        }
+        
+        return depth;
+    }
+    
+    private static void writeEnd(Writer writer, int depth)
+        throws IOException
+    {
+        for (depth--; depth >= 2; depth--)
+        {
+            indent(writer, depth);
+            writer.write("</node>\n");
+        }
+        
+        writer.write("  </root>\n</preferences>\n");
+        writer.flush();
+    }
+    
+    private static void writeContent(Writer writer, PreferencesNode node, int depth)
+        throws IOException
+    {
+        writeMap(writer, node.getProperties(), depth);
+        
+        for (PreferencesNode child : node.getChildren())
+        {
+            indent(writer, depth);
+            writer.write("<node name=\"");
+            writeEscaped(writer, child.getName());
+            writer.write("\">\n");
+            
+            writeContent(writer, child, depth + 1);
+            
+            indent(writer, depth);
+            writer.write("</node>\n");
+        }
+    }
+    
+    private static void writeMap(Writer writer, Map<String, String> properties, int depth)
+        throws IOException
+    {
+        indent(writer, depth);
+        
+        if (properties.isEmpty())
+        {
+            writer.write("<map/>\n");
+            return;
+        }
+        
+        writer.write("<map>\n");
+        
+        for (Map.Entry<String, String> property : properties.entrySet())
+        {
+            indent(writer, depth + 1);
+            writer.write("<entry key=\"");
+            writeEscaped(writer, property.getKey());
+            writer.write("\" value=\"");
+            writeEscaped(writer, property.getValue());
+            writer.write("\"/>\n");
+        }
+        
+        indent(writer, depth);
+        writer.write("</map>\n");
+    }
+    
+    private static void indent(Writer writer, int depth)
+        throws IOException
+    {
+        for (int i = 0;i < depth;i++)
+        {
+            writer.write("  ");
+        }
+    }
+    
+    /**
+     * Writes <code>str</code> as the content of a double-quoted attribute.
+     */
+    private static void writeEscaped(Writer writer, String str)
+        throws IOException
+    {
+        int length = str.length();
+        int unescapedFrom = 0;
+        
+        for (int i = 0;i < length;i++)
+        {
+            String replacement;
+            
+            switch (str.charAt(i))
+            {
+                case '&':  replacement = "&amp;"; break;
+                case '<':  replacement = "&lt;"; break;
+                case '>':  replacement = "&gt;"; break;
+                case '"':  replacement = "&quot;"; break;
+                case '\r': replacement = "&#13;"; break;
+                case '\n': replacement = "&#10;"; break;
+                case '\t': replacement = "&#9;"; break;
+                default:   replacement = null;
+            }
+            
+            if (replacement != null)
+            {
+                writer.write(str, unescapedFrom, i - unescapedFrom);
+                writer.write(replacement);
+                unescapedFrom = i + 1;
+            }
+        }
+        
+        writer.write(str, unescapedFrom, length - unescapedFrom);
+    }
+    
+    /**
+     * Reads the document from <code>in</code> and applies it to
+     * <code>preferences</code>, with the root of the document mapped to the
+     * root of the backing file. The properties of a node are applied together
+     * as soon as its map has been read; nodes are created even if their map
+     * is empty. Properties not in the document are kept.
+     * @throws InvalidPreferencesFormatException If the document is not
+     * well-formed or does not follow the preferences DTD; the nodes before
+     * the error have been applied then.
+     */
+    static void importPreferences(XMLFilePreferences preferences, InputStream in)
+        throws IOException, InvalidPreferencesFormatException
+    {
+        XMLStreamReader reader = null;
+        
+        try
+        {
+            reader = INPUT_FACTORY.createXMLStreamReader(in);
+            
+            nextElement(reader, "preferences");
+            String version = reader.getAttributeValue(null, "EXTERNAL_XML_VERSION");
+            if (version != null && version.compareTo(EXTERNAL_XML_VERSION) > 0)
+            {
+                throw new InvalidPreferencesFormatException("Exported preferences file format version " + version + " is not supported");
+            }
+            
+            nextElement(reader, "root");
+            importNode(preferences, reader, "/");
+        }
+        catch (XMLStreamException ex)
+        {
+            if (ex.getNestedException() instanceof IOException)
+            {
+                throw (IOException) ex.getNestedException();
+            }
+            
+            throw new InvalidPreferencesFormatException(ex);
+        }
+        catch (IllegalArgumentException ex)
+        {
+            // names, keys or values exceeding the limits of Preferences
+            throw new InvalidPreferencesFormatException(ex);
+        }
+        finally
+        {
+            if (reader != null)
+            {
+                try
+                {
+                    reader.close();
+                }
+                catch (XMLStreamException ex)
+                {
+                    // everything that was read has been applied
+                }
+            }
+        }
+    }
+    
+    /**
+     * Applies the content of the <code>root</code> or <code>node</code>
+     * element the reader is positioned at. Returns with the reader positioned
+     * at its end tag.
+     * @param path The path of the node relative to the root of the backing file.
+     */
+    private static void importNode(XMLFilePreferences preferences, XMLStreamReader reader, String path)
+        throws XMLStreamException, InvalidPreferencesFormatException
+    {
+        nextElement(reader, "map");
+        PreferencesEdit edit = preferences.edit(path);
+        boolean empty = true;
+        
+        while (reader.nextTag() == XMLStreamConstants.START_ELEMENT)
+        {
+            checkElement(reader, "entry");
+            String key = reader.getAttributeValue(null, "key");
+            String value = reader.getAttributeValue(null, "value");
+            
+            if (key == null || value == null)
+            {
+                throw new InvalidPreferencesFormatException("Entry without key or value at " + reader.getLocation());
+            }
+            
+            edit.put(key, value);
+            empty = false;
+            
+            // the end of the entry
+            reader.nextTag();
+        }
+        
+        if (empty)
+        {
+            if (!path.equals("/"))
+            {
+                preferences.node(path.substring(1));
+            }
+        }
+        else
+        {
+            edit.commit();
+        }
+        
+        String prefix = path.equals("/")? path : path + "/";
+        
+        while (reader.nextTag() == XMLStreamConstants.START_ELEMENT)
+        {
+            checkElement(reader, "node");
+            String name = reader.getAttributeValue(null, "name");
+            
+            if (name == null || name.isEmpty() || name.indexOf('/') >= 0)
+            {
+                throw new InvalidPreferencesFormatException("Invalid node name " + name + " at " + reader.getLocation());
+            }
+            
+            importNode(preferences, reader, prefix + name);
+        }
+    }
+    
+    /**
+     * Moves the reader to the next start tag, which must be of an element
+     * called <code>name</code>.
+     */
+    private static void nextElement(XMLStreamReader reader, String name)
+        throws XMLStreamException, InvalidPreferencesFormatException
+    {
+        int event;
+        
+        do
+        {
+            event = reader.next();
+        }
+        while (event != XMLStreamConstants.START_ELEMENT && event != XMLStreamConstants.END_ELEMENT && event != XMLStreamConstants.END_DOCUMENT);
+        
+        if (event != XMLStreamConstants.START_ELEMENT)
+        {
+            throw new InvalidPreferencesFormatException("Expected <" + name + "> at " + reader.getLocation());
+        }
+        
+        checkElement(reader, name);
+    }
+    
+    private static void checkElement(XMLStreamReader reader, String name)
+        throws InvalidPreferencesFormatException
+    {
+        if (!reader.getLocalName().equals(name))
+        {
+            throw new InvalidPreferencesFormatException("Expected <" + name + "> instead of <" + reader.getLocalName() + "> at " + reader.getLocation());
+        }
+    }
+}
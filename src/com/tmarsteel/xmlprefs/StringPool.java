@@ -0,0 +1,75 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 tobse-local.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.tmarsteel.xmlprefs;
+
+import java.lang.ref.WeakReference;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Deduplicates the keys, values and node names of one preferences tree. The
+ * pool refers to its strings weakly, so strings no longer used by the tree
+ * are collected as usual.
+ * @see XMLFilePreferences#setInterning(boolean)
+ * @author Tobias Marstaller (<a href="//github.com/tmarsteel">github.com/tmarsteel</a>)
+ */
+final class StringPool
+{
+    private final Map<String, WeakReference<String>> strings = new WeakHashMap<>();
+    
+    private long lookups = 0;
+    private long hits = 0;
+    private long deduplicatedChars = 0;
+    
+    /**
+     * @return The pooled string equal to <code>string</code>; <code>string</code>
+     * itself if there is none, which is then added to the pool.
+     */
+    synchronized String intern(String string)
+    {
+        lookups++;
+        
+        WeakReference<String> reference = strings.get(string);
+        String pooled = reference == null? null : reference.get();
+        
+        if (pooled == null)
+        {
+            strings.put(string, new WeakReference<>(string));
+            return string;
+        }
+        
+        if (pooled != string)
+        {
+            hits++;
+            deduplicatedChars += string.length();
+        }
+        
+        return pooled;
+    }
+    
+    synchronized StringPoolStatistics getStatistics()
+    {
+        return new StringPoolStatistics(strings.size(), lookups, hits, deduplicatedChars);
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 tobse-local.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.tmarsteel.xmlprefs;
+
+/**
+ * A snapshot of the statistics about the pool deduplicating the strings of
+ * a preferences tree.
+ * @see XMLFilePreferences#getPoolStatistics()
+ * @author Tobias Marstaller (<a href="//github.com/tmarsteel">github.com/tmarsteel</a>)
+ */
+public final class StringPoolStatistics
+{
+    private final int size;
+    private final long lookups;
+    private final long hits;
+    private final long deduplicatedChars;
+    
+    StringPoolStatistics(int size, long lookups, long hits, long deduplicatedChars)
+    {
+        this.size = size;
+        this.lookups = lookups;
+        this.hits = hits;
+        this.deduplicatedChars = deduplicatedChars;
+    }
+    
+    /**
+     * @return The number of distinct strings in the pool.
+     */
+    public int getSize()
+    {
+        return size;
+    }
+    
+    /**
+     * @return The number of strings looked up in the pool.
+     */
+    public long getLookups()
+    {
+        return lookups;
+    }
+    
+    /**
+     * @return The number of strings that were replaced by an equal string
+     * from the pool, i.e. the number of copies not kept in memory.
+     */
+    public long getHits()
+    {
+        return hits;
+    }
+    
+    /**
+     * @return The total length of the strings replaced by an equal string
+     * from the pool.
+     */
+    public long getDeduplicatedChars()
+    {
+        return deduplicatedChars;
+    }
+    
+    @Override
+    public String toString()
+    {
+        return "StringPoolStatistics[size=" + size + ", lookups=" + lookups + ", hits=" + hits +
+            ", deduplicatedChars=" + deduplicatedChars + "]";
+    }
+}
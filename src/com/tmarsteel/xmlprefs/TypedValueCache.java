@@ -0,0 +1,203 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 tobse-local.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.tmarsteel.xmlprefs;
+
+import java.util.Base64;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * Caches the results of parsing property values as primitives or Base64
+ * encoded byte arrays, so repeated typed reads of an unchanged value do not
+ * parse it again. An entry is valid as long as the property still holds the
+ * very same {@link String} instance it was parsed from; any modification,
+ * including a reload of the file, replaces that instance.
+ * @author Tobias Marstaller (<a href="//github.com/tmarsteel">github.com/tmarsteel</a>)
+ */
+final class TypedValueCache
+{
+    private static final Function<String, Integer> INT = Integer::valueOf;
+    private static final Function<String, Long> LONG = Long::valueOf;
+    private static final Function<String, Float> FLOAT = Float::valueOf;
+    private static final Function<String, Double> DOUBLE = Double::valueOf;
+    private static final Function<String, Boolean> BOOLEAN = TypedValueCache::parseBoolean;
+    private static final Function<String, byte[]> BYTE_ARRAY = TypedValueCache::parseByteArray;
+    
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    
+    /**
+     * @param key The key of the property.
+     * @param value The current value of the property; may be null.
+     * @param def The value to return if <code>value</code> is null or no
+     * valid integer.
+     * @see java.util.prefs.Preferences#getInt(String, int)
+     */
+    int getInt(String key, String value, int def)
+    {
+        Integer parsed = get(key, value, Integer.class, INT);
+        return parsed == null? def : parsed;
+    }
+    
+    /**
+     * @see #getInt(String, String, int)
+     */
+    long getLong(String key, String value, long def)
+    {
+        Long parsed = get(key, value, Long.class, LONG);
+        return parsed == null? def : parsed;
+    }
+    
+    /**
+     * @see #getInt(String, String, int)
+     */
+    float getFloat(String key, String value, float def)
+    {
+        Float parsed = get(key, value, Float.class, FLOAT);
+        return parsed == null? def : parsed;
+    }
+    
+    /**
+     * @see #getInt(String, String, int)
+     */
+    double getDouble(String key, String value, double def)
+    {
+        Double parsed = get(key, value, Double.class, DOUBLE);
+        return parsed == null? def : parsed;
+    }
+    
+    /**
+     * @see #getInt(String, String, int)
+     */
+    boolean getBoolean(String key, String value, boolean def)
+    {
+        Boolean parsed = get(key, value, Boolean.class, BOOLEAN);
+        return parsed == null? def : parsed;
+    }
+    
+    /**
+     * @return A copy of the decoded bytes, as callers may modify them; <code>def</code>
+     * if <code>value</code> is null or not valid Base64.
+     * @see #getInt(String, String, int)
+     */
+    byte[] getByteArray(String key, String value, byte[] def)
+    {
+        byte[] parsed = get(key, value, byte[].class, BYTE_ARRAY);
+        return parsed == null? def : parsed.clone();
+    }
+    
+    /**
+     * Removes the entry for <code>key</code>; called when the property is
+     * modified so that stale entries do not linger.
+     */
+    void invalidate(String key)
+    {
+        entries.remove(key);
+    }
+    
+    /**
+     * @return The parsed value; null if <code>value</code> is null or can not
+     * be parsed as <code>type</code>.
+     */
+    private <T> T get(String key, String value, Class<T> type, Function<String, T> parser)
+    {
+        if (value == null)
+        {
+            return null;
+        }
+        
+        Entry entry = entries.get(key);
+        
+        if (entry == null || entry.source != value || entry.type != type)
+        {
+            T parsed;
+            try
+            {
+                parsed = parser.apply(value);
+            }
+            catch (IllegalArgumentException ex)
+            {
+                parsed = null;
+            }
+            
+            entry = new Entry(value, type, parsed);
+            entries.put(key, entry);
+        }
+        
+        return type.cast(entry.value);
+    }
+    
+    /**
+     * Parses booleans like {@link java.util.prefs.Preferences#getBoolean(String, boolean)}.
+     */
+    private static Boolean parseBoolean(String value)
+    {
+        if (value.equalsIgnoreCase("true"))
+        {
+            return Boolean.TRUE;
+        }
+        
+        if (value.equalsIgnoreCase("false"))
+        {
+            return Boolean.FALSE;
+        }
+        
+        return null;
+    }
+    
+    /**
+     * Decodes byte arrays like {@link java.util.prefs.Preferences#getByteArray(String, byte[])},
+     * which requires padding.
+     */
+    private static byte[] parseByteArray(String value)
+    {
+        if (value.length() % 4 != 0)
+        {
+            return null;
+        }
+        
+        return Base64.getDecoder().decode(value);
+    }
+    
+    private static final class Entry
+    {
+        /**
+         * The value the entry was parsed from; compared by identity.
+         */
+        private final String source;
+        private final Class<?> type;
+        
+        /**
+         * The parsed value; null if <code>source</code> is not valid for <code>type</code>.
+         */
+        private final Object value;
+        
+        private Entry(String source, Class<?> type, Object value)
+        {
+            this.source = source;
+            this.type = type;
+            this.value = value;
+        }
+    }
+}
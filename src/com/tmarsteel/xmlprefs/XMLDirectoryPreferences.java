@@ -0,0 +1,381 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 tobse-local.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.tmarsteel.xmlprefs;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.prefs.AbstractPreferences;
+import java.util.prefs.BackingStoreException;
+import java.util.prefs.Preferences;
+import org.xml.sax.SAXException;
+
+/**
+ * Preferences stored in a directory with one file per top-level node, so
+ * that flushing a modification rewrites only the file of its top-level node
+ * and writers of unrelated top-level nodes do not contend for the same file.
+ * <br />
+ * Every top-level node is an {@link XMLFilePreferences} of its own, called a
+ * shard, stored in <code>&lt;name&gt;.node.xml</code> with the name URL-encoded;
+ * it is read when the node is first accessed and can be configured like any
+ * other {@link XMLFilePreferences}. The properties of the root node are stored
+ * in <code>index.xml</code>. Flushing or syncing the root covers the index and
+ * all shards read so far; a shard is only written if it was modified. The
+ * file of a removed top-level node is deleted on the next flush of the root.
+ * <br />
+ * On file systems that ignore case, the names of top-level nodes must differ
+ * in more than case.
+ * @author Tobias Marstaller (<a href="//github.com/tmarsteel">github.com/tmarsteel</a>)
+ */
+public class XMLDirectoryPreferences extends AbstractPreferences implements AutoCloseable
+{
+    public static final String INDEX_FILENAME = "index.xml";
+    public static final String SHARD_SUFFIX = ".node.xml";
+    
+    /**
+     * The longest file name allowed for a shard; longer ones are rejected by
+     * common file systems.
+     */
+    private static final int MAX_FILENAME_LENGTH = 255;
+    
+    private final File directory;
+    private final LoadMode loadMode;
+    private final XMLFilePreferences index;
+    
+    /**
+     * The shards read so far by name, including removed ones whose files have
+     * not been deleted yet.
+     */
+    private final Map<String, XMLFilePreferences> shards = new ConcurrentHashMap<>();
+    
+    private volatile FileFormat fileFormat = FileFormat.XML;
+    
+    public XMLDirectoryPreferences(File directory)
+        throws SAXException, IOException
+    {
+        this(directory, LoadMode.EAGER);
+    }
+    
+    /**
+     * @param directory The directory to store the preferences in; created if
+     * it does not exist.
+     * @param loadMode How to read the index and the shards, see {@link LoadMode}.
+     */
+    public XMLDirectoryPreferences(File directory, LoadMode loadMode)
+        throws SAXException, IOException
+    {
+        super(null, "");
+        this.directory = directory;
+        this.loadMode = loadMode;
+        
+        Files.createDirectories(directory.toPath());
+        index = new XMLFilePreferences(new File(directory, INDEX_FILENAME), loadMode);
+    }
+    
+    /**
+     * @return The directory these preferences are stored in.
+     */
+    public File getDirectory()
+    {
+        return directory;
+    }
+    
+    /**
+     * @return The preferences holding the properties of the root node.
+     */
+    public XMLFilePreferences getIndex()
+    {
+        return index;
+    }
+    
+    /**
+     * Sets the format of the index and of all shards, including those read
+     * later; see {@link XMLFilePreferences#setFileFormat(FileFormat)}.
+     */
+    public void setFileFormat(FileFormat format)
+    {
+        synchronized (lock)
+        {
+            index.setFileFormat(format);
+            fileFormat = format;
+            
+            for (XMLFilePreferences shard : shards.values())
+            {
+                shard.setFileFormat(format);
+            }
+        }
+    }
+    
+    /**
+     * @return The format the index and the shards are written in.
+     * @see #setFileFormat(FileFormat)
+     */
+    public FileFormat getFileFormat()
+    {
+        return fileFormat;
+    }
+    
+    @Override
+    protected void putSpi(String key, String value)
+    {
+        index.put(key, value);
+    }
+    
+    @Override
+    protected String getSpi(String key)
+    {
+        return index.get(key, null);
+    }
+    
+    @Override
+    protected void removeSpi(String key)
+    {
+        index.remove(key);
+    }
+    
+    @Override
+    protected void removeNodeSpi()
+        throws BackingStoreException
+    {
+        throw new UnsupportedOperationException("The root node can not be removed.");
+    }
+    
+    @Override
+    protected String[] keysSpi()
+        throws BackingStoreException
+    {
+        return index.keys();
+    }
+    
+    /**
+     * @return The names of the shards in the directory; shards that were
+     * created but not flushed yet are known to {@link AbstractPreferences}
+     * already.
+     */
+    @Override
+    protected String[] childrenNamesSpi()
+        throws BackingStoreException
+    {
+        List<String> names = new ArrayList<>();
+        
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory.toPath(), "*" + SHARD_SUFFIX))
+        {
+            for (Path file : files)
+            {
+                String fileName = file.getFileName().toString();
+                String name = URLDecoder.decode(fileName.substring(0, fileName.length() - SHARD_SUFFIX.length()), "UTF-8");
+                XMLFilePreferences shard = shards.get(name);
+                
+                if (shard == null || !shard.isNodeRemoved())
+                {
+                    names.add(name);
+                }
+            }
+        }
+        catch (IOException | IllegalArgumentException ex)
+        {
+            throw new BackingStoreException(ex);
+        }
+        
+        return names.toArray(new String[names.size()]);
+    }
+    
+    /**
+     * Resolves paths that lead into a shard through the shard, so that they
+     * are resolved the way it does, see
+     * {@link XMLFilePreferences#setNodeCacheLimit(int)}.
+     */
+    @Override
+    public Preferences node(String path)
+    {
+        String relative = path.startsWith("/")? path.substring(1) : path;
+        int slash = relative.indexOf('/');
+        
+        if (slash < 0 || relative.startsWith("/") || relative.endsWith("/") || relative.contains("//"))
+        {
+            // a shard itself, or an invalid path
+            return super.node(path);
+        }
+        
+        return super.node(relative.substring(0, slash)).node(relative.substring(slash + 1));
+    }
+    
+    /**
+     * Reads the shard <code>name</code>. If a shard of that name was removed
+     * but not deleted yet, it is deleted first.
+     * @throws IllegalArgumentException If the file name of the shard would be
+     * too long.
+     * @throws IllegalStateException If the shard could not be read.
+     */
+    @Override
+    protected AbstractPreferences childSpi(String name)
+    {
+        File file = getShardFile(name);
+        
+        try
+        {
+            XMLFilePreferences removed = shards.remove(name);
+            if (removed != null)
+            {
+                removed.deleteBackingFile();
+            }
+            
+            XMLFilePreferences shard = new XMLFilePreferences(this, name, file, loadMode);
+            shard.setFileFormat(fileFormat);
+            shards.put(name, shard);
+            
+            return shard;
+        }
+        catch (SAXException | IOException | BackingStoreException ex)
+        {
+            throw new IllegalStateException("Could not read " + file, ex);
+        }
+    }
+    
+    private File getShardFile(String name)
+    {
+        String fileName;
+        try
+        {
+            fileName = URLEncoder.encode(name, "UTF-8").replace("*", "%2A") + SHARD_SUFFIX;
+        }
+        catch (UnsupportedEncodingException ex)
+        {
+            throw new AssertionError(ex);
+        }
+        
+        if (fileName.length() > MAX_FILENAME_LENGTH)
+        {
+            throw new IllegalArgumentException("Node name " + name + " too long for a file name");
+        }
+        
+        return new File(directory, fileName);
+    }
+    
+    /**
+     * Deletes the files of removed shards. Holds the lock of this node so
+     * that no shard of the same name is created meanwhile.
+     */
+    private void deleteRemovedShards()
+        throws BackingStoreException
+    {
+        synchronized (lock)
+        {
+            for (Map.Entry<String, XMLFilePreferences> entry : shards.entrySet())
+            {
+                XMLFilePreferences shard = entry.getValue();
+                
+                if (shard.isNodeRemoved())
+                {
+                    shard.deleteBackingFile();
+                    shards.remove(entry.getKey(), shard);
+                }
+            }
+        }
+    }
+    
+    /**
+     * Flushes the index and every shard read so far; shards that were not
+     * modified are not written. Deletes the files of removed shards.
+     */
+    @Override
+    public void flush()
+        throws BackingStoreException
+    {
+        index.flush();
+        deleteRemovedShards();
+        
+        for (XMLFilePreferences shard : shards.values())
+        {
+            if (!shard.isNodeRemoved())
+            {
+                shard.flush();
+            }
+        }
+    }
+    
+    /**
+     * Syncs the index and every shard read so far and deletes the files of
+     * removed shards.
+     * @see XMLFilePreferences#sync()
+     */
+    @Override
+    public void sync()
+        throws BackingStoreException
+    {
+        index.sync();
+        deleteRemovedShards();
+        
+        for (XMLFilePreferences shard : shards.values())
+        {
+            if (!shard.isNodeRemoved())
+            {
+                shard.sync();
+            }
+        }
+    }
+    
+    /**
+     * Closes the index and every shard read so far, see {@link XMLFilePreferences#close()}.
+     */
+    @Override
+    public void close()
+        throws BackingStoreException
+    {
+        XMLFilePreferencesFactory.unregister(this);
+        index.close();
+        deleteRemovedShards();
+        
+        for (XMLFilePreferences shard : shards.values())
+        {
+            if (!shard.isNodeRemoved())
+            {
+                shard.close();
+            }
+        }
+    }
+    
+    @Override
+    protected void syncSpi()
+        throws BackingStoreException
+    {
+        throw new UnsupportedOperationException("call sync() directly.");
+    }
+    
+    @Override
+    protected void flushSpi()
+        throws BackingStoreException
+    {
+        throw new UnsupportedOperationException("call flush() directly.");
+    }
+}
@@ -25,99 +25,1734 @@ package com.tmarsteel.xmlprefs;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import java.util.prefs.AbstractPreferences;
 import java.util.prefs.BackingStoreException;
-import javax.xml.parsers.DocumentBuilder;
+import java.util.prefs.InvalidPreferencesFormatException;
+import java.util.prefs.NodeChangeListener;
+import java.util.prefs.PreferenceChangeEvent;
+import java.util.prefs.PreferenceChangeListener;
+import java.util.prefs.Preferences;
+import java.util.zip.ZipException;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.transform.OutputKeys;
-import javax.xml.transform.Transformer;
-import javax.xml.transform.TransformerConfigurationException;
-import javax.xml.transform.TransformerException;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.dom.DOMSource;
-import javax.xml.transform.stream.StreamResult;
+import javax.xml.stream.XMLStreamException;
 import org.w3c.dom.Document;
+import org.w3c.dom.Element;
 import org.xml.sax.SAXException;
 
 /**
- * The XML file preferences implementation.
+ * The XML file preferences implementation. Since 0.2.0, the preferences are
+ * held in a compact tree rather than a W3C DOM, see {@link #getRootDocument()}.
  * @author Tobias Marstaller (<a href="//github.com/tmarsteel">github.com/tmarsteel</a>)
  */
-public class XMLFilePreferences extends AbstractPreferences
+public class XMLFilePreferences extends AbstractPreferences implements AutoCloseable
 {
+    private static final Logger LOGGER = Logger.getLogger(XMLFilePreferences.class.getName());
+    
+    /**
+     * The system property that enables metrics for new instances, see
+     * {@link #setMetricsEnabled(boolean)}.
+     */
+    public static final String METRICS_PROPERTY = "com.tmarsteel.xmlprefs.metrics";
+    
+    /**
+     * The system property that enables interning for new instances, see
+     * {@link #setInterning(boolean)}.
+     */
+    public static final String INTERNING_PROPERTY = "com.tmarsteel.xmlprefs.interning";
+    
+    /**
+     * The system property that sets the node cache limit of new instances,
+     * see {@link #setNodeCacheLimit(int)}.
+     */
+    public static final String NODE_CACHE_PROPERTY = "com.tmarsteel.xmlprefs.nodeCacheLimit";
+    
     private File backingFile;
     protected XMLNodePreferences rootPreferences;
-    private Document rootDocument;
     
-    public XMLFilePreferences(File backingFile)
+    private final PreferencesFile store;
+    
+    /**
+     * Guards the structure of the preferences tree: held while nodes are
+     * modified and while the tree is written. Reads of a single node are
+     * guarded by the lock of its preferences object alone: modifications
+     * either hold that lock as well or replace the properties or child nodes
+     * with an updated copy.
+     */
+    final Object treeLock = new Object();
+    
+    /**
+     * Incremented on every modification of the tree.
+     */
+    private long generation = 0;
+    
+    /**
+     * The generation that was last written to <code>backingFile</code>.
+     */
+    private long flushedGeneration = 0;
+    
+    /**
+     * The nodes modified since the last flush, see {@link PreferencesNode#isDirty()}.
+     * Removed nodes are not taken out.
+     */
+    private final Set<PreferencesNode> dirtyNodes = new LinkedHashSet<>();
+    
+    /**
+     * Flushes modifications in the background; null unless enabled through
+     * {@link #setAutoFlush(long, long, TimeUnit)}.
+     */
+    private volatile FlushScheduler flushScheduler = null;
+    
+    /**
+     * Reloads the tree when the backing file changes; null unless enabled
+     * through {@link #setAutoReload(long, TimeUnit)}.
+     */
+    private FileWatcher fileWatcher = null;
+    
+    /**
+     * Whether get() and keys() read from property snapshots, see
+     * {@link #setReadOptimized(boolean)}.
+     */
+    private volatile boolean readOptimized = false;
+    
+    /**
+     * Set while the current thread merges the contents of the backing file
+     * into the tree; modifications made for that are not recorded as such.
+     */
+    private final ThreadLocal<Boolean> merging = new ThreadLocal<>();
+    
+    /**
+     * Serializes reading and writing the backing file within these preferences.
+     */
+    private final Object ioLock = new Object();
+    
+    /**
+     * Whether flush() appends to the journal instead of writing the whole
+     * tree, see {@link #setJournaling(long)}.
+     */
+    private volatile boolean journaling = false;
+    private volatile long compactionThreshold;
+    
+    /**
+     * Runs compactions of the journal; created when first needed.
+     */
+    private ExecutorService compactionExecutor = null;
+    private final AtomicBoolean compactionPending = new AtomicBoolean();
+    
+    /**
+     * Runs the flushes of {@link #flushAsync()}, see
+     * {@link #setFlushExecutor(Executor)}; null for the default executor,
+     * which is created when first needed.
+     */
+    private Executor flushExecutor = null;
+    private ExecutorService defaultFlushExecutor = null;
+    
+    /**
+     * The future of the asynchronous flush that has been submitted but not
+     * started yet; null if there is none. Guarded by {@link #flushLock}.
+     */
+    private CompletableFuture<Void> pendingFlush = null;
+    private final Object flushLock = new Object();
+    
+    /**
+     * The listeners registered with the root, see
+     * {@link XMLNodePreferences#getPreferenceChangeListeners()}.
+     */
+    private final List<PreferenceChangeListener> preferenceChangeListeners = new CopyOnWriteArrayList<>();
+    
+    /**
+     * Delivers the events of {@link #edit(String)}; created when first needed.
+     */
+    private ExecutorService eventDispatcher = null;
+    
+    /**
+     * The nodes created by {@link #commit(Map)} that do not have preferences
+     * objects yet; guarded by {@link #treeLock}.
+     */
+    private final Set<PreferencesNode> committedNodes = Collections.newSetFromMap(new IdentityHashMap<>());
+    
+    /**
+     * The preferences objects of the nodes of the tree, see
+     * {@link #setNodeCacheLimit(int)}.
+     */
+    final NodePreferencesCache nodeCache = new NodePreferencesCache();
+    
+    /**
+     * The number of node change listeners registered with the root.
+     */
+    private volatile int nodeChangeListeners = 0;
+    
+    private final PreferencesMetrics metrics = new PreferencesMetrics(this);
+    private volatile boolean metricsEnabled = Boolean.getBoolean(METRICS_PROPERTY);
+    
+    /**
+     * The pool the strings of the tree are deduplicated through; null while
+     * interning is disabled. Guarded by {@link #treeLock}.
+     */
+    private volatile StringPool pool = null;
+    
+    /**
+     * Reads <code>backingFile</code> eagerly, see
+     * {@link #XMLFilePreferences(File, LoadMode)}.
+     */
+    public XMLFilePreferences(File backingFile)
+        throws SAXException, IOException
+    {
+        this(backingFile, LoadMode.EAGER);
+    }
+    
+    /**
+     * Creates new preferences for <code>backingFile</code>, bypassing the
+     * registry of {@link XMLFilePreferencesFactory}: if the file is also
+     * opened through the factory or another constructor call, the instances
+     * do not share modifications and overwrite each other's on flush. Use
+     * {@link XMLFilePreferencesFactory#getFilePreferences(File)} to share one
+     * instance per file.
+     * @param backingFile The file to store the preferences in.
+     * @param loadMode How to read the backing file, see {@link LoadMode}.
+     */
+    public XMLFilePreferences(File backingFile, LoadMode loadMode)
+        throws SAXException, IOException
+    {
+        this(null, "", backingFile, loadMode);
+    }
+    
+    /**
+     * Creates preferences stored in <code>backingFile</code> that form the
+     * node <code>name</code> below <code>parent</code>; used for the shards of
+     * {@link XMLDirectoryPreferences}. If the file does not exist yet, the
+     * node counts as new and modified, so that the next flush creates it.
+     */
+    XMLFilePreferences(AbstractPreferences parent, String name, File backingFile, LoadMode loadMode)
+        throws SAXException, IOException
+    {
+        super(parent, name);
+        this.backingFile = backingFile;
+        this.store = new PreferencesFile(backingFile.toPath(), loadMode);
+        
+        boolean exists = backingFile.exists();
+        rootPreferences = new XMLNodePreferences(this, readFile());
+        
+        if (parent != null && !exists)
+        {
+            newNode = true;
+            
+            synchronized (treeLock)
+            {
+                modified(rootPreferences.getNode());
+            }
+        }
+        
+        if (Boolean.getBoolean(INTERNING_PROPERTY))
+        {
+            setInterning(true);
+        }
+        
+        int nodeCacheLimit = Integer.getInteger(NODE_CACHE_PROPERTY, -1);
+        if (nodeCacheLimit >= 0)
+        {
+            setNodeCacheLimit(nodeCacheLimit);
+        }
+        
+        if (metricsEnabled)
+        {
+            metrics.register();
+        }
+    }
+    
+    /**
+     * @return The file these preferences are stored in.
+     */
+    public File getBackingFile()
+    {
+        return backingFile;
+    }
+    
+    /**
+     * @return How the backing file is read.
+     */
+    public LoadMode getLoadMode()
+    {
+        return store.getLoadMode();
+    }
+    
+    /**
+     * Sets the format the backing file is written in; defaults to
+     * {@link FileFormat#XML}. The format of the file when it is read is
+     * detected from its contents. The new format applies from the next time
+     * the entire file is written; with journaling enabled, that is the next
+     * compaction.
+     * @param format The new file format.
+     */
+    public void setFileFormat(FileFormat format)
+    {
+        store.setFormat(format);
+    }
+    
+    /**
+     * @return The format the backing file is written in.
+     * @see #setFileFormat(FileFormat)
+     */
+    public FileFormat getFileFormat()
+    {
+        return store.getFormat();
+    }
+    
+    /**
+     * Sets when flushes are forced to the storage device; defaults to
+     * {@link FsyncPolicy#ALWAYS}. Regardless of the policy, the backing file is
+     * replaced atomically by flush().
+     * @param policy The new fsync policy.
+     */
+    public void setFsyncPolicy(FsyncPolicy policy)
+    {
+        store.setFsyncPolicy(policy);
+    }
+    
+    /**
+     * Sets the minimum time between two forced flushes under
+     * {@link FsyncPolicy#INTERVAL}; defaults to one second.
+     */
+    public void setFsyncInterval(long interval, TimeUnit unit)
+    {
+        store.setFsyncInterval(interval, unit);
+    }
+    
+    /**
+     * Enables or disables read-optimized mode. In read-optimized mode, every
+     * node keeps an immutable snapshot of its properties that is replaced
+     * with an updated copy whenever a property of the node is set or removed.
+     * {@link #get(String, String)} (and the typed getters built on it) and
+     * {@link #keys()} read from that snapshot without taking any lock, so
+     * concurrent readers of a node never contend with each other or with
+     * writers. In exchange, every write copies the properties of the node and
+     * the properties are held twice in memory; the mode suits nodes that are
+     * read much more often than written.
+     * @param readOptimized Whether to enable read-optimized mode.
+     */
+    public void setReadOptimized(boolean readOptimized)
+    {
+        synchronized (treeLock)
+        {
+            this.readOptimized = readOptimized;
+            
+            if (!readOptimized)
+            {
+                discardSnapshots(rootPreferences.getNode());
+            }
+        }
+    }
+    
+    /**
+     * @return Whether read-optimized mode is enabled.
+     * @see #setReadOptimized(boolean)
+     */
+    public boolean isReadOptimized()
+    {
+        return readOptimized;
+    }
+    
+    private static void discardSnapshots(PreferencesNode node)
+    {
+        if (node.getUnparsed() != null)
+        {
+            // has no snapshot yet
+            return;
+        }
+        
+        node.discardSnapshot();
+        
+        for (PreferencesNode child : node.getChildren())
+        {
+            discardSnapshots(child);
+        }
+    }
+    
+    /**
+     * Returns the snapshot of the properties of <code>node</code>, creating it
+     * if necessary; only the creation requires locking.
+     * @throws IllegalStateException If <code>node</code> has been removed.
+     */
+    Map<String, String> getSnapshot(PreferencesNode node)
+    {
+        if (node.isRemoved())
+        {
+            throw new IllegalStateException("Node has been removed.");
+        }
+        
+        Map<String, String> snapshot = node.getSnapshot();
+        
+        if (snapshot == null)
+        {
+            synchronized (treeLock)
+            {
+                snapshot = node.createSnapshot();
+            }
+        }
+        
+        return snapshot;
+    }
+    
+    /**
+     * Enables or disables metrics. While enabled, the number and durations
+     * of get, put and remove calls on all nodes, node creations, reads of the
+     * backing file and flushes are recorded (see {@link #getStatistics()})
+     * and exposed through a {@link PreferencesMetricsMXBean} registered with
+     * the platform MBean server. The MBean does not keep these preferences
+     * reachable; it is unregistered by {@link #close()}, when metrics are
+     * disabled or once these preferences are garbage collected. Recording
+     * allocates nothing but costs two calls to {@link System#nanoTime()} per
+     * operation; while disabled, it is skipped entirely. Metrics are disabled by default unless the system
+     * property {@value #METRICS_PROPERTY} is set to <code>true</code>, which
+     * also covers the initial read of the backing file.
+     * @param enabled Whether to record metrics.
+     */
+    public void setMetricsEnabled(boolean enabled)
+    {
+        metricsEnabled = enabled;
+        
+        if (enabled)
+        {
+            metrics.register();
+        }
+        else
+        {
+            metrics.unregister();
+        }
+    }
+    
+    /**
+     * @return Whether metrics are enabled.
+     * @see #setMetricsEnabled(boolean)
+     */
+    public boolean isMetricsEnabled()
+    {
+        return metricsEnabled;
+    }
+    
+    /**
+     * Returns the metrics recorded while metrics were enabled. Disabling them
+     * keeps the values recorded so far.
+     * @return A snapshot of the metrics of these preferences.
+     * @see #setMetricsEnabled(boolean)
+     */
+    public PreferencesStatistics getStatistics()
+    {
+        return metrics.getStatistics();
+    }
+    
+    /**
+     * Enables or disables interning: deduplicating the keys, values and node
+     * names of the tree through a pool of this instance, so that trees
+     * repeating the same strings over and over need to keep only one copy of
+     * each in memory. Enabling it deduplicates the strings already loaded;
+     * unparsed nodes of {@link LoadMode#LAZY} are deduplicated when they are
+     * parsed. Interning costs a lookup in the pool for every string loaded or
+     * set. It is disabled by default unless the system property
+     * {@value #INTERNING_PROPERTY} is set to <code>true</code>.
+     * @param enabled Whether to deduplicate strings.
+     * @see #getPoolStatistics()
+     */
+    public void setInterning(boolean enabled)
+    {
+        synchronized (treeLock)
+        {
+            if (enabled == (pool != null))
+            {
+                return;
+            }
+            
+            pool = enabled? new StringPool() : null;
+            rootPreferences.getNode().intern(pool);
+        }
+    }
+    
+    /**
+     * @return Whether interning is enabled.
+     * @see #setInterning(boolean)
+     */
+    public boolean isInterning()
+    {
+        return pool != null;
+    }
+    
+    /**
+     * @return A snapshot of the statistics of the pool strings are deduplicated
+     * through; null if interning is disabled.
+     * @see #setInterning(boolean)
+     */
+    public StringPoolStatistics getPoolStatistics()
+    {
+        StringPool pool = this.pool;
+        
+        return pool == null? null : pool.getStatistics();
+    }
+    
+    /**
+     * Bounds the number of preferences objects kept for the nodes of the tree.
+     * By default, as with every {@link AbstractPreferences}, each node returned
+     * by {@link #node(String)} is cached by its parent for as long as the
+     * root lives, so scanning a large tree once keeps an object for every
+     * node. With a limit, only the <code>limit</code> most recently used
+     * objects are kept, plus those that have listeners or are referenced
+     * elsewhere; the others are left to the garbage collector and created
+     * anew on their next access. As long as an object is referenced, it is
+     * returned for its node, so it does not matter which one is modified. The
+     * nodes themselves remain in memory either way.
+     * <br />
+     * The children of nodes with a {@link java.util.prefs.NodeChangeListener}
+     * are cached as usual. The limit applies to objects created afterwards;
+     * without it set, the system property {@value #NODE_CACHE_PROPERTY} is
+     * used.
+     * @param limit The number of objects to keep regardless of their use.
+     */
+    public void setNodeCacheLimit(int limit)
+    {
+        if (limit < 0)
+        {
+            throw new IllegalArgumentException("The limit must not be negative.");
+        }
+        
+        nodeCache.setLimit(limit);
+    }
+    
+    /**
+     * Keeps the preferences objects of all nodes again, as by default.
+     * @see #setNodeCacheLimit(int)
+     */
+    public void disableNodeCacheLimit()
+    {
+        nodeCache.setLimit(-1);
+    }
+    
+    /**
+     * @return The node cache limit; -1 if disabled.
+     * @see #setNodeCacheLimit(int)
+     */
+    public int getNodeCacheLimit()
+    {
+        return nodeCache.getLimit();
+    }
+    
+    /**
+     * @return The metrics if enabled, null otherwise.
+     */
+    PreferencesMetrics getMetrics()
+    {
+        return metricsEnabled? metrics : null;
+    }
+    
+    /**
+     * Sets how long loading, flushing and syncing wait for other processes to
+     * release their lock on the backing file before failing with a
+     * {@link BackingStoreException}; defaults to ten seconds.
+     */
+    public void setLockTimeout(long timeout, TimeUnit unit)
+    {
+        store.setLockTimeout(timeout, unit);
+    }
+    
+    /**
+     * Returns how often and for how long these preferences waited for the
+     * lock on the backing file. The lock is shared with other processes (and
+     * other instances for the same file in this JVM) accessing the file.
+     * @return Statistics about the lock on the backing file.
+     */
+    public LockStatistics getLockStatistics()
+    {
+        return store.getLockStatistics();
+    }
+    
+    /**
+     * Enables automatic flushing: modifications are written on a background
+     * thread once the tree has not been modified for <code>quietPeriod</code>,
+     * or at the latest <code>maxDelay</code> after the first modification that
+     * has not been flushed yet. Explicit calls to {@link #flush()} still write
+     * synchronously. A failed flush is retried up to five times with
+     * increasing delays before the next modification schedules a flush again.
+     * Pending modifications are written by {@link #close()},
+     * {@link #disableAutoFlush()} and when the JVM shuts down.
+     * @param quietPeriod The time without modifications after which the tree is flushed.
+     * @param maxDelay The maximum time a modification remains unflushed while
+     * further modifications keep coming in; must not be less than <code>quietPeriod</code>.
+     * @param unit The unit of <code>quietPeriod</code> and <code>maxDelay</code>.
+     */
+    public synchronized void setAutoFlush(long quietPeriod, long maxDelay, TimeUnit unit)
+    {
+        if (quietPeriod < 0 || maxDelay < quietPeriod)
+        {
+            throw new IllegalArgumentException("Require 0 <= quietPeriod <= maxDelay.");
+        }
+        
+        FlushScheduler previous = flushScheduler;
+        FlushScheduler scheduler = new FlushScheduler(this, quietPeriod, maxDelay, unit);
+        flushScheduler = scheduler;
+        
+        if (previous != null)
+        {
+            try
+            {
+                previous.shutdown();
+            }
+            catch (BackingStoreException ex)
+            {
+                // the new scheduler retries below
+            }
+        }
+        
+        if (isDirty())
+        {
+            scheduler.modified();
+        }
+    }
+    
+    /**
+     * Disables automatic flushing, writing pending modifications first.
+     * @see #setAutoFlush(long, long, TimeUnit)
+     */
+    public synchronized void disableAutoFlush()
+        throws BackingStoreException
+    {
+        FlushScheduler scheduler = flushScheduler;
+        flushScheduler = null;
+        
+        if (scheduler != null)
+        {
+            scheduler.shutdown();
+        }
+    }
+    
+    /**
+     * Enables automatic reloading: the directory of the backing file is
+     * watched for modifications of the file, which are then merged into these
+     * preferences on a background thread as if by {@link #sync()}, except
+     * that local modifications are not flushed. Listeners are notified of the
+     * properties and nodes that change. Reloading waits until the file has
+     * not been modified for <code>debounce</code>.
+     * @throws IOException If the directory of the backing file cannot be watched.
+     */
+    public synchronized void setAutoReload(long debounce, TimeUnit unit)
+        throws IOException
+    {
+        if (debounce < 0)
+        {
+            throw new IllegalArgumentException("The debounce period must not be negative.");
+        }
+        
+        disableAutoReload();
+        fileWatcher = new FileWatcher(this, debounce, unit);
+    }
+    
+    /**
+     * Disables automatic reloading.
+     * @see #setAutoReload(long, TimeUnit)
+     */
+    public synchronized void disableAutoReload()
+    {
+        if (fileWatcher != null)
+        {
+            fileWatcher.stop();
+            fileWatcher = null;
+        }
+    }
+    
+    /**
+     * Enables journaling: instead of writing the entire tree, {@link #flush()}
+     * appends the properties and nodes modified since the last flush to a
+     * journal next to the backing file (named like it with the suffix
+     * <code>.journal</code>), so that the cost of a flush depends on the size
+     * of the modifications rather than on the size of the tree. The journal is
+     * replayed whenever the backing file is read, also by instances that do
+     * not have journaling enabled. Once it has grown beyond
+     * <code>compactionThreshold</code> bytes, the entire tree is written to the
+     * backing file on a background thread and the journal is deleted.
+     * @param compactionThreshold The size of the journal in bytes above which it is compacted.
+     */
+    public void setJournaling(long compactionThreshold)
+    {
+        if (compactionThreshold < 0)
+        {
+            throw new IllegalArgumentException("The compaction threshold must not be negative.");
+        }
+        
+        this.compactionThreshold = compactionThreshold;
+        this.journaling = true;
+    }
+    
+    /**
+     * Disables journaling, writing the entire tree to the backing file if a
+     * journal exists.
+     * @see #setJournaling(long)
+     */
+    public void disableJournaling()
+        throws BackingStoreException
+    {
+        journaling = false;
+        shutdownCompaction();
+        write(true);
+    }
+    
+    /**
+     * @return Whether journaling is enabled.
+     * @see #setJournaling(long)
+     */
+    public boolean isJournaling()
+    {
+        return journaling;
+    }
+    
+    /**
+     * Compacts the journal on a background thread unless a compaction is
+     * pending already.
+     */
+    private synchronized void scheduleCompaction()
+    {
+        if (!compactionPending.compareAndSet(false, true))
+        {
+            return;
+        }
+        
+        if (compactionExecutor == null)
+        {
+            compactionExecutor = Executors.newSingleThreadExecutor(task -> {
+                Thread thread = new Thread(task, "xmlprefs-compact-" + backingFile.getName());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        
+        compactionExecutor.execute(() -> {
+            compactionPending.set(false);
+            
+            try
+            {
+                write(true);
+            }
+            catch (BackingStoreException | RuntimeException ex)
+            {
+                LOGGER.log(Level.WARNING, "Could not compact the journal of " + backingFile, ex);
+            }
+        });
+    }
+    
+    /**
+     * Stops the compaction thread after it has finished a running compaction.
+     */
+    private void shutdownCompaction()
+    {
+        ExecutorService executor;
+        
+        synchronized (this)
+        {
+            executor = compactionExecutor;
+            compactionExecutor = null;
+            compactionPending.set(false);
+        }
+        
+        if (executor != null)
+        {
+            executor.shutdownNow();
+            
+            try
+            {
+                executor.awaitTermination(1, TimeUnit.MINUTES);
+            }
+            catch (InterruptedException ex)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+    
+    /**
+     * Stops all background activity of these preferences, unregisters the
+     * metrics from JMX and writes pending modifications. Writes not yet forced
+     * according to {@link FsyncPolicy#INTERVAL} are forced to the storage
+     * device. These preferences remain usable afterwards, but are removed
+     * from the registry of {@link XMLFilePreferencesFactory}.
+     */
+    @Override
+    public void close()
+        throws BackingStoreException
+    {
+        XMLFilePreferencesFactory.unregister(this);
+        disableAutoReload();
+        disableAutoFlush();
+        shutdownCompaction();
+        shutdownFlushExecutor();
+        shutdownEventDispatcher();
+        metrics.unregister();
+        flush();
+        
+        try
+        {
+            store.force();
+        }
+        catch (IOException ex)
+        {
+            throw new BackingStoreException(ex);
+        }
+    }
+    
+    /**
+     * Stops all background activity of these preferences and deletes the
+     * backing file; used for removed shards of {@link XMLDirectoryPreferences}.
+     * Must not be called with the lock of any of these preferences held.
+     */
+    @SuppressWarnings("try")
+    void deleteBackingFile()
+        throws BackingStoreException
+    {
+        disableAutoReload();
+        disableAutoFlush();
+        shutdownCompaction();
+        metrics.unregister();
+        
+        synchronized (ioLock)
+        {
+            try (PreferencesFileLock.Held fileLock = store.lockExclusive())
+            {
+                store.delete();
+                
+                synchronized (treeLock)
+                {
+                    flushedGeneration = generation;
+                    dirtyNodes.clear();
+                }
+            }
+            catch (IOException ex)
+            {
+                throw new BackingStoreException(ex);
+            }
+        }
+    }
+    
+    /**
+     * @return Whether these preferences have been removed, see {@link #removeNode()}.
+     */
+    boolean isNodeRemoved()
+    {
+        return isRemoved();
+    }
+    
+    /**
+     * Starts a batch of modifications to the properties of one or more nodes
+     * that is applied at once, see {@link PreferencesEdit}. Modifying
+     * thousands of properties this way is considerably faster than through
+     * individual calls to {@link #put(String, String)}.
+     * @param path The path of the node to start with, relative to these
+     * preferences; a leading slash is allowed. For the shards of
+     * {@link XMLDirectoryPreferences}, this is not the root of the tree.
+     * @return The new edit.
+     * @throws IllegalArgumentException If <code>path</code> is not a valid path.
+     */
+    public PreferencesEdit edit(String path)
+    {
+        return new PreferencesEdit(this, PreferencesEdit.resolve("/", path));
+    }
+    
+    /**
+     * Applies the changes of a {@link PreferencesEdit}: checks that all nodes
+     * can be created, then creates the missing nodes and applies the changes
+     * to all nodes under a single hold of {@link #treeLock}, so that a failed
+     * commit changes nothing. The node locks are not taken: the properties of
+     * every affected node and the child nodes of every existing node that
+     * gains children are replaced with an updated copy rather than modified
+     * in place, so readers holding only the lock of a node see its properties
+     * and child nodes either before or after the edit. Finally, the
+     * preferences objects of the created nodes are obtained, which fires
+     * their node change events as usual, and one event per changed property
+     * is delivered.
+     * @param changes The changes by node path from the root of the backing
+     * file and key; a null value removes the property.
+     */
+    void commit(Map<String, Map<String, String>> changes)
+    {
+        if (changes.isEmpty())
+        {
+            return;
+        }
+        
+        List<PreferenceChangeEvent> events = new ArrayList<>();
+        List<PreferencesNode> created = new ArrayList<>();
+        List<String> createdPaths = new ArrayList<>();
+        Map<PreferencesNode, Map<String, PreferencesNode>> added = new IdentityHashMap<>();
+        
+        synchronized (treeLock)
+        {
+            if (rootPreferences.getNode().isRemoved())
+            {
+                throw new IllegalStateException("Node has been removed.");
+            }
+            
+            for (String path : changes.keySet())
+            {
+                checkCanBeNode(path);
+            }
+            
+            for (Map.Entry<String, Map<String, String>> entry : changes.entrySet())
+            {
+                int createdBefore = created.size();
+                PreferencesNode node = getOrAddNode(entry.getKey(), added, created);
+                
+                if (created.size() > createdBefore)
+                {
+                    createdPaths.add(entry.getKey());
+                }
+                
+                AbstractPreferences prefs = node == rootPreferences.getNode()? this : nodeCache.get(node);
+                boolean listened = prefs != null && !getPreferenceChangeListeners(prefs).isEmpty();
+                
+                for (String key : node.replaceProperties(entry.getValue()))
+                {
+                    propertyModified(node, key);
+                    
+                    if (listened)
+                    {
+                        events.add(new PreferenceChangeEvent(prefs, key, entry.getValue().get(key)));
+                    }
+                }
+            }
+            
+            for (Map.Entry<PreferencesNode, Map<String, PreferencesNode>> entry : added.entrySet())
+            {
+                entry.getKey().addChildren(entry.getValue().values());
+            }
+            
+            committedNodes.addAll(created);
+        }
+        
+        try
+        {
+            for (String path : createdPaths)
+            {
+                node(path.substring(1));
+            }
+        }
+        catch (IllegalStateException ex)
+        {
+            // removed concurrently; the commit has been applied regardless
+        }
+        finally
+        {
+            synchronized (treeLock)
+            {
+                committedNodes.removeAll(created);
+            }
+        }
+        
+        dispatch(events);
+    }
+    
+    /**
+     * Resolves <code>path</code>, creating the missing nodes on it like
+     * {@link XMLNodePreferences} does. Children of nodes in the tree are not
+     * added to them but collected in <code>added</code>, to be added through
+     * {@link PreferencesNode#addChildren(java.util.Collection)}; nodes below
+     * those are not reachable yet and get their children added directly.
+     * Must be called with {@link #treeLock} held and after
+     * {@link #checkCanBeNode(String)}.
+     * @param added Receives the created children of nodes in the tree by parent and name.
+     * @param created Receives the created nodes.
+     */
+    private PreferencesNode getOrAddNode(String path, Map<PreferencesNode, Map<String, PreferencesNode>> added, List<PreferencesNode> created)
+    {
+        PreferencesNode node = rootPreferences.getNode();
+        boolean attached = true;
+        
+        for (String name : path.split("/"))
+        {
+            if (name.isEmpty())
+            {
+                continue;
+            }
+            
+            PreferencesNode child = node.getChild(name);
+            
+            if (child == null && attached)
+            {
+                attached = false;
+                
+                Map<String, PreferencesNode> children = added.computeIfAbsent(node, parent -> new LinkedHashMap<>());
+                child = children.get(name);
+                
+                if (child == null)
+                {
+                    child = node.newChild(name);
+                    children.put(name, child);
+                    childCreated(node, child, created);
+                }
+            }
+            else if (child == null)
+            {
+                child = node.getOrAddChild(name);
+                childCreated(node, child, created);
+            }
+            
+            node = child;
+        }
+        
+        return node;
+    }
+    
+    /**
+     * Records <code>child</code> as created by {@link #commit(Map)}.
+     */
+    private void childCreated(PreferencesNode parent, PreferencesNode child, List<PreferencesNode> created)
+    {
+        childModified(parent, child.getName());
+        created.add(child);
+        
+        PreferencesMetrics metrics = getMetrics();
+        if (metrics != null)
+        {
+            metrics.childCreated();
+        }
+    }
+    
+    /**
+     * Called by {@link XMLNodePreferences} when it wraps an existing node;
+     * must be called with {@link #treeLock} held.
+     * @return Whether <code>node</code> was created by {@link #commit(Map)}
+     * and has not had a preferences object yet, i.e. whether it is new to
+     * {@link AbstractPreferences}.
+     */
+    boolean takeCommittedNode(PreferencesNode node)
+    {
+        return !committedNodes.isEmpty() && committedNodes.remove(node);
+    }
+    
+    /**
+     * @throws IllegalStateException If a node on <code>path</code> would have
+     * to be created with the name of an existing property.
+     */
+    private void checkCanBeNode(String path)
+    {
+        PreferencesNode node = rootPreferences.getNode();
+        
+        for (String name : path.split("/"))
+        {
+            if (name.isEmpty())
+            {
+                continue;
+            }
+            
+            PreferencesNode child = node.getChild(name);
+            
+            if (child == null)
+            {
+                if (node.getProperty(name) != null)
+                {
+                    throw new IllegalStateException(name + " is already set as a property.");
+                }
+                
+                return;
+            }
+            
+            node = child;
+        }
+    }
+    
+    /**
+     * Walks the subtree rooted at the node at <code>path</code>, passing its
+     * nodes and properties to <code>visitor</code>. Unlike walking it through
+     * {@link #childrenNames()}, {@link #keys()} and {@link #node(String)}, this
+     * creates no arrays of names and no preferences objects for the nodes
+     * visited, and it does not copy the subtree. The live tree is read node by
+     * node under its lock, which is not held while the visitor is called;
+     * visitors may thus use and modify these preferences. Each node is seen
+     * as it is when the walk enters it: properties and child nodes added to
+     * it later are not visited, and nodes removed before they are entered
+     * are skipped.
+     * @param path The path of the node to start with, relative to these
+     * preferences; a leading slash is allowed.
+     * @return Whether the node exists; nothing is visited if not.
+     * @throws IllegalArgumentException If <code>path</code> is not a valid path.
+     */
+    public boolean walk(String path, PreferencesVisitor visitor)
+    {
+        PreferencesNode node;
+        PreferencesNode root;
+        
+        synchronized (treeLock)
+        {
+            node = findNode(path);
+            root = rootPreferences.getNode();
+        }
+        
+        if (node == null)
+        {
+            return false;
+        }
+        
+        new PreferencesWalker(treeLock, root, visitor).walk(node, 0);
+        return true;
+    }
+    
+    /**
+     * Returns the value of the property <code>key</code> of the node at
+     * <code>path</code>. The node is looked up in the tree directly; neither
+     * it nor its ancestors are created or get preferences objects.
+     * @param path The path of the node, relative to these preferences; a
+     * leading slash is allowed.
+     * @return The value or <code>def</code> if the node or the property does
+     * not exist.
+     * @throws IllegalArgumentException If <code>path</code> is not a valid path.
+     * @see #get(String, String)
+     */
+    public String get(String path, String key, String def)
+    {
+        if (key == null)
+        {
+            throw new NullPointerException("Null key");
+        }
+        
+        synchronized (treeLock)
+        {
+            PreferencesNode node = findNode(path);
+            String value = node == null? null : node.getProperty(key);
+            
+            return value == null? def : value;
+        }
+    }
+    
+    /**
+     * Looks up the node at <code>path</code> without creating it, its
+     * ancestors or any string for their names. Must be called with
+     * {@link #treeLock} held.
+     * @param path A path relative to the root of the backing file; a leading
+     * slash is allowed.
+     * @return The node or null if it does not exist.
+     * @throws IllegalArgumentException If <code>path</code> is not a valid path.
+     */
+    private PreferencesNode findNode(String path)
+    {
+        if ((path.endsWith("/") && path.length() > 1) || path.contains("//"))
+        {
+            throw new IllegalArgumentException("Invalid path: " + path);
+        }
+        
+        PreferencesNode node = rootPreferences.getNode();
+        int from = path.startsWith("/")? 1 : 0;
+        
+        while (node != null && from < path.length())
+        {
+            int to = path.indexOf('/', from);
+            if (to < 0)
+            {
+                to = path.length();
+            }
+            
+            node = node.getChild(path, from, to);
+            from = to + 1;
+        }
+        
+        return node;
+    }
+    
+    /**
+     * Writes the properties of the root of these preferences in the format of
+     * {@link java.util.prefs.Preferences#exportNode(java.io.OutputStream)},
+     * directly from the tree rather than through a DOM.
+     */
+    @Override
+    public void exportNode(OutputStream os)
+        throws IOException, BackingStoreException
+    {
+        export(this, os, false);
+    }
+    
+    /**
+     * Writes the subtree rooted at these preferences in the format of
+     * {@link java.util.prefs.Preferences#exportSubtree(java.io.OutputStream)}.
+     * The tree is copied under its lock without parsing nodes that were not
+     * accessed yet and written from the copy, so modifications are not
+     * blocked while the document is written.
+     */
+    @Override
+    public void exportSubtree(OutputStream os)
+        throws IOException, BackingStoreException
+    {
+        export(this, os, true);
+    }
+    
+    /**
+     * Exports the node of <code>prefs</code>, which belongs to these
+     * preferences, and with <code>subtree</code> set also its descendants.
+     * @throws IllegalStateException If the node has been removed.
+     */
+    void export(AbstractPreferences prefs, OutputStream os, boolean subtree)
+        throws IOException
+    {
+        PreferencesNode copy = null;
+        Map<String, String> properties = null;
+        
+        synchronized (treeLock)
+        {
+            PreferencesNode node = getNode(prefs);
+            
+            if (node.isRemoved())
+            {
+                throw new IllegalStateException("Node has been removed.");
+            }
+            
+            if (subtree)
+            {
+                copy = node.copy();
+            }
+            else
+            {
+                properties = new LinkedHashMap<>(node.getProperties());
+            }
+        }
+        
+        if (subtree)
+        {
+            PreferencesXmlSupport.exportSubtree(os, prefs.absolutePath(), prefs.isUserNode(), copy);
+        }
+        else
+        {
+            PreferencesXmlSupport.exportNode(os, prefs.absolutePath(), prefs.isUserNode(), properties);
+        }
+    }
+    
+    /**
+     * Imports a document written by
+     * {@link java.util.prefs.Preferences#exportSubtree(java.io.OutputStream)}
+     * or {@link java.util.prefs.Preferences#exportNode(java.io.OutputStream)}
+     * into these preferences, streaming it rather than building a DOM. Unlike
+     * with the static method
+     * {@link java.util.prefs.Preferences#importPreferences(InputStream)}, the
+     * root of the document is mapped onto the root of these preferences,
+     * regardless of its type. The properties of every node are applied at
+     * once as by {@link #edit(String)}; properties not in the document are
+     * kept.
+     * @throws InvalidPreferencesFormatException If the document does not
+     * follow the preferences DTD. The nodes that precede the error in the
+     * document have been imported then.
+     */
+    public void importSubtree(InputStream is)
+        throws IOException, InvalidPreferencesFormatException
+    {
+        PreferencesXmlSupport.importPreferences(this, is);
+    }
+    
+    private PreferencesNode getNode(AbstractPreferences prefs)
+    {
+        return prefs == this? rootPreferences.getNode() : ((XMLNodePreferences) prefs).getNode();
+    }
+    
+    private List<PreferenceChangeListener> getPreferenceChangeListeners(AbstractPreferences prefs)
+    {
+        return prefs == this? preferenceChangeListeners : ((XMLNodePreferences) prefs).getPreferenceChangeListeners();
+    }
+    
+    /**
+     * Delivers <code>events</code> to the listeners of their nodes on a
+     * background thread, like {@link AbstractPreferences} does. The thread
+     * belongs to these preferences rather than being the event thread of
+     * {@link AbstractPreferences}, so the events are not ordered relative to
+     * those of {@link #put(String, String)} and the like. It is stopped by
+     * {@link #close()}.
+     */
+    private void dispatch(List<PreferenceChangeEvent> events)
+    {
+        if (events.isEmpty())
+        {
+            return;
+        }
+        
+        ExecutorService dispatcher;
+        
+        synchronized (this)
+        {
+            if (eventDispatcher == null)
+            {
+                eventDispatcher = Executors.newSingleThreadExecutor(task -> {
+                    Thread thread = new Thread(task, "xmlprefs-events-" + backingFile.getName());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+            }
+            
+            dispatcher = eventDispatcher;
+        }
+        
+        dispatcher.execute(() -> {
+            for (PreferenceChangeEvent event : events)
+            {
+                for (PreferenceChangeListener listener : getPreferenceChangeListeners((AbstractPreferences) event.getSource()))
+                {
+                    try
+                    {
+                        listener.preferenceChange(event);
+                    }
+                    catch (RuntimeException ex)
+                    {
+                        LOGGER.log(Level.WARNING, "Preference change listener failed", ex);
+                    }
+                }
+            }
+        });
+    }
+    
+    @Override
+    public void addPreferenceChangeListener(PreferenceChangeListener pcl)
+    {
+        super.addPreferenceChangeListener(pcl);
+        preferenceChangeListeners.add(pcl);
+    }
+    
+    @Override
+    public void removePreferenceChangeListener(PreferenceChangeListener pcl)
+    {
+        super.removePreferenceChangeListener(pcl);
+        preferenceChangeListeners.remove(pcl);
+    }
+    
+    @Override
+    public void addNodeChangeListener(NodeChangeListener ncl)
+    {
+        super.addNodeChangeListener(ncl);
+        
+        synchronized (lock)
+        {
+            nodeChangeListeners++;
+        }
+    }
+    
+    @Override
+    public void removeNodeChangeListener(NodeChangeListener ncl)
+    {
+        super.removeNodeChangeListener(ncl);
+        
+        synchronized (lock)
+        {
+            nodeChangeListeners--;
+        }
+    }
+    
+    /**
+     * With a node cache limit, resolves relative paths through the node
+     * cache rather than the cache of {@link AbstractPreferences}.
+     * @see #setNodeCacheLimit(int)
+     */
+    @Override
+    public Preferences node(String path)
+    {
+        if (nodeCache.getLimit() < 0 || path.isEmpty())
+        {
+            return super.node(path);
+        }
+        
+        if (path.startsWith("/"))
+        {
+            return XMLNodePreferences.resolveAbsolute(super.node("/"), path);
+        }
+        
+        return XMLNodePreferences.resolve(this, path);
+    }
+    
+    /**
+     * Returns the preferences object of the child node <code>name</code>
+     * without caching it in {@link AbstractPreferences}, unless these
+     * preferences have node change listeners.
+     * @throws IllegalStateException If the root has been removed.
+     */
+    AbstractPreferences cachedChild(String name)
+    {
+        synchronized (lock)
+        {
+            if (isRemoved())
+            {
+                throw new IllegalStateException("Node has been removed.");
+            }
+            
+            if (nodeChangeListeners > 0)
+            {
+                // fires the event for a new node
+                return (AbstractPreferences) super.node(name);
+            }
+            
+            return childSpi(name);
+        }
+    }
+    
+    /**
+     * Returns the preferences object of the child node <code>name</code> of
+     * <code>parent</code>: the existing one if the node has one, a new one
+     * otherwise. Must be called with the lock of <code>parent</code> held.
+     * @param parent These preferences or one of their nodes.
+     */
+    XMLNodePreferences childPreferences(AbstractPreferences parent, String name)
+    {
+        PreferencesNode child;
+        
+        synchronized (treeLock)
+        {
+            child = getNode(parent).getChild(name);
+        }
+        
+        if (child != null)
+        {
+            XMLNodePreferences prefs = nodeCache.get(child);
+            
+            if (prefs != null)
+            {
+                prefs.reused();
+                return prefs;
+            }
+        }
+        
+        XMLNodePreferences prefs = new XMLNodePreferences(parent, name);
+        nodeCache.add(prefs);
+        
+        return prefs;
+    }
+    
+    /**
+     * Returns the modification counter of these preferences. It is incremented
+     * every time a property or node anywhere in the tree is added, changed or
+     * removed.
+     * @return The modification counter of these preferences.
+     */
+    public long getGeneration()
+    {
+        synchronized (treeLock)
+        {
+            return generation;
+        }
+    }
+    
+    /**
+     * Returns whether the tree was modified since it was last flushed (or
+     * loaded). If not, {@link #flush()} does nothing.
+     * @return Whether the tree was modified since it was last flushed.
+     */
+    public boolean isDirty()
+    {
+        synchronized (treeLock)
+        {
+            return generation != flushedGeneration;
+        }
+    }
+    
+    /**
+     * Returns the absolute paths of the nodes whose properties or children were
+     * modified since the last flush. Nodes that have been removed since are
+     * not included; their removal shows as a modification of their parent.
+     * @return The absolute paths of the nodes modified since the last flush.
+     */
+    public Set<String> getDirtyNodes()
+    {
+        synchronized (treeLock)
+        {
+            PreferencesNode root = rootPreferences.getNode();
+            Set<String> paths = new LinkedHashSet<>();
+            
+            for (PreferencesNode node : dirtyNodes)
+            {
+                if (node.isAttachedTo(root))
+                {
+                    paths.add(node.getPath());
+                }
+            }
+            
+            return Collections.unmodifiableSet(paths);
+        }
+    }
+    
+    /**
+     * Records that the property <code>key</code> of <code>node</code> was set
+     * or removed. Must be called with {@link #treeLock} held.
+     */
+    void propertyModified(PreferencesNode node, String key)
+    {
+        if (merging.get() == null)
+        {
+            node.propertyModified(key, modified(node));
+        }
+    }
+    
+    /**
+     * Records that the child node <code>name</code> of <code>node</code> was
+     * added or removed. Must be called with {@link #treeLock} held.
+     */
+    void childModified(PreferencesNode node, String name)
+    {
+        if (merging.get() == null)
+        {
+            node.childModified(name, modified(node));
+        }
+    }
+    
+    /**
+     * @return The new generation of the tree.
+     */
+    private long modified(PreferencesNode node)
+    {
+        generation++;
+        dirtyNodes.add(node);
+        
+        FlushScheduler scheduler = flushScheduler;
+        if (scheduler != null)
+        {
+            scheduler.modified();
+        }
+        
+        return generation;
+    }
+    
+    /**
+     * Returns a copy of the current state of these preferences as a
+     * {@link Document}, built from the in-memory tree on every call. It carries
+     * no DOCTYPE.
+     * <br />
+     * <b>Breaking change in 0.2.0:</b> this used to return the live document
+     * the preferences were stored in and written from. The preferences are no
+     * longer backed by a DOM, and no mode keeps one; the returned document is
+     * detached, so changes made to it are neither reflected in these
+     * preferences nor written by {@link #flush()}, and no error is raised.
+     * @return A new {@link Document} holding the current state of these preferences.
+     * @deprecated The returned document is a copy; modify the preferences
+     * through their own methods or {@link #edit(String)} and use
+     * {@link #exportSubtree(OutputStream)} to obtain their contents as XML.
+     */
+    @Deprecated
+    public Document getRootDocument()
+    {
+        Document document;
+        
+        try
+        {
+            document = DocumentBuilderFactory.newInstance().newDocumentBuilder().newDocument();
+        }
+        catch (ParserConfigurationException ex)
+        {
+            throw new RuntimeException(ex);
+        }
+        
+        Element rootElement = document.createElement(XMLNodePreferences.ROOT_NODENAME);
+        document.appendChild(rootElement);
+        
+        synchronized (treeLock)
+        {
+            appendNode(document, rootElement, rootPreferences.getNode());
+        }
+        
+        return document;
+    }
+    
+    /**
+     * Appends the properties and child nodes of <code>node</code> to
+     * <code>element</code>.
+     */
+    private static void appendNode(Document document, Element element, PreferencesNode node)
+    {
+        for (Map.Entry<String, String> property : node.getProperties().entrySet())
+        {
+            Element propertyElement = document.createElement(XMLNodePreferences.PROPERTY_NODENAME);
+            propertyElement.setAttribute("name", property.getKey());
+            propertyElement.setTextContent(property.getValue());
+            element.appendChild(propertyElement);
+        }
+        
+        for (PreferencesNode child : node.getChildren())
+        {
+            Element childElement = document.createElement(XMLNodePreferences.NODE_NODENAME);
+            childElement.setAttribute("name", child.getName());
+            element.appendChild(childElement);
+            appendNode(document, childElement, child);
+        }
+    }
+    
+    /**
+     * Reads the underlying file and returns the preferences tree in it.
+     * @return The root of the preferences tree in <code>backingFile</code>
+     */
+    @SuppressWarnings("try")
+    private PreferencesNode readFile()
         throws SAXException, IOException
     {
-        super(null, "");
-        this.backingFile = backingFile;
-        this.rootDocument = readFile();
-        
-        if (rootDocument.getFirstChild() == null)
+        try (PreferencesFileLock.Held fileLock = store.lockShared())
         {
-            rootDocument.appendChild(rootDocument.createElement("prefs"));
+            return read(false);
+        }
+        catch (XMLStreamException ex)
+        {
+            throw new SAXException(ex.getMessage(), ex);
         }
-
-        rootPreferences = new XMLNodePreferences(this, rootDocument.getFirstChild());
     }
     
     /**
-     * Returns the {@link Document} this preferences writes to.
-     * @return The {@link Document} this preferences writes to.
+     * Reads the backing file, recording the read in the metrics.
+     * @param ifChanged Whether to read only if changed, see {@link PreferencesFile#readIfChanged()}.
      */
-    public Document getRootDocument()
+    private PreferencesNode read(boolean ifChanged)
+        throws IOException, XMLStreamException
+    {
+        PreferencesMetrics metrics = getMetrics();
+        long start = metrics == null? 0 : System.nanoTime();
+        
+        PreferencesNode root = ifChanged? store.readIfChanged() : store.read();
+        
+        if (metrics != null && root != null)
+        {
+            metrics.loaded(System.nanoTime() - start, store.getSize(), root.countNodes());
+        }
+        
+        return root;
+    }
+    
+    @Override
+    protected void putSpi(String key, String value)
+    {
+        rootPreferences.putSpi(key, value);
+    }
+
+    @Override
+    protected String getSpi(String key)
     {
-        return rootDocument;
+        return rootPreferences.getSpi(key);
     }
     
     /**
-     * Reads the underlying file and returns the document in it.
-     * @return The document in <code>backingFile</code>
+     * In read-optimized mode, reads the value from the snapshot of the
+     * properties without taking any lock.
+     * @see #setReadOptimized(boolean)
      */
-    private Document readFile()
-        throws SAXException, IOException
+    @Override
+    public String get(String key, String def)
     {
-        DocumentBuilderFactory dbf;
-        DocumentBuilder builder;
+        PreferencesMetrics metrics = getMetrics();
+        
+        if (metrics == null)
+        {
+            return readOptimized? rootPreferences.getFromSnapshot(key, def) : super.get(key, def);
+        }
         
+        long start = System.nanoTime();
         try
         {
-            dbf = DocumentBuilderFactory.newInstance();
-            dbf.setValidating(false);
-            dbf.setIgnoringComments(true);
-            dbf.setIgnoringElementContentWhitespace(true);
-
-            builder = dbf.newDocumentBuilder();
+            return readOptimized? rootPreferences.getFromSnapshot(key, def) : super.get(key, def);
         }
-        catch (ParserConfigurationException ex)
+        finally
         {
-            throw new RuntimeException(ex);
+            metrics.gets.record(System.nanoTime() - start);
         }
+    }
+    
+    @Override
+    public void put(String key, String value)
+    {
+        PreferencesMetrics metrics = getMetrics();
         
-        if (backingFile.exists())
+        if (metrics == null)
         {
-            return builder.parse(backingFile);
+            super.put(key, value);
+            return;
         }
-        else
+        
+        long start = System.nanoTime();
+        try
+        {
+            super.put(key, value);
+        }
+        finally
         {
-            return builder.newDocument();
+            metrics.puts.record(System.nanoTime() - start);
         }
     }
     
     @Override
-    protected void putSpi(String key, String value)
+    public void remove(String key)
     {
-        rootPreferences.putSpi(key, value);
+        PreferencesMetrics metrics = getMetrics();
+        
+        if (metrics == null)
+        {
+            super.remove(key);
+            return;
+        }
+        
+        long start = System.nanoTime();
+        try
+        {
+            super.remove(key);
+        }
+        finally
+        {
+            metrics.removes.record(System.nanoTime() - start);
+        }
     }
-
+    
     @Override
-    protected String getSpi(String key)
+    public int getInt(String key, int def)
     {
-        return rootPreferences.getSpi(key);
+        return rootPreferences.typedValues.getInt(key, get(key, null), def);
+    }
+    
+    @Override
+    public long getLong(String key, long def)
+    {
+        return rootPreferences.typedValues.getLong(key, get(key, null), def);
+    }
+    
+    @Override
+    public float getFloat(String key, float def)
+    {
+        return rootPreferences.typedValues.getFloat(key, get(key, null), def);
+    }
+    
+    @Override
+    public double getDouble(String key, double def)
+    {
+        return rootPreferences.typedValues.getDouble(key, get(key, null), def);
+    }
+    
+    @Override
+    public boolean getBoolean(String key, boolean def)
+    {
+        return rootPreferences.typedValues.getBoolean(key, get(key, null), def);
+    }
+    
+    @Override
+    public byte[] getByteArray(String key, byte[] def)
+    {
+        return rootPreferences.typedValues.getByteArray(key, get(key, null), def);
+    }
+    
+    /**
+     * In read-optimized mode, returns the keys from the snapshot of the
+     * properties without taking any lock.
+     * @see #setReadOptimized(boolean)
+     */
+    @Override
+    public String[] keys()
+        throws BackingStoreException
+    {
+        return readOptimized? rootPreferences.keys() : super.keys();
     }
 
     @Override
@@ -150,21 +1785,167 @@ public class XMLFilePreferences extends AbstractPreferences
     @Override
     protected AbstractPreferences childSpi(String name)
     {
-        return rootPreferences.childSpi(name);
+        return childPreferences(this, name);
     }
 
+    /**
+     * Merges the contents of the backing file into these preferences if it
+     * was modified by someone else since it was last read or written, then
+     * flushes. Whether the file was modified is determined from its size and
+     * modification time and, where these are not conclusive, a checksum of
+     * its contents; if it is unchanged, this only flushes.
+     * <br />
+     * Properties and nodes that were modified locally since the last flush
+     * keep their local state; all others take over the state from the file. A
+     * {@link java.util.prefs.PreferenceChangeEvent} or
+     * {@link java.util.prefs.NodeChangeEvent} is fired for every property and
+     * node that changes in the process.
+     */
     @Override
     public void sync()
         throws BackingStoreException
     {
-        throw new UnsupportedOperationException("Syncing not supported.");
+        synchronized (ioLock)
+        {
+            reload();
+            flush();
+        }
+    }
+    
+    /**
+     * Merges the contents of the backing file into these preferences if it
+     * was modified by someone else since it was last read or written; the
+     * first half of {@link #sync()}.
+     */
+    @SuppressWarnings("try")
+    void reload()
+        throws BackingStoreException
+    {
+        synchronized (ioLock)
+        {
+            PreferencesNode stored;
+            
+            try (PreferencesFileLock.Held fileLock = store.lockShared())
+            {
+                stored = read(true);
+            }
+            catch (IOException | XMLStreamException ex)
+            {
+                throw new BackingStoreException(ex);
+            }
+            
+            if (stored != null)
+            {
+                merge(stored);
+            }
+        }
+    }
+    
+    /**
+     * Merges the tree rooted at <code>stored</code> into these preferences
+     * without recording the changes as modifications.
+     * @see #merge(AbstractPreferences, PreferencesNode, PreferencesNode)
+     */
+    private void merge(PreferencesNode stored)
+        throws BackingStoreException
+    {
+        merging.set(Boolean.TRUE);
+
+        try
+        {
+            synchronized (lock)
+            {
+                merge(this, rootPreferences.getNode(), stored);
+            }
+        }
+        finally
+        {
+            merging.remove();
+        }
+    }
+    
+    /**
+     * Merges the subtree rooted at <code>stored</code> into <code>memory</code>
+     * through <code>prefs</code>, the preferences object of <code>memory</code>,
+     * so that the usual events are fired. Properties and child nodes of
+     * <code>memory</code> that were not modified since the last flush are made
+     * equal to those of <code>stored</code>; modified ones are left alone. Child
+     * nodes with unflushed modifications in their subtree are never removed.
+     * The common child nodes are merged recursively. Must be called with the
+     * lock of <code>prefs</code> held.
+     */
+    void merge(AbstractPreferences prefs, PreferencesNode memory, PreferencesNode stored)
+        throws BackingStoreException
+    {
+        List<String> removedKeys = new ArrayList<>();
+        List<Map.Entry<String, String>> changedProperties = new ArrayList<>();
+        List<String> removedChildren = new ArrayList<>();
+        List<PreferencesNode> differingChildren = new ArrayList<>();
+        
+        synchronized (treeLock)
+        {
+            for (String key : memory.getProperties().keySet())
+            {
+                if (stored.getProperty(key) == null && !memory.isPropertyModified(key))
+                {
+                    removedKeys.add(key);
+                }
+            }
+            
+            for (Map.Entry<String, String> property : stored.getProperties().entrySet())
+            {
+                if (!property.getValue().equals(memory.getProperty(property.getKey())) && !memory.isPropertyModified(property.getKey()))
+                {
+                    changedProperties.add(property);
+                }
+            }
+            
+            for (PreferencesNode memoryChild : memory.getChildren())
+            {
+                if (stored.getChild(memoryChild.getName()) == null && !memory.isChildModified(memoryChild.getName())
+                    && !memoryChild.isSubtreeDirty())
+                {
+                    removedChildren.add(memoryChild.getName());
+                }
+            }
+            
+            for (PreferencesNode storedChild : stored.getChildren())
+            {
+                PreferencesNode memoryChild = memory.getChild(storedChild.getName());
+                
+                if (memoryChild == null? !memory.isChildModified(storedChild.getName()) : !memoryChild.contentEquals(storedChild))
+                {
+                    differingChildren.add(storedChild);
+                }
+            }
+        }
+        
+        for (String key : removedKeys)
+        {
+            prefs.remove(key);
+        }
+        
+        for (Map.Entry<String, String> property : changedProperties)
+        {
+            prefs.put(property.getKey(), property.getValue());
+        }
+        
+        for (String name : removedChildren)
+        {
+            prefs.node(name).removeNode();
+        }
+        
+        for (PreferencesNode storedChild : differingChildren)
+        {
+            ((XMLNodePreferences) prefs.node(storedChild.getName())).merge(storedChild);
+        }
     }
     
     @Override
     protected void syncSpi()
         throws BackingStoreException
     {
-        throw new UnsupportedOperationException("Syncing not supported.");
+        throw new UnsupportedOperationException("call sync() directly.");
     }
 
     @Override
@@ -174,25 +1955,384 @@ public class XMLFilePreferences extends AbstractPreferences
         throw new UnsupportedOperationException("call flush() directly.");
     }
     
+    /**
+     * Writes the entire tree to the backing file if it was modified since the
+     * last flush; does nothing otherwise. The file is locked exclusively for
+     * the duration of the flush. If another process modified it since it was
+     * last read or written, its contents are first merged into the tree as by
+     * {@link #sync()}, so that modifications of nodes not modified locally are
+     * not lost. With journaling enabled, only the modifications are appended
+     * to the journal, see {@link #setJournaling(long)}.
+     */
     @Override
     public void flush()
         throws BackingStoreException
     {
-        try
+        if (!isDirty())
         {
-            Transformer t = TransformerFactory.newInstance().newTransformer();
+            PreferencesMetrics metrics = getMetrics();
+            if (metrics != null)
+            {
+                metrics.flushSkipped();
+            }
             
-            t.setOutputProperty(OutputKeys.METHOD, "xml");
+            return;
+        }
+        
+        write(false);
+    }
+    
+    /**
+     * Flushes these preferences in the background. The generation of the tree
+     * is taken when this is called; the flush is skipped if another flush
+     * has written that generation by the time it starts. Otherwise, the tree
+     * is copied under its lock as the flush starts; serializing and writing
+     * the copy does not block modifications. While a flush submitted earlier
+     * has not started yet, no further flush is submitted and the returned
+     * future completes together with that one instead, as it includes the
+     * modifications made until now.
+     * @return A future that completes once the modifications made before this
+     * call have been written as by {@link #flush()}, which makes them durable
+     * according to the {@link FsyncPolicy}; completes exceptionally with the
+     * {@link BackingStoreException} if the flush fails.
+     * @see #setFlushExecutor(Executor)
+     */
+    public CompletableFuture<Void> flushAsync()
+    {
+        long target;
+        
+        synchronized (treeLock)
+        {
+            if (generation == flushedGeneration)
+            {
+                return CompletableFuture.completedFuture(null);
+            }
             
-            t.transform(new DOMSource(rootDocument), new StreamResult(backingFile));
+            target = generation;
         }
-        catch (TransformerConfigurationException ex)
+        
+        CompletableFuture<Void> future;
+        Executor executor = getFlushExecutor();
+        
+        synchronized (flushLock)
         {
-            throw new RuntimeException(ex);
+            if (pendingFlush != null)
+            {
+                // a copy, so that callers cannot complete the shared future
+                return pendingFlush.thenApply(result -> result);
+            }
+            
+            future = new CompletableFuture<>();
+            pendingFlush = future;
         }
-        catch (TransformerException ex)
+        
+        try
         {
-            throw new BackingStoreException(ex);
+            executor.execute(() -> {
+                flushStarted(future);
+                
+                try
+                {
+                    if (!isFlushed(target))
+                    {
+                        flush();
+                    }
+                    
+                    future.complete(null);
+                }
+                catch (BackingStoreException | RuntimeException ex)
+                {
+                    future.completeExceptionally(ex);
+                }
+            });
+        }
+        catch (RejectedExecutionException ex)
+        {
+            flushStarted(future);
+            future.completeExceptionally(ex);
+        }
+        
+        return future.thenApply(result -> result);
+    }
+    
+    private void flushStarted(CompletableFuture<Void> future)
+    {
+        synchronized (flushLock)
+        {
+            if (pendingFlush == future)
+            {
+                pendingFlush = null;
+            }
+        }
+    }
+    
+    /**
+     * @return Whether the tree has been written at least up to the generation
+     * <code>target</code>.
+     */
+    private boolean isFlushed(long target)
+    {
+        synchronized (treeLock)
+        {
+            return flushedGeneration >= target;
+        }
+    }
+    
+    /**
+     * Sets the executor that runs the flushes of {@link #flushAsync()}. By
+     * default, every flush runs on a new virtual thread where these are
+     * available and on a single background thread otherwise.
+     * @param executor The executor to use; null for the default.
+     */
+    public synchronized void setFlushExecutor(Executor executor)
+    {
+        flushExecutor = executor;
+    }
+    
+    private synchronized Executor getFlushExecutor()
+    {
+        if (flushExecutor != null)
+        {
+            return flushExecutor;
+        }
+        
+        if (defaultFlushExecutor == null)
+        {
+            defaultFlushExecutor = newVirtualThreadExecutor();
+        }
+        
+        if (defaultFlushExecutor == null)
+        {
+            defaultFlushExecutor = Executors.newSingleThreadExecutor(task -> {
+                Thread thread = new Thread(task, "xmlprefs-flush-" + backingFile.getName());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        
+        return defaultFlushExecutor;
+    }
+    
+    /**
+     * @return An executor that runs every task on a new virtual thread; null
+     * if the runtime does not support virtual threads.
+     */
+    private static ExecutorService newVirtualThreadExecutor()
+    {
+        try
+        {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        }
+        catch (ReflectiveOperationException | RuntimeException ex)
+        {
+            return null;
+        }
+    }
+    
+    /**
+     * Stops the thread delivering the events of edits once it has delivered
+     * those pending.
+     */
+    private void shutdownEventDispatcher()
+    {
+        ExecutorService dispatcher;
+        
+        synchronized (this)
+        {
+            dispatcher = eventDispatcher;
+            eventDispatcher = null;
+        }
+        
+        if (dispatcher != null)
+        {
+            dispatcher.shutdown();
+        }
+    }
+    
+    /**
+     * Stops the default flush executor after the flushes submitted to it have
+     * finished.
+     */
+    private void shutdownFlushExecutor()
+    {
+        ExecutorService executor;
+        
+        synchronized (this)
+        {
+            executor = defaultFlushExecutor;
+            defaultFlushExecutor = null;
+        }
+        
+        if (executor != null)
+        {
+            executor.shutdown();
+            
+            try
+            {
+                executor.awaitTermination(1, TimeUnit.MINUTES);
+            }
+            catch (InterruptedException ex)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+    
+    /**
+     * Writes the modifications since the last flush under the exclusive lock
+     * on the backing file. The tree is locked only while a copy of it (or the
+     * journal entry) is taken, not while it is serialized and written; the
+     * modifications made in the meantime remain dirty.
+     * @param compact Whether to write the entire tree even if journaling is
+     * enabled; also if it was not modified but there is a journal.
+     */
+    @SuppressWarnings("try")
+    private void write(boolean compact)
+        throws BackingStoreException
+    {
+        PreferencesMetrics metrics = getMetrics();
+        long start = metrics == null? 0 : System.nanoTime();
+        long journalSize;
+        long bytesWritten;
+        
+        synchronized (ioLock)
+        {
+            try (PreferencesFileLock.Held fileLock = store.lockExclusive())
+            {
+                PreferencesNode stored = null;
+                boolean unreadable = false;
+                
+                try
+                {
+                    stored = store.readIfChanged();
+                }
+                catch (XMLStreamException | ZipException ex)
+                {
+                    LOGGER.log(Level.WARNING, "Could not merge " + backingFile + " before writing it, overwriting it", ex);
+                    unreadable = true;
+                }
+                
+                if (stored != null)
+                {
+                    merge(stored);
+                }
+                
+                long writtenGeneration;
+                PreferencesJournal.Entry journalEntry = null;
+                PreferencesNode tree = null;
+                
+                synchronized (treeLock)
+                {
+                    if (generation == flushedGeneration && !(compact && store.getJournalSize() > 0))
+                    {
+                        if (metrics != null && !compact)
+                        {
+                            metrics.flushSkipped();
+                        }
+                        
+                        return;
+                    }
+                    
+                    writtenGeneration = generation;
+                    
+                    if (journaling && !compact && !unreadable && store.canAppendJournal())
+                    {
+                        journalEntry = createJournalEntry();
+                    }
+                    else
+                    {
+                        tree = rootPreferences.getNode().copy();
+                    }
+                }
+                
+                if (journalEntry != null)
+                {
+                    long previousSize = store.getJournalSize();
+                    journalSize = store.appendJournal(journalEntry);
+                    bytesWritten = journalSize - previousSize;
+                }
+                else
+                {
+                    bytesWritten = store.write(tree);
+                    journalSize = 0;
+                }
+                
+                synchronized (treeLock)
+                {
+                    flushedGeneration = writtenGeneration;
+                    dirtyNodes.removeIf(node -> node.clearModifications(writtenGeneration));
+                }
+            }
+            catch (IOException ex)
+            {
+                throw new BackingStoreException(ex);
+            }
+        }
+        
+        if (metrics != null)
+        {
+            metrics.flushed(System.nanoTime() - start, bytesWritten);
+        }
+        
+        if (journalSize > compactionThreshold)
+        {
+            scheduleCompaction();
         }
     }
+    
+    /**
+     * Describes the modifications since the last flush as a journal entry;
+     * parents come before their children so that the entry can be applied in
+     * order. Must be called with {@link #treeLock} held.
+     */
+    private PreferencesJournal.Entry createJournalEntry()
+    {
+        PreferencesNode root = rootPreferences.getNode();
+        List<PreferencesNode> nodes = new ArrayList<>(dirtyNodes.size());
+        
+        for (PreferencesNode node : dirtyNodes)
+        {
+            if (node.isAttachedTo(root))
+            {
+                nodes.add(node);
+            }
+        }
+        
+        nodes.sort(Comparator.comparingInt(PreferencesNode::getDepth));
+        
+        PreferencesJournal.Entry entry = new PreferencesJournal.Entry();
+        
+        for (PreferencesNode node : nodes)
+        {
+            String path = node.getPath();
+            String prefix = node.getParent() == null? path : path + "/";
+            
+            for (String name : node.getModifiedChildren())
+            {
+                // replaces rather than merges a child that was removed and added again
+                entry.removeNode(prefix + name);
+                
+                if (node.getChild(name) != null)
+                {
+                    entry.addNode(prefix + name);
+                }
+            }
+            
+            for (String key : node.getModifiedProperties())
+            {
+                String value = node.getProperty(key);
+                
+                if (value == null)
+                {
+                    entry.remove(path, key);
+                }
+                else
+                {
+                    entry.put(path, key, value);
+                }
+            }
+        }
+        
+        return entry;
+    }
 }
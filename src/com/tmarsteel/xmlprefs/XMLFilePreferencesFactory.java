@@ -24,8 +24,18 @@
 package com.tmarsteel.xmlprefs;
 
 import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.prefs.AbstractPreferences;
 import java.util.prefs.Preferences;
 import java.util.prefs.PreferencesFactory;
+import org.xml.sax.SAXException;
 
 /**
  * PreferencesFactory implementation that stores the preferences in a user-defined file. To use it,
@@ -69,6 +79,24 @@ import java.util.prefs.PreferencesFactory;
  *   </tr>
  *  </tbody>
  * </table>
+ * If the system property <tt>com.tmarsteel.xmlprefs.XMLFilePreferencesFactory.sharded</tt>
+ * is set to <tt>true</tt>, the roots are {@link XMLDirectoryPreferences} stored
+ * in the given paths as directories; the default paths then lack the
+ * <tt>.xml</tt> extension. The system property
+ * <tt>com.tmarsteel.xmlprefs.XMLFilePreferencesFactory.format</tt> selects the
+ * {@link FileFormat} by name, e.g. <tt>GZIP</tt>; files are written as plain
+ * XML by default.
+ * <br />
+ * Every file is loaded only once per JVM: all factories and all callers of
+ * {@link #getFilePreferences(File)} share the same instance for it until it
+ * is closed through {@link XMLFilePreferences#close()} or
+ * {@link XMLDirectoryPreferences#close()}; the next call then loads the file
+ * again. Preferences created through their constructors bypass this
+ * registry, so the same file can end up with two live instances that
+ * overwrite each other's modifications. If the
+ * system property <tt>com.tmarsteel.xmlprefs.XMLFilePreferencesFactory.preload</tt>
+ * is set to <tt>true</tt>, both roots are loaded in the background as soon as
+ * the factory is created.
  *
  * @author Tobias Marstaller (<a href="//github.com/tmarsteel">github.com/tmarsteel</a>)
  */
@@ -76,18 +104,48 @@ public class XMLFilePreferencesFactory implements PreferencesFactory
 {
     public static final String SYSTEMROOT_FILE_PROPERTY = "com.tmarsteel.xmlprefs.XMLFilePreferencesFactory.systemRoot";
     public static final String USERROOT_FILE_PROPERTY = "com.tmarsteel.xmlprefs.XMLFilePreferencesFactory.userRoot";
+    public static final String SHARDED_PROPERTY = "com.tmarsteel.xmlprefs.XMLFilePreferencesFactory.sharded";
+    public static final String FORMAT_PROPERTY = "com.tmarsteel.xmlprefs.XMLFilePreferencesFactory.format";
+    
+    /**
+     * The system property that makes new factories load both roots in the
+     * background right away when set to <code>true</code>.
+     */
+    public static final String PRELOAD_PROPERTY = "com.tmarsteel.xmlprefs.XMLFilePreferencesFactory.preload";
+    
+    private static final Logger LOGGER = Logger.getLogger(XMLFilePreferencesFactory.class.getName());
     
-    private XMLFilePreferences systemRoot;
-    private XMLFilePreferences userRoot;
+    /**
+     * The preferences opened through {@link #getFilePreferences(File)} and
+     * {@link #getDirectoryPreferences(File)} by canonical path. A task is put
+     * in before the preferences are loaded, so that concurrent callers wait
+     * for the same instance instead of loading their own. Entries are removed
+     * when their preferences are closed, see {@link #unregister(AbstractPreferences)}.
+     */
+    private static final ConcurrentMap<String, FutureTask<AbstractPreferences>> REGISTRY = new ConcurrentHashMap<>();
+    
+    private volatile Preferences systemRoot;
+    private volatile Preferences userRoot;
+    
+    public XMLFilePreferencesFactory()
+    {
+        if (Boolean.getBoolean(PRELOAD_PROPERTY))
+        {
+            preload();
+        }
+    }
     
     @Override
     public Preferences systemRoot()
     {
-        if (systemRoot == null)
+        Preferences root = systemRoot;
+        
+        if (root == null)
         {
             String path = System.getProperty(SYSTEMROOT_FILE_PROPERTY, null);
+            boolean isDefault = path == null;
             
-            if (path == null)
+            if (isDefault)
             {
                 if (File.separatorChar == '\\')
                 {
@@ -99,20 +157,24 @@ public class XMLFilePreferencesFactory implements PreferencesFactory
                 }
             }
             
-            systemRoot = getFilePreferences(path);
+            root = getRoot(path, isDefault);
+            systemRoot = root;
         }
         
-        return systemRoot;
+        return root;
     }
 
     @Override
     public Preferences userRoot()
     {
-        if (userRoot == null)
+        Preferences root = userRoot;
+        
+        if (root == null)
         {
             String path = System.getProperty(USERROOT_FILE_PROPERTY, null);
+            boolean isDefault = path == null;
             
-            if (path == null)
+            if (isDefault)
             {
                 if (File.separatorChar == '\\')
                 {
@@ -124,21 +186,209 @@ public class XMLFilePreferencesFactory implements PreferencesFactory
                 }
             }
             
-            userRoot = getFilePreferences(path);
+            root = getRoot(path, isDefault);
+            userRoot = root;
         }
         
-        return userRoot;
+        return root;
     }
     
-    private XMLFilePreferences getFilePreferences(String path)
+    /**
+     * @param isDefault Whether <code>path</code> is the default path, which
+     * loses its extension for sharded preferences.
+     */
+    private Preferences getRoot(String path, boolean isDefault)
     {
         try
         {
-            return new XMLFilePreferences(new File(path));
+            if (Boolean.getBoolean(SHARDED_PROPERTY))
+            {
+                if (isDefault)
+                {
+                    path = path.substring(0, path.length() - ".xml".length());
+                }
+                
+                return getDirectoryPreferences(new File(path));
+            }
+            
+            return getFilePreferences(new File(path));
         }
         catch (Exception ex)
         {
             throw new RuntimeException(ex);
         }
     }
+    
+    /**
+     * Loads both roots on a background thread, so that the first call to
+     * {@link Preferences#userRoot()} or {@link Preferences#systemRoot()} does
+     * not have to wait for the whole file to be parsed; if it comes before
+     * loading is done, it waits for the same instance. Failures are left to
+     * be reported by those calls.
+     */
+    private void preload()
+    {
+        Thread thread = new Thread(() ->
+        {
+            try
+            {
+                userRoot();
+                systemRoot();
+            }
+            catch (RuntimeException ex)
+            {
+                LOGGER.log(Level.FINE, "Could not preload the preferences", ex);
+            }
+        }, "xmlprefs-preload");
+        
+        thread.setDaemon(true);
+        thread.start();
+    }
+    
+    /**
+     * Returns the preferences stored in <code>file</code>. Within the JVM,
+     * all callers get the same instance for the same file, regardless of the
+     * path they use for it; it is loaded on the first call, concurrent first
+     * calls included. The file format is taken from {@value #FORMAT_PROPERTY}.
+     * Unlike <code>new XMLFilePreferences(file)</code>, which always creates
+     * an instance of its own, this returns the registered one.
+     * @throws IllegalStateException If the file was opened as
+     * {@link XMLDirectoryPreferences}.
+     */
+    public static XMLFilePreferences getFilePreferences(File file)
+        throws SAXException, IOException
+    {
+        return getRegistered(file, XMLFilePreferences.class, () ->
+        {
+            XMLFilePreferences prefs = new XMLFilePreferences(file);
+            prefs.setFileFormat(getFileFormat());
+            
+            return prefs;
+        });
+    }
+    
+    /**
+     * Returns the preferences stored in <code>directory</code>, like
+     * {@link #getFilePreferences(File)} does for single files.
+     * @throws IllegalStateException If the directory was opened as
+     * {@link XMLFilePreferences}.
+     */
+    public static XMLDirectoryPreferences getDirectoryPreferences(File directory)
+        throws SAXException, IOException
+    {
+        return getRegistered(directory, XMLDirectoryPreferences.class, () ->
+        {
+            XMLDirectoryPreferences prefs = new XMLDirectoryPreferences(directory);
+            prefs.setFileFormat(getFileFormat());
+            
+            return prefs;
+        });
+    }
+    
+    /**
+     * Removes <code>prefs</code> from the registry, so that it no longer keeps
+     * them reachable and the next call for their file loads it again; called
+     * when they are closed. Does nothing for unregistered preferences.
+     */
+    static void unregister(AbstractPreferences prefs)
+    {
+        REGISTRY.values().removeIf(task -> task.isDone() && getLoaded(task) == prefs);
+    }
+    
+    /**
+     * @return The preferences loaded by the completed <code>task</code>, or
+     * null if loading failed.
+     */
+    private static AbstractPreferences getLoaded(FutureTask<AbstractPreferences> task)
+    {
+        try
+        {
+            return task.get();
+        }
+        catch (ExecutionException | InterruptedException ex)
+        {
+            return null;
+        }
+    }
+    
+    private static FileFormat getFileFormat()
+    {
+        return FileFormat.valueOf(System.getProperty(FORMAT_PROPERTY, FileFormat.XML.name()));
+    }
+    
+    /**
+     * Returns the registered preferences for <code>file</code>, loading them
+     * through <code>loader</code> if there are none yet. If loading fails, the
+     * next call tries again.
+     */
+    private static <T extends AbstractPreferences> T getRegistered(File file, Class<T> type, Callable<T> loader)
+        throws SAXException, IOException
+    {
+        String path = file.getCanonicalPath();
+        FutureTask<AbstractPreferences> task = new FutureTask<>(loader::call);
+        FutureTask<AbstractPreferences> registered = REGISTRY.putIfAbsent(path, task);
+        
+        if (registered == null)
+        {
+            registered = task;
+            task.run();
+        }
+        
+        AbstractPreferences prefs;
+        boolean interrupted = false;
+        
+        try
+        {
+            while (true)
+            {
+                try
+                {
+                    prefs = registered.get();
+                    break;
+                }
+                catch (InterruptedException ex)
+                {
+                    interrupted = true;
+                }
+            }
+        }
+        catch (ExecutionException ex)
+        {
+            REGISTRY.remove(path, registered);
+            
+            Throwable cause = ex.getCause();
+            if (cause instanceof SAXException)
+            {
+                throw (SAXException) cause;
+            }
+            if (cause instanceof IOException)
+            {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException)
+            {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error)
+            {
+                throw (Error) cause;
+            }
+            
+            throw new IOException(cause);
+        }
+        finally
+        {
+            if (interrupted)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+        
+        if (!type.isInstance(prefs))
+        {
+            throw new IllegalStateException(path + " is already open as " + prefs.getClass().getSimpleName());
+        }
+        
+        return type.cast(prefs);
+    }
 }
@@ -23,26 +23,50 @@
  */
 package com.tmarsteel.xmlprefs;
 
-import java.util.ArrayList;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Collections;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.prefs.AbstractPreferences;
 import java.util.prefs.BackingStoreException;
+import java.util.prefs.NodeChangeListener;
+import java.util.prefs.PreferenceChangeListener;
 import java.util.prefs.Preferences;
-import org.w3c.dom.Element;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
 
 /**
- * Implements preferences on a {@link org.w3c.dom.Node}.
+ * Implements preferences on a {@link PreferencesNode}.
  * @author Tobias Marstaller (<a href="//github.com/tmarsteel">github.com/tmarsteel</a>)
  */
 class XMLNodePreferences extends AbstractPreferences
 {
+    public static final String ROOT_NODENAME = "prefs";
     public static final String PROPERTY_NODENAME = "property";
     public static final String NODE_NODENAME = "node";
     
-    private Node baseNode;
+    private PreferencesNode node;
     private Preferences parent = null;
+    private final XMLFilePreferences file;
+    
+    /**
+     * The listeners registered with this node, mirrored from
+     * {@link AbstractPreferences} for the events of
+     * {@link XMLFilePreferences#edit(String)}; null until the first one is added.
+     */
+    private volatile List<PreferenceChangeListener> preferenceChangeListeners = null;
+    
+    /**
+     * The number of node change listeners registered with this node.
+     */
+    private volatile int nodeChangeListeners = 0;
+    
+    /**
+     * The parsed values of the typed getters; shared with {@link XMLFilePreferences}
+     * for the root node.
+     */
+    final TypedValueCache typedValues = new TypedValueCache();
     
     /**
      * @param parent The parent preferences of this sub-preferences. Must
@@ -53,41 +77,50 @@ class XMLNodePreferences extends AbstractPreferences
     {
         super(parent, name);
         
-        XMLNodePreferences nodeParent;
+        PreferencesNode parentNode;
 
         if (parent instanceof XMLNodePreferences)
         {
-            nodeParent = (XMLNodePreferences) parent; 
-            
-            Node thisNode = nodeParent.getNode(name);
-            
-            if (thisNode != null)
-            {
-                if (thisNode.getNodeName().equals(NODE_NODENAME))
-                {
-                    baseNode = nodeParent.getNodeNode(name);
-                }
-                else
-                {
-                    throw new IllegalStateException(name + " is already set as a property.");
-                }
-            }
+            parentNode = ((XMLNodePreferences) parent).node;
+            file = ((XMLNodePreferences) parent).file;
         }
         else if (parent instanceof XMLFilePreferences)
         {
-            nodeParent = ((XMLFilePreferences) parent).rootPreferences;
+            file = (XMLFilePreferences) parent;
+            parentNode = file.rootPreferences.node;
         }
         else
         {
             throw new IllegalArgumentException("The given parent must be an instance of " +
                 XMLNodePreferences.class.getName() + " or " + XMLFilePreferences.class.getName());
         }
-
-        if (baseNode == null)
+        
+        synchronized (file.treeLock)
         {
-            baseNode = nodeParent.baseNode.getOwnerDocument().createElement(NODE_NODENAME);
-            ((Element) baseNode).setAttribute("name", name);
-            nodeParent.baseNode.appendChild(baseNode);
+            node = parentNode.getChild(name);
+
+            if (node == null)
+            {
+                if (parentNode.getProperty(name) != null)
+                {
+                    throw new IllegalStateException(name + " is already set as a property.");
+                }
+
+                node = parentNode.getOrAddChild(name);
+                newNode = true;
+                
+                file.childModified(parentNode, name);
+                
+                PreferencesMetrics metrics = file.getMetrics();
+                if (metrics != null)
+                {
+                    metrics.childCreated();
+                }
+            }
+            else if (file.takeCommittedNode(node))
+            {
+                newNode = true;
+            }
         }
  
         this.parent = parent;
@@ -98,130 +131,289 @@ class XMLNodePreferences extends AbstractPreferences
      * <b>ONLY</b> purpose is to create the XMLFilePreferences.rootPreferences
      * object.
      */
-    protected XMLNodePreferences(AbstractPreferences parent, Node node)
+    protected XMLNodePreferences(XMLFilePreferences parent, PreferencesNode node)
     {
-        super(parent, "prefs");
+        super(parent, ROOT_NODENAME);
         
         this.parent = parent;
-        this.baseNode = node;
+        this.file = parent;
+        this.node = node;
     }
     
     /**
-     * Returns the property node with the key <code>key</code>.
-     * @return The property node with the key <code>key</code> or null if no such
-     * node exists.
-     * @see PROPERTY_NODE_NAME#PROPERTY_NODENAME
+     * @return The node of the preferences tree backing these preferences.
      */
-    private Node getPropertyNode(String key)
+    PreferencesNode getNode()
+    {
+        return node;
+    }
+    
+    @Override
+    public void addPreferenceChangeListener(PreferenceChangeListener pcl)
     {
-        Node node = getNode(key);
+        super.addPreferenceChangeListener(pcl);
         
-        if (node == null || !node.getNodeName().equals(PROPERTY_NODENAME))
+        synchronized (lock)
         {
-            return null;
+            if (preferenceChangeListeners == null)
+            {
+                preferenceChangeListeners = new CopyOnWriteArrayList<>();
+            }
+            
+            preferenceChangeListeners.add(pcl);
+            file.nodeCache.setPinned(this, true);
         }
+    }
+    
+    @Override
+    public void removePreferenceChangeListener(PreferenceChangeListener pcl)
+    {
+        super.removePreferenceChangeListener(pcl);
         
-        return node;
+        synchronized (lock)
+        {
+            preferenceChangeListeners.remove(pcl);
+            file.nodeCache.setPinned(this, hasListeners());
+        }
     }
     
-    private Node getNodeNode(String key)
+    @Override
+    public void addNodeChangeListener(NodeChangeListener ncl)
     {
-        Node node = getNode(key);
+        super.addNodeChangeListener(ncl);
         
-        if (node == null || !node.getNodeName().equals(NODE_NODENAME))
+        synchronized (lock)
         {
-            return null;
+            nodeChangeListeners++;
+            file.nodeCache.setPinned(this, true);
         }
+    }
+    
+    @Override
+    public void removeNodeChangeListener(NodeChangeListener ncl)
+    {
+        super.removeNodeChangeListener(ncl);
         
-        return node;
+        synchronized (lock)
+        {
+            nodeChangeListeners--;
+            file.nodeCache.setPinned(this, hasListeners());
+        }
+    }
+    
+    private boolean hasListeners()
+    {
+        return nodeChangeListeners > 0 || !getPreferenceChangeListeners().isEmpty();
     }
     
     /**
-     * Returns the node with nodename PROPERTY_NODENAME or NODE_NODENAME whichs
-     * name attribute has the value <code>name</code>
-     * @return The node with nodename PROPERTY_NODENAME or NODE_NODENAME whichs
-     * name attribute has the value <code>name</code>. Returns null if no such
-     * node exists.
+     * @return The listeners registered with this node.
      */
-    private Node getNode(String name)
+    List<PreferenceChangeListener> getPreferenceChangeListeners()
+    {
+        List<PreferenceChangeListener> listeners = preferenceChangeListeners;
+        
+        return listeners == null? Collections.<PreferenceChangeListener>emptyList() : listeners;
+    }
+    
+    @Override
+    protected void putSpi(String key, String value)
     {
-        NodeList childNodes = baseNode.getChildNodes();
-        for (int i = 0;i < childNodes.getLength();i++)
+        synchronized (file.treeLock)
         {
-            Node node = childNodes.item(i);
-            if (node.getNodeName().equals(PROPERTY_NODENAME) || node.getNodeName().equals(NODE_NODENAME))
+            if (node.setProperty(key, value))
             {
-                if (name.equals(((Element) node).getAttribute("name")))
-                {
-                    return node;
-                }
+                typedValues.invalidate(key);
+                file.propertyModified(node, key);
             }
         }
+    }
+
+    @Override
+    protected String getSpi(String key)
+    {
+        return node.getProperty(key);
+    }
+    
+    /**
+     * In read-optimized mode, reads the value from the snapshot of the
+     * properties without taking any lock.
+     * @see XMLFilePreferences#setReadOptimized(boolean)
+     */
+    @Override
+    public String get(String key, String def)
+    {
+        PreferencesMetrics metrics = file.getMetrics();
+        
+        if (metrics == null)
+        {
+            return file.isReadOptimized()? getFromSnapshot(key, def) : super.get(key, def);
+        }
         
-        return null;
+        long start = System.nanoTime();
+        try
+        {
+            return file.isReadOptimized()? getFromSnapshot(key, def) : super.get(key, def);
+        }
+        finally
+        {
+            metrics.gets.record(System.nanoTime() - start);
+        }
     }
     
     @Override
-    protected void putSpi(String key, String value)
+    public void put(String key, String value)
     {
-        Node pNode = getPropertyNode(key);
+        PreferencesMetrics metrics = file.getMetrics();
         
-        if (pNode == null)
+        if (metrics == null)
         {
-            // node not set yet, create it
-            pNode = baseNode.getOwnerDocument().createElement(PROPERTY_NODENAME);
-            ((Element) pNode).setAttribute("name", key);
-            
-            baseNode.appendChild(pNode);
+            super.put(key, value);
+            return;
         }
         
-        pNode.setTextContent(value);
+        long start = System.nanoTime();
+        try
+        {
+            super.put(key, value);
+        }
+        finally
+        {
+            metrics.puts.record(System.nanoTime() - start);
+        }
     }
-
+    
     @Override
-    protected String getSpi(String key)
+    public void remove(String key)
     {
-        Node pNode = getPropertyNode(key);
+        PreferencesMetrics metrics = file.getMetrics();
         
-        return pNode == null? null : pNode.getTextContent();
+        if (metrics == null)
+        {
+            super.remove(key);
+            return;
+        }
+        
+        long start = System.nanoTime();
+        try
+        {
+            super.remove(key);
+        }
+        finally
+        {
+            metrics.removes.record(System.nanoTime() - start);
+        }
     }
-
+    
     @Override
-    protected void removeSpi(String key)
+    public int getInt(String key, int def)
+    {
+        return typedValues.getInt(key, get(key, null), def);
+    }
+    
+    @Override
+    public long getLong(String key, long def)
+    {
+        return typedValues.getLong(key, get(key, null), def);
+    }
+    
+    @Override
+    public float getFloat(String key, float def)
+    {
+        return typedValues.getFloat(key, get(key, null), def);
+    }
+    
+    @Override
+    public double getDouble(String key, double def)
+    {
+        return typedValues.getDouble(key, get(key, null), def);
+    }
+    
+    @Override
+    public boolean getBoolean(String key, boolean def)
+    {
+        return typedValues.getBoolean(key, get(key, null), def);
+    }
+    
+    @Override
+    public byte[] getByteArray(String key, byte[] def)
+    {
+        return typedValues.getByteArray(key, get(key, null), def);
+    }
+    
+    /**
+     * Reads the value from the snapshot of the properties without taking any
+     * lock.
+     * @see XMLFilePreferences#setReadOptimized(boolean)
+     */
+    String getFromSnapshot(String key, String def)
     {
-        Node pNode = getNode(key);
+        if (key == null)
+        {
+            throw new NullPointerException("Null key");
+        }
+        
+        String value = file.getSnapshot(node).get(key);
         
-        if (pNode != null)
+        return value == null? def : value;
+    }
+    
+    /**
+     * In read-optimized mode, returns the keys from the snapshot of the
+     * properties without taking any lock.
+     * @see XMLFilePreferences#setReadOptimized(boolean)
+     */
+    @Override
+    public String[] keys()
+        throws BackingStoreException
+    {
+        if (!file.isReadOptimized())
         {
-            baseNode.removeChild(pNode);
-        }  
+            return super.keys();
+        }
+        
+        Set<String> keys = file.getSnapshot(node).keySet();
+        
+        return keys.toArray(new String[keys.size()]);
     }
 
     @Override
-    protected void removeNodeSpi()
-        throws BackingStoreException
+    protected void removeSpi(String key)
     {
-        if (parent != null)
+        synchronized (file.treeLock)
         {
-            baseNode.getParentNode().removeChild(baseNode);
+            if (node.removeProperty(key))
+            {
+                typedValues.invalidate(key);
+                file.propertyModified(node, key);
+            }
         }
     }
 
     @Override
-    protected String[] keysSpi()
+    protected void removeNodeSpi()
         throws BackingStoreException
     {
-        NodeList childNodes = baseNode.getChildNodes();
-        List<String> keys = new ArrayList<>();
-        for (int i = 0;i < childNodes.getLength();i++)
+        synchronized (file.treeLock)
         {
-            Node node = childNodes.item(i);
-            if (node.getNodeName().equals(PROPERTY_NODENAME))
+            PreferencesNode parentNode = node.getParent();
+            
+            if (parentNode != null)
             {
-                keys.add(((Element) node).getAttribute("name"));
+                node.remove();
+                file.childModified(parentNode, node.getName());
             }
         }
         
+        file.nodeCache.remove(node);
+    }
+
+    @Override
+    protected String[] keysSpi()
+        throws BackingStoreException
+    {
+        Set<String> keys = node.getProperties().keySet();
+        
         return keys.toArray(new String[keys.size()]);
     }
 
@@ -229,31 +421,164 @@ class XMLNodePreferences extends AbstractPreferences
     protected String[] childrenNamesSpi()
         throws BackingStoreException
     {
-        NodeList childNodes = baseNode.getChildNodes();
-        List<String> names = new ArrayList<>();
-        for (int i = 0;i < childNodes.getLength();i++)
+        Set<String> names = node.getChildNames();
+        
+        return names.toArray(new String[names.size()]);
+    }
+
+    @Override
+    protected AbstractPreferences childSpi(String name)
+    {
+        return file.childPreferences(this, name);
+    }
+    
+    /**
+     * Called when this object is returned for its node once more; it was
+     * new only the first time.
+     */
+    void reused()
+    {
+        newNode = false;
+    }
+    
+    /**
+     * With a node cache limit, resolves relative paths through the node
+     * cache rather than the cache of {@link AbstractPreferences}.
+     * @see XMLFilePreferences#setNodeCacheLimit(int)
+     */
+    @Override
+    public Preferences node(String path)
+    {
+        if (file.getNodeCacheLimit() < 0 || path.isEmpty())
+        {
+            return super.node(path);
+        }
+        
+        if (path.startsWith("/"))
+        {
+            return resolveAbsolute(super.node("/"), path);
+        }
+        
+        return resolve(this, path);
+    }
+    
+    /**
+     * @see XMLFilePreferences#cachedChild(String)
+     */
+    AbstractPreferences cachedChild(String name)
+    {
+        synchronized (lock)
         {
-            Node node = childNodes.item(i);
-            if (node.getNodeName().equals(NODE_NODENAME))
+            if (isRemoved())
+            {
+                throw new IllegalStateException("Node has been removed.");
+            }
+            
+            if (nodeChangeListeners > 0)
             {
-                names.add(((Element) node).getAttribute("name"));
+                // fires the event for a new node
+                return (AbstractPreferences) super.node(name);
             }
+            
+            return childSpi(name);
+        }
+    }
+    
+    /**
+     * Resolves the absolute <code>path</code> against <code>root</code>, the
+     * root of the hierarchy.
+     */
+    static Preferences resolveAbsolute(Preferences root, String path)
+    {
+        if (path.equals("/"))
+        {
+            return root;
         }
         
-        return names.toArray(new String[names.size()]);
+        if (path.startsWith("//"))
+        {
+            throw new IllegalArgumentException("Consecutive slashes in path");
+        }
+        
+        return root.node(path.substring(1));
+    }
+    
+    /**
+     * Resolves the relative <code>path</code> against <code>start</code> one
+     * node at a time through {@link #cachedChild(String)}, checking it like
+     * {@link AbstractPreferences#node(String)} does.
+     * @param start An {@link XMLFilePreferences} or {@link XMLNodePreferences}.
+     */
+    static Preferences resolve(AbstractPreferences start, String path)
+    {
+        if (path.endsWith("/"))
+        {
+            throw new IllegalArgumentException("Path ends with slash");
+        }
+        
+        AbstractPreferences current = start;
+        int from = 0;
+        
+        while (true)
+        {
+            int to = path.indexOf('/', from);
+            if (to < 0)
+            {
+                to = path.length();
+            }
+            
+            if (to == from)
+            {
+                throw new IllegalArgumentException("Consecutive slashes in path");
+            }
+            
+            String name = path.substring(from, to);
+            if (name.length() > MAX_NAME_LENGTH)
+            {
+                throw new IllegalArgumentException("Node name " + name + " too long");
+            }
+            
+            if (current instanceof XMLFilePreferences)
+            {
+                current = ((XMLFilePreferences) current).cachedChild(name);
+            }
+            else
+            {
+                current = ((XMLNodePreferences) current).cachedChild(name);
+            }
+            
+            if (to == path.length())
+            {
+                return current;
+            }
+            
+            from = to + 1;
+        }
     }
 
-    @Override
-    protected AbstractPreferences childSpi(String name)
+    /**
+     * Merges the subtree rooted at <code>stored</code> into this node.
+     * @see XMLFilePreferences#merge(AbstractPreferences, PreferencesNode, PreferencesNode)
+     */
+    void merge(PreferencesNode stored)
+        throws BackingStoreException
     {
-        return new XMLNodePreferences(this, name);
+        synchronized (lock)
+        {
+            file.merge(this, node, stored);
+        }
     }
 
     @Override
     public void sync()
         throws BackingStoreException
     {
-        throw new UnsupportedOperationException("Syncing not supported.");
+        if (parent == null)
+        {
+            throw new BackingStoreException("This preferences has no parent and thus cannot be sync()ed.");
+        }
+        
+        parent.sync();
     }
 
     @Override
@@ -267,6 +592,38 @@ class XMLNodePreferences extends AbstractPreferences
         
         parent.flush();
     }
+    
+    /**
+     * Writes the properties of this node directly from the tree.
+     * @see XMLFilePreferences#exportNode(OutputStream)
+     */
+    @Override
+    public void exportNode(OutputStream os)
+        throws IOException, BackingStoreException
+    {
+        file.export(this, os, false);
+    }
+    
+    /**
+     * Writes the subtree rooted at this node from a copy of the tree.
+     * @see XMLFilePreferences#exportSubtree(OutputStream)
+     */
+    @Override
+    public void exportSubtree(OutputStream os)
+        throws IOException, BackingStoreException
+    {
+        file.export(this, os, true);
+    }
+    
+    /**
+     * Flushes the preferences file these preferences belong to in the
+     * background.
+     * @see XMLFilePreferences#flushAsync()
+     */
+    public CompletableFuture<Void> flushAsync()
+    {
+        return file.flushAsync();
+    }
 
     @Override
     protected void syncSpi()
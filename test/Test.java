@@ -1,6 +1,38 @@
+import com.tmarsteel.xmlprefs.FileFormat;
+import com.tmarsteel.xmlprefs.FsyncPolicy;
+import com.tmarsteel.xmlprefs.LoadMode;
+import com.tmarsteel.xmlprefs.PreferencesCursor;
+import com.tmarsteel.xmlprefs.PreferencesEdit;
+import com.tmarsteel.xmlprefs.PreferencesVisitor;
+import com.tmarsteel.xmlprefs.XMLDirectoryPreferences;
 import com.tmarsteel.xmlprefs.XMLFilePreferences;
+import com.tmarsteel.xmlprefs.XMLFilePreferencesFactory;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.ref.WeakReference;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.prefs.BackingStoreException;
+import java.util.prefs.NodeChangeEvent;
+import java.util.prefs.NodeChangeListener;
 import java.util.prefs.Preferences;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 /**
  *
@@ -53,5 +85,956 @@ public class Test
                 System.err.println("Deleting sublevel property failed");
             }
         }
+        
+        XMLFilePreferences filePrefs = new XMLFilePreferences(prefFile);
+        
+        if (filePrefs.isDirty())
+        {
+            System.err.println("Freshly loaded preferences are dirty");
+        }
+        
+        filePrefs.node("someNode").put("key", "value");
+        
+        if (!filePrefs.getDirtyNodes().contains("/someNode"))
+        {
+            System.err.println("Modification not tracked");
+        }
+        
+        filePrefs.flush();
+        
+        if (filePrefs.isDirty() || !filePrefs.getDirtyNodes().isEmpty())
+        {
+            System.err.println("Flushing did not reset the modification tracking");
+        }
+        
+        XMLFilePreferences otherPrefs = new XMLFilePreferences(prefFile);
+        
+        filePrefs.node("someNode").put("key", "otherValue");
+        filePrefs.flush();
+        otherPrefs.sync();
+        
+        if (!"otherValue".equals(otherPrefs.node("someNode").get("key", null)))
+        {
+            System.err.println("Syncing did not pick up a modification of the file");
+        }
+        
+        testAutoFlush();
+        testFsyncPolicies();
+        testAutoReload();
+        testReadOptimized();
+        testSnapshotStaleness();
+        testLazyLoading();
+        testMetricsRegistration();
+        testBatchAtomicity();
+        testTypedValueCache();
+        testWideNodes();
+        testShardedDirectory();
+        testGzipCorruption();
+        testRegistryIdentity();
+        testFlushAsync();
+        testExportImport();
+        testWalk();
+        testNodeCacheEviction();
+    }
+    
+    /**
+     * @return A file in the temporary directory that does not exist.
+     */
+    private static File newFile(String prefix)
+        throws IOException
+    {
+        File file = File.createTempFile(prefix, ".xml");
+        file.delete();
+        file.deleteOnExit();
+        
+        return file;
+    }
+    
+    private static void testAutoFlush()
+        throws Exception
+    {
+        File file = newFile("autoflush");
+        XMLFilePreferences prefs = new XMLFilePreferences(file);
+        prefs.setAutoFlush(200, 2000, TimeUnit.MILLISECONDS);
+        
+        for (int i = 0;i < 10;i++)
+        {
+            prefs.put("key" + i, "value");
+        }
+        
+        if (file.exists())
+        {
+            System.err.println("Auto flush did not wait for the quiet period");
+        }
+        
+        Thread.sleep(1000);
+        
+        if (prefs.isDirty() || !"value".equals(new XMLFilePreferences(file).get("key9", null)))
+        {
+            System.err.println("Auto flush did not write after the quiet period");
+        }
+        
+        prefs.put("late", "value");
+        prefs.close();
+        
+        if (!"value".equals(new XMLFilePreferences(file).get("late", null)))
+        {
+            System.err.println("Closing did not write the modifications pending for auto flush");
+        }
+    }
+    
+    private static void testFsyncPolicies()
+        throws Exception
+    {
+        for (FsyncPolicy policy : FsyncPolicy.values())
+        {
+            File file = newFile("fsync");
+            XMLFilePreferences prefs = new XMLFilePreferences(file);
+            prefs.setFsyncPolicy(policy);
+            prefs.setFsyncInterval(1, TimeUnit.HOURS);
+            
+            for (int i = 0;i < 3;i++)
+            {
+                prefs.putInt("count", i);
+                prefs.flush();
+            }
+            prefs.close();
+            
+            if (new XMLFilePreferences(file).getInt("count", -1) != 2)
+            {
+                System.err.println("Flushing with fsync policy " + policy + " lost a write");
+            }
+        }
+        
+        boolean trailingFsync = false;
+        for (Thread thread : Thread.getAllStackTraces().keySet())
+        {
+            trailingFsync |= thread.getName().equals("xmlprefs-fsync");
+        }
+        
+        if (!trailingFsync)
+        {
+            System.err.println("No trailing fsync was scheduled for an unforced flush");
+        }
+    }
+    
+    private static void testAutoReload()
+        throws Exception
+    {
+        File file = newFile("reload");
+        XMLFilePreferences watching = new XMLFilePreferences(file);
+        watching.setAutoReload(50, TimeUnit.MILLISECONDS);
+        
+        XMLFilePreferences writing = new XMLFilePreferences(file);
+        writing.node("child").put("key", "value");
+        writing.flush();
+        
+        for (int i = 0;i < 50 && !watching.nodeExists("child");i++)
+        {
+            Thread.sleep(100);
+        }
+        
+        if (!"value".equals(watching.node("child").get("key", null)))
+        {
+            System.err.println("Auto reload did not pick up a modification of the file");
+        }
+        
+        writing.setJournaling(1024 * 1024);
+        writing.node("child").put("key", "journaled");
+        writing.flush();
+        
+        if (!new File(file.getPath() + ".journal").exists())
+        {
+            System.err.println("Journaling did not append to the journal");
+        }
+        
+        for (int i = 0;i < 50 && !"journaled".equals(watching.node("child").get("key", null));i++)
+        {
+            Thread.sleep(100);
+        }
+        
+        if (!"journaled".equals(watching.node("child").get("key", null)))
+        {
+            System.err.println("Auto reload did not pick up a modification of the journal");
+        }
+        
+        writing.disableJournaling();
+        
+        if (!"journaled".equals(watching.node("child").get("key", null)))
+        {
+            System.err.println("Auto reload lost a modification when the journal was compacted");
+        }
+        
+        watching.close();
+    }
+    
+    private static void testReadOptimized()
+        throws Exception
+    {
+        XMLFilePreferences prefs = new XMLFilePreferences(newFile("readoptimized"));
+        prefs.setReadOptimized(true);
+        Preferences node = prefs.node("child");
+        
+        node.put("a", "1");
+        node.put("b", "2");
+        node.remove("a");
+        
+        if (node.get("a", null) != null || !"2".equals(node.get("b", null)) || node.keys().length != 1)
+        {
+            System.err.println("Read-optimized mode does not see its own writes");
+        }
+        
+        Thread reader = new Thread(() -> {
+            for (int i = 0;i < 100000;i++)
+            {
+                String value = node.get("counter", "0");
+                if (value == null)
+                {
+                    System.err.println("Read-optimized mode returned a torn read");
+                    return;
+                }
+            }
+        });
+        reader.start();
+        
+        for (int i = 0;i < 1000;i++)
+        {
+            node.putInt("counter", i);
+        }
+        reader.join();
+        
+        prefs.setReadOptimized(false);
+        node.put("c", "3");
+        
+        if (node.getInt("counter", -1) != 999 || !"3".equals(node.get("c", null)))
+        {
+            System.err.println("Disabling read-optimized mode lost properties");
+        }
+    }
+    
+    private static void testSnapshotStaleness()
+        throws Exception
+    {
+        File file = newFile("snapshot");
+        File snapshotFile = new File(file.getPath() + ".bin");
+        snapshotFile.deleteOnExit();
+        
+        XMLFilePreferences eager = new XMLFilePreferences(file);
+        eager.put("key", "1");
+        eager.flush();
+        
+        if (snapshotFile.exists())
+        {
+            System.err.println("A binary snapshot was written without the binary snapshot load mode");
+        }
+        
+        XMLFilePreferences snapshotting = new XMLFilePreferences(file, LoadMode.BINARY_SNAPSHOT);
+        snapshotting.put("key", "2");
+        snapshotting.flush();
+        FileTime snapshotModified = Files.getLastModifiedTime(file.toPath());
+        
+        // same size and, on file systems with coarse timestamps, the same modification time
+        eager.put("key", "3");
+        eager.flush();
+        Files.setLastModifiedTime(file.toPath(), snapshotModified);
+        
+        if (!"3".equals(new XMLFilePreferences(file, LoadMode.BINARY_SNAPSHOT).get("key", null)))
+        {
+            System.err.println("A stale binary snapshot was read instead of the file");
+        }
+        
+        Thread.sleep(2100);
+        new XMLFilePreferences(file, LoadMode.BINARY_SNAPSHOT);
+        
+        // the racy flag follows magic, size, modification time and checksum
+        if (Files.readAllBytes(snapshotFile.toPath())[4 + 8 + 8 + 8] != 0)
+        {
+            System.err.println("A verified binary snapshot was not made anew once its timestamp was no longer racy");
+        }
+        
+        if (!"3".equals(new XMLFilePreferences(file, LoadMode.BINARY_SNAPSHOT).get("key", null)))
+        {
+            System.err.println("A binary snapshot made anew was not read");
+        }
+    }
+    
+    private static void testLazyLoading()
+        throws Exception
+    {
+        File file = newFile("lazy");
+        XMLFilePreferences eager = new XMLFilePreferences(file);
+        for (String name : new String[] { "a", "b", "c" })
+        {
+            eager.node(name).put("key", name);
+            eager.node(name).node("nested").putInt("depth", 2);
+        }
+        eager.flush();
+        
+        XMLFilePreferences lazy = new XMLFilePreferences(file, LoadMode.LAZY);
+        lazy.node("a").put("key", "modified");
+        lazy.flush();
+        
+        XMLFilePreferences reread = new XMLFilePreferences(file);
+        if (!"modified".equals(reread.node("a").get("key", null)) || !"c".equals(reread.node("c").get("key", null))
+            || reread.node("b").node("nested").getInt("depth", -1) != 2)
+        {
+            System.err.println("Lazy loading did not write untouched subtrees back verbatim");
+        }
+        
+        lazy = new XMLFilePreferences(file, LoadMode.LAZY);
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE))
+        {
+            channel.truncate(0);
+        }
+        
+        try
+        {
+            if (!"b".equals(lazy.node("b").get("key", null)) || lazy.node("c").node("nested").getInt("depth", -1) != 2)
+            {
+                System.err.println("Lazy loading lost an untouched subtree");
+            }
+        }
+        catch (Throwable ex)
+        {
+            System.err.println("Lazy loading failed after the file was truncated: " + ex);
+        }
+    }
+    
+    private static void testMetricsRegistration()
+        throws Exception
+    {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName pattern = new ObjectName("com.tmarsteel.xmlprefs:type=XMLFilePreferences,*");
+        int registered = server.queryNames(pattern, null).size();
+        
+        XMLFilePreferences prefs = new XMLFilePreferences(newFile("metrics"));
+        prefs.setMetricsEnabled(true);
+        prefs.put("key", "value");
+        
+        if (server.queryNames(pattern, null).size() != registered + 1)
+        {
+            System.err.println("Enabling metrics did not register an MBean");
+        }
+        
+        prefs = null;
+        for (int i = 0;i < 50 && server.queryNames(pattern, null).size() > registered;i++)
+        {
+            System.gc();
+            Thread.sleep(100);
+        }
+        
+        if (server.queryNames(pattern, null).size() != registered)
+        {
+            System.err.println("The metrics MBean kept unreachable preferences alive");
+        }
+    }
+    
+    private static void testBatchAtomicity()
+        throws Exception
+    {
+        XMLFilePreferences prefs = new XMLFilePreferences(newFile("batch"));
+        prefs.put("property", "value");
+        
+        try
+        {
+            prefs.edit("/").put("key", "value").node("/created").put("key", "value").node("/property/child").put("key", "value").commit();
+            System.err.println("Committing an edit creating a node with the name of a property did not fail");
+        }
+        catch (IllegalStateException ex)
+        {
+            // expected
+        }
+        
+        if (prefs.get("key", null) != null || prefs.nodeExists("created"))
+        {
+            System.err.println("A failed commit applied some of its changes");
+        }
+        
+        CountDownLatch events = new CountDownLatch(2);
+        prefs.addNodeChangeListener(new NodeChangeListener()
+        {
+            @Override
+            public void childAdded(NodeChangeEvent evt)
+            {
+                if (evt.getChild().name().equals("created"))
+                {
+                    events.countDown();
+                }
+            }
+            
+            @Override
+            public void childRemoved(NodeChangeEvent evt)
+            {
+            }
+        });
+        prefs.addPreferenceChangeListener(evt -> {
+            if (evt.getKey().equals("key"))
+            {
+                events.countDown();
+            }
+        });
+        
+        prefs.edit("/").put("key", "value").node("created/nested").put("key", "value").commit();
+        
+        if (!"value".equals(prefs.get("key", null)) || !"value".equals(prefs.node("created/nested").get("key", null)))
+        {
+            System.err.println("Committing an edit did not apply its changes");
+        }
+        
+        if (!events.await(5, TimeUnit.SECONDS))
+        {
+            System.err.println("Committing an edit did not fire the node and property change events");
+        }
+        
+        Preferences wide = prefs.node("wide");
+        AtomicBoolean committing = new AtomicBoolean(true);
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        Thread reader = new Thread(() ->
+        {
+            try
+            {
+                while (committing.get())
+                {
+                    for (String name : wide.childrenNames())
+                    {
+                        if (name == null)
+                        {
+                            throw new IllegalStateException("null child name");
+                        }
+                    }
+                }
+            }
+            catch (Throwable ex)
+            {
+                failure.set(ex);
+            }
+        });
+        reader.start();
+        
+        for (int i = 0;i < 200;i++)
+        {
+            PreferencesEdit edit = prefs.edit("/wide");
+            for (int j = 0;j < 50;j++)
+            {
+                edit.node("/wide/child" + i + "_" + j).put("key", "value");
+            }
+            edit.commit();
+        }
+        
+        committing.set(false);
+        reader.join();
+        
+        if (failure.get() != null)
+        {
+            System.err.println("Reading the child nodes during a commit failed: " + failure.get());
+        }
+        
+        prefs.close();
+    }
+    
+    private static void testTypedValueCache()
+        throws Exception
+    {
+        File file = newFile("typed");
+        XMLFilePreferences prefs = new XMLFilePreferences(file);
+        Preferences node = prefs.node("typed");
+        
+        node.putInt("number", 1);
+        node.getInt("number", -1);
+        node.putInt("number", 2);
+        
+        if (node.getInt("number", -1) != 2 || node.getLong("number", -1) != 2 || node.getBoolean("number", true) != true)
+        {
+            System.err.println("The typed value cache returned a stale or mistyped value after a put");
+        }
+        
+        node.put("number", "invalid");
+        if (node.getInt("number", -1) != -1)
+        {
+            System.err.println("The typed value cache returned a value for an unparseable property");
+        }
+        
+        node.putByteArray("bytes", new byte[] { 1, 2, 3 });
+        node.getByteArray("bytes", null)[0] = 42;
+        if (node.getByteArray("bytes", null)[0] != 1)
+        {
+            System.err.println("The typed value cache shares byte arrays with callers");
+        }
+        
+        node.putInt("number", 3);
+        prefs.flush();
+        node.getInt("number", -1);
+        
+        XMLFilePreferences other = new XMLFilePreferences(file);
+        other.node("typed").putInt("number", 4);
+        other.flush();
+        prefs.sync();
+        
+        if (node.getInt("number", -1) != 4)
+        {
+            System.err.println("The typed value cache returned a stale value after a reload");
+        }
+        
+        node.remove("number");
+        if (node.getInt("number", -1) != -1)
+        {
+            System.err.println("The typed value cache returned a value for a removed property");
+        }
+    }
+    
+    private static void testWideNodes()
+        throws Exception
+    {
+        final int width = 20000;
+        XMLFilePreferences prefs = new XMLFilePreferences(newFile("wide"));
+        Preferences properties = prefs.node("properties");
+        Preferences children = prefs.node("children");
+        
+        for (int i = 0;i < width;i++)
+        {
+            properties.put("key" + i, "value");
+            children.node("child" + i);
+        }
+        
+        for (int i = 0;i < width;i += 2)
+        {
+            properties.remove("key" + i);
+        }
+        
+        if (properties.keys().length != width / 2 || properties.get("key1", null) == null || properties.get("key2", null) != null)
+        {
+            System.err.println("Removing from a wide node removed the wrong properties");
+        }
+        
+        long start = System.nanoTime();
+        properties.clear();
+        prefs.node("children").removeNode();
+        long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        
+        if (properties.keys().length != 0 || prefs.nodeExists("children"))
+        {
+            System.err.println("Clearing or removing a wide node left entries behind");
+        }
+        
+        // a removal linear in the width of the node takes seconds here
+        if (millis > 1000)
+        {
+            System.err.println("Clearing and removing wide nodes took " + millis + "ms");
+        }
+    }
+    
+    private static void testShardedDirectory()
+        throws Exception
+    {
+        File directory = Files.createTempDirectory("sharded").toFile();
+        XMLDirectoryPreferences prefs = new XMLDirectoryPreferences(directory);
+        prefs.put("root", "value");
+        prefs.node("first").put("key", "1");
+        prefs.node("second/nested").put("key", "2");
+        prefs.flush();
+        
+        File first = new File(directory, "first" + XMLDirectoryPreferences.SHARD_SUFFIX);
+        File second = new File(directory, "second" + XMLDirectoryPreferences.SHARD_SUFFIX);
+        
+        if (!new File(directory, XMLDirectoryPreferences.INDEX_FILENAME).exists() || !first.exists() || !second.exists())
+        {
+            System.err.println("A sharded directory did not write the index and one file per top-level node");
+        }
+        
+        long secondModified = second.lastModified();
+        Thread.sleep(20);
+        prefs.node("first").put("key", "changed");
+        prefs.flush();
+        
+        if (second.lastModified() != secondModified)
+        {
+            System.err.println("Flushing a sharded directory rewrote an unmodified shard");
+        }
+        
+        prefs.node("first").removeNode();
+        prefs.flush();
+        
+        if (first.exists())
+        {
+            System.err.println("Flushing a sharded directory did not delete the file of a removed node");
+        }
+        
+        XMLDirectoryPreferences reread = new XMLDirectoryPreferences(directory);
+        if (!"value".equals(reread.get("root", null)) || !"2".equals(reread.node("second/nested").get("key", null))
+            || reread.nodeExists("first"))
+        {
+            System.err.println("A sharded directory did not read back what was flushed");
+        }
+        
+        prefs.close();
+        reread.close();
+        
+        for (File file : directory.listFiles())
+        {
+            file.delete();
+        }
+        directory.delete();
+    }
+    
+    private static void testGzipCorruption()
+        throws Exception
+    {
+        File file = newFile("gzip");
+        XMLFilePreferences prefs = new XMLFilePreferences(file);
+        prefs.setFileFormat(FileFormat.GZIP);
+        for (int i = 0;i < 100;i++)
+        {
+            prefs.node("node" + i).put("key", "value" + i);
+        }
+        prefs.flush();
+        
+        byte[] compressed = Files.readAllBytes(file.toPath());
+        if (compressed[0] != (byte) 0x1f || compressed[1] != (byte) 0x8b)
+        {
+            System.err.println("The gzip file format did not write a gzip file");
+        }
+        
+        if (!"value42".equals(new XMLFilePreferences(file).node("node42").get("key", null)))
+        {
+            System.err.println("A gzip file was not read back");
+        }
+        
+        byte[] flipped = compressed.clone();
+        flipped[flipped.length / 2] ^= 0x55;
+        byte[] truncated = Arrays.copyOf(compressed, compressed.length - 4);
+        
+        for (byte[] corrupt : new byte[][] { flipped, truncated })
+        {
+            Files.write(file.toPath(), corrupt);
+            
+            try
+            {
+                new XMLFilePreferences(file);
+                System.err.println("Reading a corrupt gzip file did not fail");
+            }
+            catch (IOException ex)
+            {
+                // expected
+            }
+        }
+    }
+    
+    private static void testRegistryIdentity()
+        throws Exception
+    {
+        File file = newFile("registry");
+        String previous = System.setProperty(XMLFilePreferencesFactory.USERROOT_FILE_PROPERTY, file.getPath());
+        
+        try
+        {
+            Preferences[] concurrent = new Preferences[4];
+            Thread[] threads = new Thread[concurrent.length];
+            for (int i = 0;i < threads.length;i++)
+            {
+                final int slot = i;
+                threads[i] = new Thread(() -> concurrent[slot] = new XMLFilePreferencesFactory().userRoot());
+                threads[i].start();
+            }
+            for (Thread thread : threads)
+            {
+                thread.join();
+            }
+            
+            File samePath = new File(new File(file.getParentFile(), "."), file.getName());
+            Preferences direct = XMLFilePreferencesFactory.getFilePreferences(samePath);
+            
+            for (Preferences root : concurrent)
+            {
+                if (root != direct)
+                {
+                    System.err.println("The factories did not share one instance per file");
+                    break;
+                }
+            }
+            
+            try
+            {
+                XMLFilePreferencesFactory.getDirectoryPreferences(file);
+                System.err.println("A file registered as XMLFilePreferences was opened as XMLDirectoryPreferences");
+            }
+            catch (IllegalStateException ex)
+            {
+                // expected
+            }
+            
+            ((XMLFilePreferences) direct).close();
+            if (XMLFilePreferencesFactory.getFilePreferences(file) == direct)
+            {
+                System.err.println("Closing did not remove the preferences from the registry");
+            }
+        }
+        finally
+        {
+            if (previous == null)
+            {
+                System.clearProperty(XMLFilePreferencesFactory.USERROOT_FILE_PROPERTY);
+            }
+            else
+            {
+                System.setProperty(XMLFilePreferencesFactory.USERROOT_FILE_PROPERTY, previous);
+            }
+        }
+    }
+    
+    private static void testFlushAsync()
+        throws Exception
+    {
+        File file = newFile("async");
+        XMLFilePreferences prefs = new XMLFilePreferences(file);
+        List<Runnable> submitted = new ArrayList<>();
+        prefs.setFlushExecutor(submitted::add);
+        
+        prefs.put("first", "value");
+        CompletableFuture<Void> first = prefs.flushAsync();
+        prefs.put("second", "value");
+        CompletableFuture<Void> second = prefs.flushAsync();
+        
+        if (submitted.size() != 1 || first.isDone() || second.isDone())
+        {
+            System.err.println("flushAsync did not coalesce flushes that had not started yet");
+        }
+        
+        submitted.get(0).run();
+        
+        if (!first.isDone() || !second.isDone() || prefs.isDirty()
+            || !"value".equals(new XMLFilePreferences(file).get("second", null)))
+        {
+            System.err.println("A coalesced flushAsync did not write the modifications of all its callers");
+        }
+        
+        if (!prefs.flushAsync().isDone())
+        {
+            System.err.println("flushAsync without modifications did not complete right away");
+        }
+        
+        prefs.put("third", "value");
+        CompletableFuture<Void> skipped = prefs.flushAsync();
+        prefs.flush();
+        submitted.get(1).run();
+        
+        if (!skipped.isDone() || skipped.isCompletedExceptionally())
+        {
+            System.err.println("flushAsync did not complete after another flush wrote its modifications");
+        }
+        
+        File directory = Files.createTempDirectory("async").toFile();
+        XMLFilePreferences unwritable = new XMLFilePreferences(new File(directory, "prefs.xml"));
+        unwritable.put("key", "value");
+        for (File lockFile : directory.listFiles())
+        {
+            lockFile.delete();
+        }
+        directory.delete();
+        
+        try
+        {
+            unwritable.flushAsync().get(10, TimeUnit.SECONDS);
+            System.err.println("flushAsync did not fail for an unwritable file");
+        }
+        catch (ExecutionException ex)
+        {
+            // expected
+        }
+        
+        unwritable.setFlushExecutor(task -> { throw new RejectedExecutionException(); });
+        if (!unwritable.flushAsync().isCompletedExceptionally())
+        {
+            System.err.println("flushAsync did not fail when its executor rejected the flush");
+        }
+    }
+    
+    private static void testExportImport()
+        throws Exception
+    {
+        String tricky = "<&>\"' \u00e4\u20ac\ud83d\ude00";
+        XMLFilePreferences source = new XMLFilePreferences(newFile("export"));
+        source.put("root", tricky);
+        source.node("a/b").put("key", "value");
+        source.node("a").put(tricky, "key with markup");
+        source.node("empty");
+        
+        ByteArrayOutputStream subtree = new ByteArrayOutputStream();
+        source.exportSubtree(subtree);
+        
+        XMLFilePreferences target = new XMLFilePreferences(newFile("import"));
+        target.importSubtree(new ByteArrayInputStream(subtree.toByteArray()));
+        
+        if (!tricky.equals(target.get("root", null)) || !"value".equals(target.node("a/b").get("key", null))
+            || !"key with markup".equals(target.node("a").get(tricky, null)) || !target.nodeExists("empty"))
+        {
+            System.err.println("Exporting and importing a subtree did not round-trip");
+        }
+        
+        ByteArrayOutputStream node = new ByteArrayOutputStream();
+        source.node("a").exportNode(node);
+        
+        XMLFilePreferences nodeTarget = new XMLFilePreferences(newFile("importnode"));
+        nodeTarget.importSubtree(new ByteArrayInputStream(node.toByteArray()));
+        
+        if (!"key with markup".equals(nodeTarget.node("a").get(tricky, null)) || nodeTarget.nodeExists("a/b"))
+        {
+            System.err.println("Exporting and importing a node did not round-trip its properties only");
+        }
+    }
+    
+    private static void testWalk()
+        throws Exception
+    {
+        XMLFilePreferences prefs = new XMLFilePreferences(newFile("walk"));
+        prefs.node("app/window").put("width", "800");
+        prefs.node("app/window").put("height", "600");
+        prefs.node("app/skipped/deep").put("key", "value");
+        prefs.node("other").put("key", "value");
+        
+        List<String> visited = new ArrayList<>();
+        boolean found = prefs.walk("/app", new PreferencesVisitor()
+        {
+            @Override
+            public boolean enterNode(PreferencesCursor node)
+            {
+                visited.add(node.getPath() + "@" + node.getDepth());
+                return !node.getName().equals("skipped");
+            }
+            
+            @Override
+            public void visitProperty(PreferencesCursor node, String key, String value)
+            {
+                visited.add(node.getPath() + "/" + key + "=" + value);
+                
+                // visitors may call back into the preferences
+                prefs.node("app/window").put("visited", "true");
+            }
+        });
+        
+        List<String> expected = Arrays.asList("/app@0", "/app/window@1", "/app/window/width=800",
+            "/app/window/height=600", "/app/skipped@1");
+        
+        if (!found || !visited.equals(expected))
+        {
+            System.err.println("Walking visited " + visited + " instead of " + expected);
+        }
+        
+        List<String> entered = new ArrayList<>();
+        prefs.walk("/", new PreferencesVisitor()
+        {
+            @Override
+            public boolean enterNode(PreferencesCursor node)
+            {
+                entered.add(node.getPath());
+                
+                if (node.getDepth() == 0)
+                {
+                    try
+                    {
+                        // removed before the walk reaches it
+                        prefs.node("other").removeNode();
+                    }
+                    catch (BackingStoreException ex)
+                    {
+                        throw new IllegalStateException(ex);
+                    }
+                }
+                
+                return true;
+            }
+        });
+        
+        if (entered.contains("/other") || !entered.contains("/app/skipped/deep"))
+        {
+            System.err.println("Walking entered " + entered + " with /other removed during the walk");
+        }
+        
+        if (prefs.walk("missing/node", new PreferencesVisitor() { }))
+        {
+            System.err.println("Walking a missing node reported it as found");
+        }
+        
+        if (!"800".equals(prefs.get("app/window", "width", null)) || !"800".equals(prefs.get("/app/window", "width", null))
+            || !"default".equals(prefs.get("app/missing", "width", "default")) || !"default".equals(prefs.get("", "width", "default")))
+        {
+            System.err.println("Looking up properties by path returned wrong values");
+        }
+        
+        if (prefs.nodeExists("app/missing"))
+        {
+            System.err.println("Looking up a property by path created its node");
+        }
+        
+        for (String invalid : new String[] { "app//window", "app/window/" })
+        {
+            try
+            {
+                prefs.get(invalid, "width", null);
+                System.err.println("Looking up a property by the invalid path " + invalid + " did not fail");
+            }
+            catch (IllegalArgumentException ex)
+            {
+                // expected
+            }
+            
+            try
+            {
+                prefs.walk(invalid, new PreferencesVisitor() { });
+                System.err.println("Walking the invalid path " + invalid + " did not fail");
+            }
+            catch (IllegalArgumentException ex)
+            {
+                // expected
+            }
+        }
+    }
+    
+    private static void testNodeCacheEviction()
+        throws Exception
+    {
+        XMLFilePreferences prefs = new XMLFilePreferences(newFile("nodecache"));
+        prefs.setNodeCacheLimit(10);
+        
+        Preferences held = prefs.node("held");
+        Preferences listened = prefs.node("listened");
+        listened.addPreferenceChangeListener(evt -> { });
+        WeakReference<Preferences> listenedRef = new WeakReference<>(listened);
+        listened = null;
+        
+        prefs.node("evicted").put("key", "value");
+        WeakReference<Preferences> evicted = new WeakReference<>(prefs.node("evicted"));
+        
+        for (int i = 0;i < 100;i++)
+        {
+            prefs.node("filler" + i).put("key", "value");
+        }
+        
+        for (int i = 0;i < 50 && evicted.get() != null;i++)
+        {
+            System.gc();
+            Thread.sleep(20);
+        }
+        
+        if (evicted.get() != null)
+        {
+            System.err.println("The node cache kept a node object beyond its limit");
+        }
+        
+        if (listenedRef.get() == null || prefs.node("listened") != listenedRef.get())
+        {
+            System.err.println("The node cache evicted a node object with listeners");
+        }
+        
+        if (prefs.node("held") != held || prefs.node("/held") != held)
+        {
+            System.err.println("The node cache returned a new object for a node whose object is still referenced");
+        }
+        
+        if (!"value".equals(prefs.node("evicted").get("key", null)) || prefs.childrenNames().length != 103)
+        {
+            System.err.println("Evicting node objects lost nodes or their properties");
+        }
+        
+        prefs.disableNodeCacheLimit();
     }
 }